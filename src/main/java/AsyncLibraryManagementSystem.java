@@ -0,0 +1,73 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * non-blocking mirror of {@link LibraryManagementSystem}: every method returns at once
+ * and the future completes with the ApiResult the blocking call would have returned.
+ *
+ * Note that:
+ *      (1) each call is still one transaction, run on a pooled connection.
+ *      (2) when too many calls are in flight the returned future completes
+ *          immediately with a failed ApiResult instead of queueing without bound.
+ *      (3) cancel(true) on a returned future drops the call if it has not started and
+ *          returns true. Otherwise it aborts the running JDBC statement and returns false;
+ *          the future is then cancelled only if the transaction was rolled back, and
+ *          completes with the ApiResult as usual if the call committed anyway.
+ */
+public interface AsyncLibraryManagementSystem extends AutoCloseable {
+
+    /* Interface for books */
+
+    CompletableFuture<ApiResult> storeBook(Book book);
+
+    CompletableFuture<ApiResult> incBookStock(int bookId, int deltaStock);
+
+    CompletableFuture<ApiResult> storeBook(List<Book> books);
+
+    CompletableFuture<ApiResult> removeBook(int bookId);
+
+    CompletableFuture<ApiResult> modifyBookInfo(Book book);
+
+    CompletableFuture<ApiResult> queryBook(BookQueryConditions conditions);
+
+    CompletableFuture<ApiResult> stripeBookStock(int bookId, int stripes);
+
+    /* Interface for borrow & return books */
+
+    CompletableFuture<ApiResult> borrowBook(Borrow borrow);
+
+    CompletableFuture<ApiResult> returnBook(Borrow borrow);
+
+    CompletableFuture<ApiResult> showBorrowHistory(int cardId);
+
+    /* Interface for cards */
+
+    CompletableFuture<ApiResult> registerCard(Card card);
+
+    CompletableFuture<ApiResult> registerCards(List<Card> cards);
+
+    CompletableFuture<ApiResult> removeCard(int cardId);
+
+    CompletableFuture<ApiResult> removeCards(List<Integer> cardIds);
+
+    CompletableFuture<ApiResult> showCards();
+
+    CompletableFuture<ApiResult> topBorrowedBooks(String category, long from, long to, int k);
+
+    CompletableFuture<ApiResult> showDepartmentLoans(int k);
+
+    CompletableFuture<ApiResult> resetDatabase();
+
+    /**
+     * stop accepting calls, finish the ones in flight and release the connections.
+     */
+    @Override
+    void close();
+
+}
@@ -0,0 +1,340 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
+import utils.VirtualThreads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/*
+    AsyncLibraryManagementSystem over a pool of LibraryManagementSystemImpl objects, one per
+    connection. Calls run on the executor, which has one thread per connection unless another
+    executor is supplied. At most connections + maxPending calls are admitted at a time; beyond
+    that a call waits up to submitTimeoutMillis (0 by default) for room and otherwise fails
+    with "too many pending requests", so a burst cannot pile up unbounded work.
+ */
+public class AsyncLibraryManagementSystemImpl implements AsyncLibraryManagementSystem {
+
+    private final List<DatabaseConnector> connectors = new ArrayList<>();
+    private final List<LibraryManagementSystemImpl> libraries = new ArrayList<>();
+    private final BlockingQueue<LibraryManagementSystemImpl> idle;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private volatile long submitTimeoutMillis = 0;
+    private volatile boolean closed = false;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger runningCalls = new AtomicInteger();
+
+    public AsyncLibraryManagementSystemImpl(ConnectConfig conf, int connections, int maxPending) {
+        this(conf, connections, maxPending, null);
+    }
+
+    /**
+     * @param executor runs the calls and is shut down by close(); null for a pool with
+     *                 one platform thread per connection
+     */
+    public AsyncLibraryManagementSystemImpl(ConnectConfig conf, int connections, int maxPending,
+                                            ExecutorService executor) {
+        idle = new ArrayBlockingQueue<>(connections);
+        for (int i = 0; i < connections; ++i) {
+            DatabaseConnector connector = new DatabaseConnector(conf);
+            if (!connector.connect()) {
+                connectors.forEach(DatabaseConnector::release);
+                throw new IllegalStateException("failed to connect to database");
+            }
+            connectors.add(connector);
+            LibraryManagementSystemImpl library = new LibraryManagementSystemImpl(connector);
+            libraries.add(library);
+            idle.add(library);
+        }
+        permits = new Semaphore(connections + maxPending);
+        this.executor = executor != null ? executor : newWorkerPool(connections);
+    }
+
+    /**
+     * run every call on its own virtual thread on JDK 21+, falling back to the platform pool
+     * on older runtimes. Calls beyond the connections then wait for a library on a virtual
+     * thread, which costs no platform thread, so maxPending can be set much higher.
+     */
+    public static AsyncLibraryManagementSystemImpl withVirtualThreads(ConnectConfig conf, int connections,
+                                                                      int maxPending) {
+        ExecutorService executor = VirtualThreads.isSupported() ? VirtualThreads.newPerTaskExecutor() : null;
+        return new AsyncLibraryManagementSystemImpl(conf, connections, maxPending, executor);
+    }
+
+    private static ExecutorService newWorkerPool(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "library-async-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /*
+        one call: a future that runs itself on a pooled library. the lock orders cancel()
+        against the start of the call and the hand-back of the library, so a late cancel
+        never hits the next call. once started, cancel(true) only asks the library to abort;
+        the future reports the cancellation after the transaction failed and was rolled
+        back, and completes with the result as usual if it committed anyway.
+     */
+    private final class Call extends CompletableFuture<ApiResult> implements Runnable {
+        private final Function<LibraryManagementSystemImpl, ApiResult> op;
+        private final ReentrantLock lock = new ReentrantLock();
+        private LibraryManagementSystemImpl running;
+        private boolean started;
+        private volatile boolean aborted;
+
+        Call(Function<LibraryManagementSystemImpl, ApiResult> op) {
+            this.op = op;
+        }
+
+        @Override
+        public void run() {
+            ApiResult result;
+            try {
+                result = execute();
+            } finally {
+                /* free the slot before completing, a caller woken by the result may submit at once */
+                permits.release();
+            }
+            if (result == null) {
+                return;
+            }
+            if (aborted && !result.ok) {
+                super.cancel(false);
+            } else {
+                complete(result);
+            }
+        }
+
+        /* null if the call was cancelled before it started */
+        private ApiResult execute() {
+            if (isDone()) {
+                return null;
+            }
+            LibraryManagementSystemImpl library;
+            try {
+                library = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ApiResult(false, "interrupted");
+            }
+            try {
+                lock.lock();
+                try {
+                    if (isDone()) {
+                        return null;
+                    }
+                    library.clearCancel();
+                    running = library;
+                    started = true;
+                    runningCalls.incrementAndGet();
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    return op.apply(library);
+                } catch (RuntimeException e) {
+                    return new ApiResult(false, e.getMessage());
+                } finally {
+                    lock.lock();
+                    try {
+                        running = null;
+                        runningCalls.decrementAndGet();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } finally {
+                idle.add(library);
+            }
+        }
+
+        /* true only if the call had not started, a started call completes with its outcome */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            lock.lock();
+            try {
+                if (!started) {
+                    return super.cancel(mayInterruptIfRunning);
+                }
+                if (mayInterruptIfRunning && running != null) {
+                    aborted = true;
+                    running.cancel();
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private CompletableFuture<ApiResult> submit(Function<LibraryManagementSystemImpl, ApiResult> op) {
+        if (closed) {
+            return CompletableFuture.completedFuture(new ApiResult(false, "library closed"));
+        }
+        try {
+            if (!permits.tryAcquire(submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                return CompletableFuture.completedFuture(new ApiResult(false, "too many pending requests"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(new ApiResult(false, "interrupted"));
+        }
+        Call call = new Call(op);
+        try {
+            executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return CompletableFuture.completedFuture(new ApiResult(false, "library closed"));
+        }
+        return call;
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> storeBook(Book book) {
+        return submit(library -> library.storeBook(book));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> incBookStock(int bookId, int deltaStock) {
+        return submit(library -> library.incBookStock(bookId, deltaStock));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> storeBook(List<Book> books) {
+        return submit(library -> library.storeBook(books));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> removeBook(int bookId) {
+        return submit(library -> library.removeBook(bookId));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> modifyBookInfo(Book book) {
+        return submit(library -> library.modifyBookInfo(book));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> queryBook(BookQueryConditions conditions) {
+        return submit(library -> library.queryBook(conditions));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> stripeBookStock(int bookId, int stripes) {
+        return submit(library -> library.stripeBookStock(bookId, stripes));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> borrowBook(Borrow borrow) {
+        return submit(library -> library.borrowBook(borrow));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> returnBook(Borrow borrow) {
+        return submit(library -> library.returnBook(borrow));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> showBorrowHistory(int cardId) {
+        return submit(library -> library.showBorrowHistory(cardId));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> registerCard(Card card) {
+        return submit(library -> library.registerCard(card));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> registerCards(List<Card> cards) {
+        return submit(library -> library.registerCards(cards));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> removeCard(int cardId) {
+        return submit(library -> library.removeCard(cardId));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> removeCards(List<Integer> cardIds) {
+        return submit(library -> library.removeCards(cardIds));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> showCards() {
+        return submit(LibraryManagementSystemImpl::showCards);
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> topBorrowedBooks(String category, long from, long to, int k) {
+        return submit(library -> library.topBorrowedBooks(category, from, to, k));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> showDepartmentLoans(int k) {
+        return submit(library -> library.showDepartmentLoans(k));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> resetDatabase() {
+        return submit(LibraryManagementSystemImpl::resetDatabase);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connectors.forEach(DatabaseConnector::release);
+    }
+
+    /* configure every pooled library, e.g. to share a StripedLockManager */
+    public void forEachLibrary(Consumer<LibraryManagementSystemImpl> action) {
+        libraries.forEach(action);
+    }
+
+    /* how long a call may wait for room when the library is saturated, 0 fails at once */
+    public void setSubmitTimeoutMillis(long submitTimeoutMillis) {
+        this.submitTimeoutMillis = Math.max(0, submitTimeoutMillis);
+    }
+
+    /* calls turned away because too many were in flight */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /* calls that have started on a library and not finished yet */
+    public int getRunning() {
+        return runningCalls.get();
+    }
+
+    public int getConnections() {
+        return connectors.size();
+    }
+}
@@ -0,0 +1,271 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    opt-in pipelined borrow/return. borrowBook & returnBook put the call into a queue and
+    wait; worker threads, each with its own connection, take the first waiting call, keep
+    collecting until maxGroupSize calls are in hand or maxDelayMicros have passed since the
+    first one, and run the whole group as one transaction through
+    LibraryManagementSystemImpl#borrowAndReturn, so one commit is paid per group instead of
+    per call. Every caller still gets the ApiResult of its own call, a failing call does not
+    affect the others of its group.
+    maxDelayMicros = 0 only groups calls that are already waiting, which costs no latency
+    when the load is low. All other methods go straight to the delegate.
+ */
+public class GroupCommitLibrary implements LibraryManagementSystem, AutoCloseable {
+
+    private static final class Pending {
+        final LibraryManagementSystemImpl.BorrowOp op;
+        final CompletableFuture<ApiResult> result = new CompletableFuture<>();
+
+        Pending(LibraryManagementSystemImpl.BorrowOp op) {
+            this.op = op;
+        }
+    }
+
+    private final LibraryManagementSystem delegate;
+    private final List<DatabaseConnector> connectors = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final BlockingQueue<Pending> queue;
+    private final int maxGroupSize;
+    private final long maxDelayNanos;
+    private volatile boolean closed = false;
+
+    private final AtomicLong groups = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * @param delegate       serves every call other than borrow & return
+     * @param workers        number of worker threads, each holds one connection
+     * @param maxGroupSize   calls committed together at most
+     * @param maxDelayMicros how long a group may wait to fill up
+     */
+    public GroupCommitLibrary(LibraryManagementSystem delegate, ConnectConfig conf, int workers,
+                              int maxGroupSize, long maxDelayMicros) {
+        this.delegate = delegate;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+        this.maxDelayNanos = Math.max(0, maxDelayMicros) * 1000L;
+        /* bounded, so callers block instead of queueing without limit when the workers fall behind */
+        this.queue = new LinkedBlockingQueue<>(this.maxGroupSize * workers * 4);
+        for (int i = 0; i < workers; ++i) {
+            DatabaseConnector connector = new DatabaseConnector(conf);
+            if (!connector.connect()) {
+                connectors.forEach(DatabaseConnector::release);
+                throw new IllegalStateException("failed to connect to database");
+            }
+            connectors.add(connector);
+            LibraryManagementSystemImpl library = new LibraryManagementSystemImpl(connector);
+            String name = "library-group-commit-" + (i + 1);
+            Thread t = new Thread(() -> work(library), name);
+            t.setDaemon(true);
+            this.workers.add(t);
+        }
+        this.workers.forEach(Thread::start);
+    }
+
+    private void work(LibraryManagementSystemImpl library) {
+        List<Pending> group = new ArrayList<>(maxGroupSize);
+        List<LibraryManagementSystemImpl.BorrowOp> ops = new ArrayList<>(maxGroupSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                queue.drainTo(group, maxGroupSize - group.size());
+                while (group.size() < maxGroupSize) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                    queue.drainTo(group, maxGroupSize - group.size());
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            if (group.isEmpty()) {
+                continue;
+            }
+            for (Pending p : group) {
+                ops.add(p.op);
+            }
+            List<ApiResult> results;
+            try {
+                results = library.borrowAndReturn(ops);
+            } catch (RuntimeException e) {
+                results = new ArrayList<>();
+                for (int i = 0; i < group.size(); ++i) {
+                    results.add(new ApiResult(false, e.getMessage()));
+                }
+            }
+            groups.incrementAndGet();
+            calls.addAndGet(group.size());
+            for (int i = 0; i < group.size(); ++i) {
+                group.get(i).result.complete(results.get(i));
+            }
+            group.clear();
+            ops.clear();
+        }
+    }
+
+    private ApiResult submit(LibraryManagementSystemImpl.BorrowOp op) {
+        if (closed) {
+            return new ApiResult(false, "library closed");
+        }
+        Pending pending = new Pending(op);
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ApiResult(false, "interrupted");
+        }
+        /* close() may have stopped the workers and drained the queue between the check and the put */
+        if (closed && queue.remove(pending)) {
+            return new ApiResult(false, "library closed");
+        }
+        return pending.result.join();
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return submit(LibraryManagementSystemImpl.BorrowOp.borrow(borrow));
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return submit(LibraryManagementSystemImpl.BorrowOp.giveBack(borrow));
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        return delegate.storeBook(book);
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return delegate.incBookStock(bookId, deltaStock);
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        return delegate.storeBook(books);
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return delegate.removeBook(bookId);
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        return delegate.modifyBookInfo(book);
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return delegate.queryBook(conditions);
+    }
+
+    @Override
+    public ApiResult stripeBookStock(int bookId, int stripes) {
+        return delegate.stripeBookStock(bookId, stripes);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return delegate.showBorrowHistory(cardId);
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return delegate.registerCard(card);
+    }
+
+    @Override
+    public ApiResult registerCards(List<Card> cards) {
+        return delegate.registerCards(cards);
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return delegate.removeCard(cardId);
+    }
+
+    @Override
+    public ApiResult removeCards(List<Integer> cardIds) {
+        return delegate.removeCards(cardIds);
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return delegate.showCards();
+    }
+
+    @Override
+    public ApiResult topBorrowedBooks(String category, long from, long to, int k) {
+        return delegate.topBorrowedBooks(category, from, to, k);
+    }
+
+    @Override
+    public ApiResult showDepartmentLoans(int k) {
+        return delegate.showDepartmentLoans(k);
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return delegate.resetDatabase();
+    }
+
+    /* finish the queued calls, stop the workers and release their connections */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Pending p; (p = queue.poll()) != null; ) {
+            p.result.complete(new ApiResult(false, "library closed"));
+        }
+        connectors.forEach(DatabaseConnector::release);
+    }
+
+    /* transactions committed by the workers */
+    public long getGroups() {
+        return groups.get();
+    }
+
+    /* borrow & return calls served */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public double getAverageGroupSize() {
+        long g = groups.get();
+        return g == 0 ? 0 : (double) calls.get() / g;
+    }
+}
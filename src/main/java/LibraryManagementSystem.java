@@ -107,6 +107,19 @@ public interface LibraryManagementSystem {
      */
     ApiResult queryBook(BookQueryConditions conditions);
 
+    /**
+     * split the stock of a popular book across several rows, so that
+     * concurrent borrows & returns of it do not all wait for one row lock.
+     *
+     * Note that:
+     *      (1) the stock reported by queryBook() stays exact.
+     *      (2) stripes = 0 folds the stock back into the book row.
+     *
+     * @param bookId the book to be striped
+     * @param stripes number of stock rows, 0 to turn striping off
+     */
+    ApiResult stripeBookStock(int bookId, int stripes);
+
     /* Interface for borrow & return books */
 
     /**
@@ -148,6 +161,20 @@ public interface LibraryManagementSystem {
      */
     ApiResult registerCard(Card card);
 
+    /**
+     * batch register cards.
+     *
+     * Note that:
+     *      (1) the whole batch is a single transaction. if one of the
+     *          cards already exists (or appears twice in the list), no
+     *          card should be registered.
+     *      (2) card_id should be stored to each card after successfully
+     *          completing this operation.
+     *
+     * @param cards list of cards to be registered
+     */
+    ApiResult registerCards(List<Card> cards);
+
     /**
      * simply remove a card.
      *
@@ -158,6 +185,17 @@ public interface LibraryManagementSystem {
      */
     ApiResult removeCard(int cardId);
 
+    /**
+     * batch remove cards.
+     *
+     * Note that the whole batch is a single transaction. if one of the
+     * cards does not exist or still has un-returned books, no card
+     * should be removed.
+     *
+     * @param cardIds cards to be removed
+     */
+    ApiResult removeCards(List<Integer> cardIds);
+
     /**
      * list all cards order by card_id.
      *
@@ -166,6 +204,32 @@ public interface LibraryManagementSystem {
      */
     ApiResult showCards();
 
+    /* Interface for circulation statistics */
+
+    /**
+     * the k most borrowed books of a category over a period, most borrowed first,
+     * ties by book_id ASC. counted per day by borrowBook, so whole days (UTC) are
+     * taken: every day that overlaps [from, to).
+     *
+     * @param category null for all categories
+     * @param from     borrow_time the period starts at
+     * @param to       borrow_time the period ends before
+     * @param k        number of books at most
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.PopularBooks}
+     */
+    ApiResult topBorrowedBooks(String category, long from, long to, int k);
+
+    /**
+     * books currently lent out per department, most first, ties by department ASC.
+     * departments without open loans are left out.
+     *
+     * @param k number of departments at most, 0 for all
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.DepartmentLoans}
+     */
+    ApiResult showDepartmentLoans(int k);
+
     /**
      * reset database to its initial state.
      * you are not allowed to complete & modify this function.
@@ -2,18 +2,73 @@ import entities.Book;
 import entities.Borrow;
 import entities.Card;
 import queries.*;
+import utils.ConnectConfig;
 import utils.DBInitializer;
 import utils.DatabaseConnector;
+import utils.DatabaseType;
+import utils.IdAllocator;
+import utils.ResetMode;
+import utils.StripedLockManager;
+import utils.TransactionExecutor;
+import utils.UniqueClock;
 
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class LibraryManagementSystemImpl implements LibraryManagementSystem {
 
+    /*
+        max rows bound to a single multi-row statement by the batch interfaces,
+        400 books * 5 key columns stays below SqlServer's 2100 parameter limit.
+     */
+    private static final int BATCH_CHUNK = 400;
+
+    /* borrow_time (ms) per bucket of book_daily_borrows */
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    /* rows per department in department_loans, picked by card_id */
+    private static final int DEPARTMENT_STRIPES = 8;
+
+    /* exact stock of a book, striped books keep their stock in book_stock_stripe */
+    private static final String TOTAL_STOCK = "CASE WHEN book.stripes = 0 THEN book.stock ELSE book.stock + " +
+            "(SELECT COALESCE(SUM(s.stock), 0) FROM book_stock_stripe s WHERE s.book_id = book.book_id) END";
+
+    /*
+        how incBookStock & modifyBookInfo protect the book row:
+        PESSIMISTIC locks it for the whole transaction, OPTIMISTIC reads it
+        without locks and writes with a compare-and-set on book.version.
+     */
+    public enum ConcurrencyMode {
+        PESSIMISTIC,
+        OPTIMISTIC
+    }
+
     private final DatabaseConnector connector;
+    private final TransactionExecutor tx;
+    private ConcurrencyMode concurrencyMode = ConcurrencyMode.PESSIMISTIC;
+    /* compare-and-set attempts before an optimistic write gives up */
+    private int optimisticAttempts = 16;
+    /*
+        book_id -> stripes of books known to be striped. only a hint: both stock paths
+        detect a stale entry (no matching row) and fall back to the other one.
+     */
+    private final Map<Integer, Integer> stripedBooks = new ConcurrentHashMap<>();
+    private volatile StripedLockManager lockManager;
+    /* hands out book_id / card_id before the insert, null to use the identity columns */
+    private volatile IdAllocator idAllocator;
+    /* statement currently executing on behalf of this object, target of cancel() */
+    private volatile Statement current;
+    /* set by cancel(), refuses every later statement until clearCancel() */
+    private volatile boolean cancelled;
+    private volatile ResetMode resetMode;
+    /* urls of the databases whose tables this process created, the only ones reset by truncation */
+    private static final Set<String> createdSchemas = ConcurrentHashMap.newKeySet();
+
     public LibraryManagementSystemImpl(DatabaseConnector connector) {
         this.connector = connector;
+        this.tx = new TransactionExecutor(connector);
+        this.resetMode = connector.getConf().getResetMode();
     }
 
     @Override
@@ -25,9 +80,13 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
         需要根据数据库中自增列生成的book_id去更新book对象里的book_id。
     */
     public ApiResult storeBook(Book book) {
-        Connection conn = connector.getConn();
-        try{
-            conn.setAutoCommit(false);
+        return tx.execute(conn -> {
+            if (isPostgres() && idAllocator == null) {
+                if (!insertBooksReturning(conn, Collections.singletonList(book))) {
+                    return new ApiResult(false, "Insertion failed : book already exists.");
+                }
+                return new ApiResult(true, "Successfully storing a book.");
+            }
             String category = book.getCategory();
             String title = book.getTitle();
             String press = book.getPress();
@@ -37,7 +96,7 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             int stock = book.getStock();
             String que_exist = "SELECT * FROM book WHERE " +
                     "category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ?";
-            PreparedStatement que_stmt = conn.prepareStatement(que_exist);
+            PreparedStatement que_stmt = prepare(conn, que_exist);
             que_stmt.setString(1, category);
             que_stmt.setString(2, title);
             que_stmt.setString(3, press);
@@ -45,12 +104,17 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             que_stmt.setString(5, author);
             ResultSet ret = que_stmt.executeQuery();
             if(ret.next()) {
-                rollback(conn);
                 return new ApiResult(false, "Insertion failed : book already exists.");
             }
+            if (idAllocator != null) {
+                if (!insertBooksWithIds(conn, Collections.singletonList(book))) {
+                    return new ApiResult(false, "store book failed");
+                }
+                return new ApiResult(true, "Successfully storing a book.");
+            }
             String insert_book = "INSERT INTO book (category, title, press, publish_year, author, price, stock) " +
                     "VALUES(?, ?, ?, ?, ?, ?, ?)";
-            PreparedStatement insert_stmt = conn.prepareStatement(insert_book, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement insert_stmt = prepare(conn, insert_book, Statement.RETURN_GENERATED_KEYS);
             insert_stmt.setString(1, category);
             insert_stmt.setString(2, title);
             insert_stmt.setString(3, press);
@@ -60,20 +124,15 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             insert_stmt.setInt(7, stock);
             int len = insert_stmt.executeUpdate();
             if(len != 1){
-                rollback(conn);
                 return new ApiResult(false, "store book failed");
             }
             assert(len == 1);
-            commit(conn);
             ResultSet ret2 = insert_stmt.getGeneratedKeys();
             if(ret2.next()) {
                 book.setBookId(ret2.getInt(1));
             }
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
-        return new ApiResult(true, "Successfully storing a book.");
+            return new ApiResult(true, "Successfully storing a book.");
+        });
     }
 
     /*
@@ -82,110 +141,246 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
      */
     @Override
     public ApiResult incBookStock(int bookId, int deltaStock) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-            String query_sql = "SELECT * FROM book WHERE book_id = ?";
-            PreparedStatement que_stmt = conn.prepareStatement(query_sql);
+        if (concurrencyMode == ConcurrencyMode.OPTIMISTIC) {
+            return incBookStockOptimistic(bookId, deltaStock);
+        }
+        /* a single conditional UPDATE is atomic, it does not need SERIALIZABLE */
+        try (StripedLockManager.Guard ignored = lockFor(StripedLockManager.NONE, bookId)) {
+            return tx.execute(conn -> applyStockDelta(conn, bookId, deltaStock, 0));
+        }
+    }
+
+    /*
+        在当前事务中修改库存但不提交，供incBookStock、借书和还书共用。
+        用一条带条件的UPDATE完成检查和修改，避免先读后写时共享锁升级造成的死锁。
+        分条存储库存的热门图书改为修改book_stock_stripe中的某一条，不再锁book行。
+        deltaLoans同时修改同一行上的未还借阅计数open_loans，借书为1，还书为-1。
+     */
+    private ApiResult applyStockDelta(Connection conn, int bookId, int deltaStock, int deltaLoans) throws SQLException {
+        Integer stripes = stripedBooks.get(bookId);
+        if (stripes != null) {
+            ApiResult result = applyStripedDelta(conn, bookId, stripes, deltaStock, deltaLoans);
+            if (result != null) {
+                return result;
+            }
+            stripedBooks.remove(bookId);
+        }
+        String upd_sql = "UPDATE book SET stock = stock + ?, open_loans = open_loans + ?, version = version + 1 " +
+                "WHERE book_id = ? AND stripes = 0 AND stock + ? >= 0";
+        PreparedStatement upd_stmt = prepare(conn, upd_sql);
+        upd_stmt.setInt(1, deltaStock);
+        upd_stmt.setInt(2, deltaLoans);
+        upd_stmt.setInt(3, bookId);
+        upd_stmt.setInt(4, deltaStock);
+        int len = upd_stmt.executeUpdate();
+        upd_stmt.close();
+        if (len == 1) {
+            return new ApiResult(true, "Successfully updating stock.");
+        }
+        PreparedStatement que_stmt = prepare(conn, "SELECT stripes FROM book WHERE book_id = ?");
+        que_stmt.setInt(1, bookId);
+        ResultSet ret = que_stmt.executeQuery();
+        if (!ret.next()) {
+            que_stmt.close();
+            return new ApiResult(false, "Book not exist");
+        }
+        int current = ret.getInt("stripes");
+        que_stmt.close();
+        if (current > 0) {
+            stripedBooks.put(bookId, current);
+            ApiResult result = applyStripedDelta(conn, bookId, current, deltaStock, deltaLoans);
+            if (result != null) {
+                return result;
+            }
+        }
+        return new ApiResult(false, "new_stock < 0");
+    }
+
+    /*
+        分条库存的修改：随机选一条，减库存时若该条不够则在库存足够的条中再随机选，
+        都不够时按顺序从各条凑齐。返回null表示该书已不再分条(stripe行不存在)。
+        借阅计数记在被修改的那一条上，单条的计数可以为负，只有各条之和有意义。
+     */
+    private ApiResult applyStripedDelta(Connection conn, int bookId, int stripes, int deltaStock,
+                                        int deltaLoans) throws SQLException {
+        PreparedStatement upd_stmt = prepare(conn, "UPDATE book_stock_stripe SET stock = stock + ?, " +
+                "open_loans = open_loans + ? WHERE book_id = ? AND stripe = ? AND stock + ? >= 0");
+        upd_stmt.setInt(1, deltaStock);
+        upd_stmt.setInt(2, deltaLoans);
+        upd_stmt.setInt(3, bookId);
+        upd_stmt.setInt(5, deltaStock);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        upd_stmt.setInt(4, random.nextInt(stripes));
+        if (upd_stmt.executeUpdate() == 1) {
+            upd_stmt.close();
+            return new ApiResult(true, "Successfully updating stock.");
+        }
+        PreparedStatement que_stmt = prepare(conn, 
+                "SELECT stripe, stock FROM book_stock_stripe WHERE book_id = ? ORDER BY stripe");
+        que_stmt.setInt(1, bookId);
+        ResultSet ret = que_stmt.executeQuery();
+        List<int[]> rows = new ArrayList<>();
+        long total = 0;
+        while (ret.next()) {
+            rows.add(new int[]{ret.getInt("stripe"), ret.getInt("stock")});
+            total += ret.getInt("stock");
+        }
+        que_stmt.close();
+        if (rows.isEmpty()) {
+            upd_stmt.close();
+            return null;
+        }
+        if (total + deltaStock < 0) {
+            upd_stmt.close();
+            return new ApiResult(false, "new_stock < 0");
+        }
+        List<Integer> candidates = new ArrayList<>();
+        for (int[] row : rows) {
+            if (row[1] + deltaStock >= 0) {
+                candidates.add(row[0]);
+            }
+        }
+        if (!candidates.isEmpty()) {
+            upd_stmt.setInt(4, candidates.get(random.nextInt(candidates.size())));
+            int len = upd_stmt.executeUpdate();
+            upd_stmt.close();
+            if (len != 1) {
+                throw versionConflict();
+            }
+            return new ApiResult(true, "Successfully updating stock.");
+        }
+        upd_stmt.close();
+        PreparedStatement take_stmt = prepare(conn, "UPDATE book_stock_stripe SET stock = stock - ? " +
+                "WHERE book_id = ? AND stripe = ? AND stock >= ?");
+        int remaining = -deltaStock;
+        for (int[] row : rows) {
+            int take = Math.min(row[1], remaining);
+            if (take <= 0) {
+                continue;
+            }
+            take_stmt.setInt(1, take);
+            take_stmt.setInt(2, bookId);
+            take_stmt.setInt(3, row[0]);
+            take_stmt.setInt(4, take);
+            if (take_stmt.executeUpdate() != 1) {
+                throw versionConflict();
+            }
+            remaining -= take;
+            if (remaining == 0) {
+                break;
+            }
+        }
+        take_stmt.close();
+        if (deltaLoans != 0) {
+            PreparedStatement loan_stmt = prepare(conn, "UPDATE book_stock_stripe SET open_loans = open_loans + ? " +
+                    "WHERE book_id = ? AND stripe = ?");
+            loan_stmt.setInt(1, deltaLoans);
+            loan_stmt.setInt(2, bookId);
+            loan_stmt.setInt(3, rows.get(0)[0]);
+            loan_stmt.executeUpdate();
+            loan_stmt.close();
+        }
+        return new ApiResult(true, "Successfully updating stock.");
+    }
+
+    /*
+        乐观并发模式下的增加库存：不加锁读取库存和版本号，
+        再用 UPDATE ... WHERE version = ? 比较并交换，冲突时由事务执行器退避重试。
+     */
+    private ApiResult incBookStockOptimistic(int bookId, int deltaStock) {
+        return tx.execute(Connection.TRANSACTION_READ_COMMITTED, optimisticAttempts, conn -> {
+            PreparedStatement que_stmt = prepare(conn, 
+                    "SELECT stock, version, stripes FROM book WHERE book_id = ?");
             que_stmt.setInt(1, bookId);
             ResultSet ret = que_stmt.executeQuery();
-            if(!ret.next()) {
-                rollback(conn);
+            if (!ret.next()) {
                 return new ApiResult(false, "Book not exist");
             }
+            if (ret.getInt("stripes") > 0) {
+                que_stmt.close();
+                return applyStockDelta(conn, bookId, deltaStock, 0);
+            }
             int new_stock = ret.getInt("stock") + deltaStock;
-
-            if(new_stock < 0) {
-                rollback(conn);
+            int version = ret.getInt("version");
+            que_stmt.close();
+            if (new_stock < 0) {
                 return new ApiResult(false, "new_stock < 0");
             }
-            assert(new_stock >= 0);
-            String upd_sql = "UPDATE book SET stock = ? WHERE book_id = ?";
-            PreparedStatement upd_stmt = conn.prepareStatement(upd_sql);
+            PreparedStatement upd_stmt = prepare(conn, 
+                    "UPDATE book SET stock = ?, version = version + 1 WHERE book_id = ? AND version = ?");
             upd_stmt.setInt(1, new_stock);
             upd_stmt.setInt(2, bookId);
-            int ret2 = upd_stmt.executeUpdate();
-            if(ret2 != 1) {
-                rollback(conn);
-                return new ApiResult(false, "Set stock failed");
+            upd_stmt.setInt(3, version);
+            int len = upd_stmt.executeUpdate();
+            upd_stmt.close();
+            if (len != 1) {
+                throw versionConflict();
             }
-            commit(conn);
-        }   catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
-        return new ApiResult(true, "Successfully updating stock.");
+            return new ApiResult(true, "Successfully updating stock.");
+        });
     }
 
     /*
         图书批量入库模块。批量入库图书，
         如果有一本书入库失败，那么就需要回滚整个事务(即所有的书都不能被入库)。
+        查重时按<类别, 书名, 出版社, 年份, 作者>分块批量查询，插入时使用executeBatch()。
      */
     @Override
     public ApiResult storeBook(List<Book> books) {
-        Connection conn = connector.getConn();
-        try{
-            conn.setAutoCommit(false);
-            for(int i = 0; i < books.size(); ++i)
-                for(int j = i + 1; j < books.size(); ++j) {
-                    Book _i = books.get(i);
-                    Book _j = books.get(j);
-                    if(_i.getTitle() == _j.getTitle()
-                      && _i.getAuthor() == _j.getAuthor()
-                      && _i.getPress() == _j.getPress()
-                      && _i.getCategory() == _j.getCategory()
-                      && _i.getPublishYear() == _j.getPublishYear()
-                    ) {
-                        rollback(conn);
-                        return new ApiResult(false, "Insertion failed : book already exists.");
-                    }
+        return tx.execute(conn -> {
+            if (new HashSet<>(books).size() != books.size()) {
+                return new ApiResult(false, "Insertion failed : book already exists.");
+            }
+            if (isPostgres() && idAllocator == null) {
+                if (!insertBooksReturning(conn, books)) {
+                    return new ApiResult(false, "Insertion failed : book already exists.");
                 }
-            for(int i = 0; i < books.size(); ++i) {
-                Book book = books.get(i);
-                String category = book.getCategory();
-                String title = book.getTitle();
-                String press = book.getPress();
-                int publishYear = book.getPublishYear();
-                String author = book.getAuthor();
-                double price = book.getPrice();
-                int stock = book.getStock();
-                String que_exist = "SELECT * FROM book WHERE " +
-                        "category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ?";
-                PreparedStatement que_stmt = conn.prepareStatement(que_exist);
-                que_stmt.setString(1, category);
-                que_stmt.setString(2, title);
-                que_stmt.setString(3, press);
-                que_stmt.setInt(4, publishYear);
-                que_stmt.setString(5, author);
+                return new ApiResult(true, "Successfully storing books.");
+            }
+            for (int from = 0; from < books.size(); from += BATCH_CHUNK) {
+                List<Book> chunk = books.subList(from, Math.min(from + BATCH_CHUNK, books.size()));
+                PreparedStatement que_stmt = prepareBookKeyQuery(conn, "SELECT book_id FROM book", chunk);
                 ResultSet ret = que_stmt.executeQuery();
                 if(ret.next()) {
-                    rollback(conn);
                     return new ApiResult(false, "Insertion failed : book already exists.");
                 }
-                String insert_book = "INSERT INTO book (category, title, press, publish_year, author, price, stock) " +
-                        "VALUES(?, ?, ?, ?, ?, ?, ?)";
-                PreparedStatement insert_stmt = conn.prepareStatement(insert_book, Statement.RETURN_GENERATED_KEYS);
-                insert_stmt.setString(1, category);
-                insert_stmt.setString(2, title);
-                insert_stmt.setString(3, press);
-                insert_stmt.setInt(4, publishYear);
-                insert_stmt.setString(5, author);
-                insert_stmt.setDouble(6, price);
-                insert_stmt.setInt(7, stock);
-                int len = insert_stmt.executeUpdate();
-                assert(len == 1);
-                ResultSet ret2 = insert_stmt.getGeneratedKeys();
-                if(ret2.next()) {
-                    book.setBookId(ret2.getInt(1));
+                que_stmt.close();
+            }
+            if (idAllocator != null) {
+                if (!insertBooksWithIds(conn, books)) {
+                    return new ApiResult(false, "store books failed");
+                }
+                return new ApiResult(true, "Successfully storing books.");
+            }
+            String insert_book = "INSERT INTO book (category, title, press, publish_year, author, price, stock) " +
+                    "VALUES(?, ?, ?, ?, ?, ?, ?)";
+            PreparedStatement insert_stmt = prepare(conn, insert_book, Statement.RETURN_GENERATED_KEYS);
+            for (Book book : books) {
+                insert_stmt.setString(1, book.getCategory());
+                insert_stmt.setString(2, book.getTitle());
+                insert_stmt.setString(3, book.getPress());
+                insert_stmt.setInt(4, book.getPublishYear());
+                insert_stmt.setString(5, book.getAuthor());
+                insert_stmt.setDouble(6, book.getPrice());
+                insert_stmt.setInt(7, book.getStock());
+                insert_stmt.addBatch();
+            }
+            int[] lens = insert_stmt.executeBatch();
+            for (int len : lens) {
+                if (len != 1 && len != Statement.SUCCESS_NO_INFO) {
+                    return new ApiResult(false, "store books failed");
                 }
             }
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
-        return new ApiResult(true, "Successfully storing books.");
+            int[] keys = generatedKeys(insert_stmt, books.size());
+            if (keys != null) {
+                for (int i = 0; i < books.size(); ++i) {
+                    books.get(i).setBookId(keys[i]);
+                }
+            } else {
+                resolveBookIds(conn, books);
+            }
+            return new ApiResult(true, "Successfully storing books.");
+        });
     }
 
     /*
@@ -193,39 +388,28 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
      */
     @Override
     public ApiResult removeBook(int bookId) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            String book_sql = "SELECT * FROM book WHERE book_id = ?";
-            PreparedStatement book_stmt = conn.prepareStatement(book_sql);
-            book_stmt.setInt(1, bookId);
-            ResultSet ret0 = book_stmt.executeQuery();
-            if(!ret0.next()) {
-                rollback(conn);
-                return new ApiResult(false, "book not exists");
-            }
-            String que_sql = "SELECT * FROM borrow WHERE book_id = ? AND return_time = 0";
-            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
-            que_stmt.setInt(1, bookId);
-            ResultSet ret = que_stmt.executeQuery();
-            if(ret.next()){
-                rollback(conn);
-                return new ApiResult(false, "book been borrowed");
-            }
-            String del_sql = "DELETE FROM book WHERE book_id = ?";
-            PreparedStatement del_stmt = conn.prepareStatement(del_sql);
-            del_stmt.setInt(1, bookId);
-            int ret2 = del_stmt.executeUpdate();
-            if(ret2 != 1) {
-                rollback(conn);
-                return new ApiResult(false, "fail to remove book");
-            }
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+        try (StripedLockManager.Guard ignored = lockFor(StripedLockManager.NONE, bookId)) {
+            return tx.execute(conn -> {
+                String book_sql = "SELECT * FROM book WHERE book_id = ?";
+                PreparedStatement book_stmt = prepare(conn, book_sql);
+                book_stmt.setInt(1, bookId);
+                ResultSet ret0 = book_stmt.executeQuery();
+                if(!ret0.next()) {
+                    return new ApiResult(false, "book not exists");
+                }
+                // 未还借阅数记在book行和各stripe行上，不再扫描借书记录
+                String del_sql = "DELETE FROM book WHERE book_id = ? AND open_loans + " +
+                        "(SELECT COALESCE(SUM(s.open_loans), 0) FROM book_stock_stripe s WHERE s.book_id = ?) = 0";
+                PreparedStatement del_stmt = prepare(conn, del_sql);
+                del_stmt.setInt(1, bookId);
+                del_stmt.setInt(2, bookId);
+                int ret2 = del_stmt.executeUpdate();
+                if(ret2 != 1) {
+                    return new ApiResult(false, "book been borrowed");
+                }
+                return new ApiResult(true, null);
+            });
         }
-        return new ApiResult(true, null);
     }
 
     /*
@@ -233,23 +417,23 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
      */
     @Override
     public ApiResult modifyBookInfo(Book book) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
+        if (concurrencyMode == ConcurrencyMode.OPTIMISTIC) {
+            return modifyBookInfoOptimistic(book);
+        }
+        return tx.execute(conn -> {
             String query_sql = "SELECT * FROM book WHERE book_id = ?";
-            PreparedStatement que_stmt = conn.prepareStatement(query_sql);
+            PreparedStatement que_stmt = prepare(conn, query_sql);
             que_stmt.setInt(1, book.getBookId());
             ResultSet ret = que_stmt.executeQuery();
             if(!ret.next()) {
-                rollback(conn);
                 return new ApiResult(false, "Book not exist");
             }
 
             String upd_sql = "UPDATE book SET category = ?, title = ?, " +
                     "press = ?, publish_year = ?, " +
-                    "author = ?, price = ? " +
+                    "author = ?, price = ?, version = version + 1 " +
                     "WHERE book_id = ?";
-            PreparedStatement upd_stmt = conn.prepareStatement(upd_sql);
+            PreparedStatement upd_stmt = prepare(conn, upd_sql);
             upd_stmt.setString(1, book.getCategory());
             upd_stmt.setString(2, book.getTitle());
             upd_stmt.setString(3, book.getPress());
@@ -259,15 +443,45 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             upd_stmt.setInt(7, book.getBookId());
             int ret2 = upd_stmt.executeUpdate();
             if(ret2 != 1) {
-                rollback(conn);
                 return new ApiResult(false, "Set information failed");
             }
-            commit(conn);
-        }   catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
-        return new ApiResult(true, "Successfully updating stock.");
+            return new ApiResult(true, "Successfully updating stock.");
+        });
+    }
+
+    /*
+        乐观并发模式下的图书修改：读取当前版本号后按版本号比较并交换，
+        若期间有其他事务修改了该书则退避重试。成功后将新版本号写回book。
+     */
+    private ApiResult modifyBookInfoOptimistic(Book book) {
+        return tx.execute(Connection.TRANSACTION_READ_COMMITTED, optimisticAttempts, conn -> {
+            PreparedStatement que_stmt = prepare(conn, "SELECT version FROM book WHERE book_id = ?");
+            que_stmt.setInt(1, book.getBookId());
+            ResultSet ret = que_stmt.executeQuery();
+            if (!ret.next()) {
+                return new ApiResult(false, "Book not exist");
+            }
+            int version = ret.getInt("version");
+            que_stmt.close();
+            PreparedStatement upd_stmt = prepare(conn, "UPDATE book SET category = ?, title = ?, " +
+                    "press = ?, publish_year = ?, author = ?, price = ?, version = version + 1 " +
+                    "WHERE book_id = ? AND version = ?");
+            upd_stmt.setString(1, book.getCategory());
+            upd_stmt.setString(2, book.getTitle());
+            upd_stmt.setString(3, book.getPress());
+            upd_stmt.setInt(4, book.getPublishYear());
+            upd_stmt.setString(5, book.getAuthor());
+            upd_stmt.setDouble(6, book.getPrice());
+            upd_stmt.setInt(7, book.getBookId());
+            upd_stmt.setInt(8, version);
+            int len = upd_stmt.executeUpdate();
+            upd_stmt.close();
+            if (len != 1) {
+                throw versionConflict();
+            }
+            book.setVersion(version + 1);
+            return new ApiResult(true, "Successfully updating stock.");
+        });
     }
 
     /*
@@ -278,10 +492,8 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
      */
     @Override
     public ApiResult queryBook(BookQueryConditions conditions) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            String search_sql = "SELECT * FROM book WHERE " +
+        return tx.execute(conn -> {
+            String search_sql = "SELECT book.*, " + TOTAL_STOCK + " AS total_stock FROM book WHERE " +
                     (conditions.getCategory() == null ? "1=1" : "category = ?") +
                     " AND " +
                     (conditions.getTitle() == null ? "1=1" : "title LIKE ?") +
@@ -297,12 +509,13 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                     (conditions.getMinPrice() == null ? "1=1" : "price >= ?") +
                     " AND " +
                     (conditions.getMaxPrice() == null ? "1=1" : "price <= ?")
-                    + " ORDER BY " + conditions.getSortBy() + " " + conditions.getSortOrder()
+                    + " ORDER BY " + (conditions.getSortBy() == Book.SortColumn.STOCK ? "total_stock" : conditions.getSortBy())
+                    + " " + conditions.getSortOrder()
                     + ", book_id ASC";
 
             List<Book> books = new ArrayList<>();
             int index = 0;
-            PreparedStatement stmt = conn.prepareStatement(search_sql);
+            PreparedStatement stmt = prepare(conn, search_sql);
             if(conditions.getCategory() != null) {
                 ++index;
                 stmt.setString(index, conditions.getCategory());
@@ -345,121 +558,344 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 book.setAuthor(ret.getString("author"));
                 book.setPress(ret.getString("press"));
                 book.setPrice(ret.getDouble("price"));
-                book.setStock(ret.getInt("stock"));
+                book.setStock(ret.getInt("total_stock"));
+                book.setVersion(ret.getInt("version"));
                 books.add(book);
             }
             return new ApiResult(true, null, new BookQueryResults(books));
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+        });
+    }
+
+    /*
+        热门图书分条存储库存。先锁住该书全部的stripe行，把现有库存(book.stock与各条之和)
+        收回，再平均分到stripes条中；stripes为0时收回到book.stock，恢复普通模式。
+     */
+    @Override
+    public ApiResult stripeBookStock(int bookId, int stripes) {
+        if (stripes < 0) {
+            return new ApiResult(false, "stripes < 0");
         }
+        return tx.execute(conn -> {
+            PreparedStatement lock_stmt = prepare(conn, 
+                    "UPDATE book SET version = version + 1 WHERE book_id = ?");
+            lock_stmt.setInt(1, bookId);
+            if (lock_stmt.executeUpdate() != 1) {
+                return new ApiResult(false, "Book not exist");
+            }
+            lock_stmt.close();
+            PreparedStatement lock_stripes = prepare(conn, 
+                    "UPDATE book_stock_stripe SET stock = stock WHERE book_id = ?");
+            lock_stripes.setInt(1, bookId);
+            lock_stripes.executeUpdate();
+            lock_stripes.close();
+            PreparedStatement que_stmt = prepare(conn, 
+                    "SELECT " + TOTAL_STOCK + " AS total_stock FROM book WHERE book_id = ?");
+            que_stmt.setInt(1, bookId);
+            ResultSet ret = que_stmt.executeQuery();
+            ret.next();
+            int total = ret.getInt("total_stock");
+            que_stmt.close();
+            // 各条上的未还借阅计数合并回book行
+            PreparedStatement fold_stmt = prepare(conn, "UPDATE book SET open_loans = open_loans + " +
+                    "(SELECT COALESCE(SUM(s.open_loans), 0) FROM book_stock_stripe s WHERE s.book_id = ?) WHERE book_id = ?");
+            fold_stmt.setInt(1, bookId);
+            fold_stmt.setInt(2, bookId);
+            fold_stmt.executeUpdate();
+            fold_stmt.close();
+            PreparedStatement del_stmt = prepare(conn, "DELETE FROM book_stock_stripe WHERE book_id = ?");
+            del_stmt.setInt(1, bookId);
+            del_stmt.executeUpdate();
+            del_stmt.close();
+            if (stripes > 0) {
+                PreparedStatement insert_stmt = prepare(conn, 
+                        "INSERT INTO book_stock_stripe (book_id, stripe, stock) VALUES(?, ?, ?)");
+                for (int i = 0; i < stripes; ++i) {
+                    insert_stmt.setInt(1, bookId);
+                    insert_stmt.setInt(2, i);
+                    insert_stmt.setInt(3, total / stripes + (i < total % stripes ? 1 : 0));
+                    insert_stmt.addBatch();
+                }
+                insert_stmt.executeBatch();
+                insert_stmt.close();
+            }
+            PreparedStatement upd_stmt = prepare(conn, 
+                    "UPDATE book SET stock = ?, stripes = ? WHERE book_id = ?");
+            upd_stmt.setInt(1, stripes > 0 ? 0 : total);
+            upd_stmt.setInt(2, stripes);
+            upd_stmt.setInt(3, bookId);
+            upd_stmt.executeUpdate();
+            upd_stmt.close();
+            if (stripes > 0) {
+                stripedBooks.put(bookId, stripes);
+            } else {
+                stripedBooks.remove(bookId);
+            }
+            return new ApiResult(true, null);
+        });
     }
 
     /*
         借书模块。根据给定的书号、卡号和借书时间添加一条借书记录，
         然后更新库存。若用户此前已经借过这本书但尚未归还，那么借书操作将失败。
+        借书时间为0时由UniqueClock填写。
      */
     @Override
     public ApiResult borrowBook(Borrow borrow) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-            String que_sql = "SELECT * FROM borrow WHERE card_id = ? AND book_id = ? AND return_time = 0 FOR UPDATE";
-            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
+        stampBorrow(borrow);
+        try (StripedLockManager.Guard ignored = lockFor(borrow.getCardId(), borrow.getBookId())) {
+            return tx.execute(Connection.TRANSACTION_SERIALIZABLE, conn -> borrow(conn, borrow));
+        }
+    }
+
+    private ApiResult borrow(Connection conn, Borrow borrow) throws SQLException {
+        // 先锁住book行再访问open_loan和card，借书和还书按相同顺序加锁，避免死锁
+        if(!applyStockDelta(conn, borrow.getBookId(), -1, 1).ok) {
+            return new ApiResult(false, "failed to update stock");
+        }
+        // 未还的借阅只在open_loan中按主键查找，不再扫描全部借书记录
+        // borrowAndReturn跑一组操作都在同一个连接上，语句在每条路径上都要关闭
+        String que_sql = "SELECT borrow_time FROM open_loan WHERE card_id = ? AND book_id = ? FOR UPDATE";
+        try (PreparedStatement que_stmt = prepare(conn, que_sql)) {
             que_stmt.setInt(1, borrow.getCardId());
             que_stmt.setInt(2, borrow.getBookId());
-            ResultSet ret = que_stmt.executeQuery();
-            if(ret.next()) {
-                rollback(conn);
+            if(que_stmt.executeQuery().next()) {
                 return new ApiResult(false, "Has not return yet");
             }
-            que_stmt.close();
-
-            if(!incBookStock(borrow.getBookId(), -1).ok) {
-                rollback(conn);
-                return new ApiResult(false, "failed to update stock");
-            }
-            String insert_sql = "INSERT INTO borrow (card_id, book_id, borrow_time)" +
-                    " VALUES(?, ?, ?)";
-            PreparedStatement insert_stmt = conn.prepareStatement(insert_sql);
-            insert_stmt.setInt(1, borrow.getCardId());
-            insert_stmt.setInt(2, borrow.getBookId());
-            insert_stmt.setLong(3, borrow.getBorrowTime());
-            int len = insert_stmt.executeUpdate();
-            insert_stmt.close();
-            if(len != 1) {
-                rollback(conn);
-                return new ApiResult(false, "failed to borrow");
-            }
-            commit(conn);
-            return new ApiResult(true, null);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
         }
+        String open_sql = "INSERT INTO open_loan (card_id, book_id, borrow_time) VALUES(?, ?, ?)";
+        PreparedStatement open_stmt = prepare(conn, open_sql);
+        open_stmt.setInt(1, borrow.getCardId());
+        open_stmt.setInt(2, borrow.getBookId());
+        open_stmt.setLong(3, borrow.getBorrowTime());
+        open_stmt.executeUpdate();
+        open_stmt.close();
+        String insert_sql = "INSERT INTO borrow (card_id, book_id, borrow_time)" +
+                " VALUES(?, ?, ?)";
+        PreparedStatement insert_stmt = prepare(conn, insert_sql);
+        insert_stmt.setInt(1, borrow.getCardId());
+        insert_stmt.setInt(2, borrow.getBookId());
+        insert_stmt.setLong(3, borrow.getBorrowTime());
+        int len = insert_stmt.executeUpdate();
+        insert_stmt.close();
+        if(len != 1) {
+            return new ApiResult(false, "failed to borrow");
+        }
+        if(!updateCardLoans(conn, borrow.getCardId(), 1)) {
+            return new ApiResult(false, "failed to borrow");
+        }
+        if(!updateCirculation(conn, borrow, 1)) {
+            return new ApiResult(false, "failed to borrow");
+        }
+        return new ApiResult(true, null);
     }
 
     /*
         还书模块。根据给定的书号、卡号和还书时间，查询对应的借书记录，
-        并补充归还时间，然后更新库存。
+        并补充归还时间，然后更新库存。还书时间为0时由UniqueClock填写。
      */
     @Override
     public ApiResult returnBook(Borrow borrow) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-            String que_sql = "SELECT * FROM borrow WHERE card_id = ? AND book_id = ? AND borrow_time = ?";
-            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
-            que_stmt.setInt(1, borrow.getCardId());
-            que_stmt.setInt(2, borrow.getBookId());
-            que_stmt.setLong(3, borrow.getBorrowTime());
-            if(borrow.getReturnTime() < borrow.getBorrowTime()) {
-                rollback(conn);
-                return new ApiResult(false, "return before borrow");
-            }
-            ResultSet ret = que_stmt.executeQuery();
-            if(!ret.next()) {
-                rollback(conn);
-                return new ApiResult(false, "No borrow record");
-            }
-            if(!incBookStock(borrow.getBookId(), 1).ok) {
-                rollback(conn);
-                return new ApiResult(false, "failed to update stock");
-            }
-            String insert_sql = "UPDATE borrow SET return_time = ? " +
-                    "WHERE card_id = ? AND book_id = ? AND borrow_time = ?";
-            PreparedStatement insert_stmt = conn.prepareStatement(insert_sql);
+        stampReturn(borrow);
+        try (StripedLockManager.Guard ignored = lockFor(borrow.getCardId(), borrow.getBookId())) {
+            return tx.execute(Connection.TRANSACTION_SERIALIZABLE, conn -> giveBack(conn, borrow));
+        }
+    }
+
+    private ApiResult giveBack(Connection conn, Borrow borrow) throws SQLException {
+        if(borrow.getReturnTime() < borrow.getBorrowTime()) {
+            return new ApiResult(false, "return before borrow");
+        }
+        // 与借书相同，先锁book行
+        if(!applyStockDelta(conn, borrow.getBookId(), 1, -1).ok) {
+            return new ApiResult(false, "failed to update stock");
+        }
+        String del_sql = "DELETE FROM open_loan WHERE card_id = ? AND book_id = ? AND borrow_time = ?";
+        PreparedStatement del_stmt = prepare(conn, del_sql);
+        del_stmt.setInt(1, borrow.getCardId());
+        del_stmt.setInt(2, borrow.getBookId());
+        del_stmt.setLong(3, borrow.getBorrowTime());
+        int open = del_stmt.executeUpdate();
+        del_stmt.close();
+        if(open != 1) {
+            return new ApiResult(false, "No borrow record");
+        }
+        String insert_sql = "UPDATE borrow SET return_time = ? " +
+                "WHERE card_id = ? AND book_id = ? AND borrow_time = ?";
+        int len;
+        try (PreparedStatement insert_stmt = prepare(conn, insert_sql)) {
             insert_stmt.setLong(1, borrow.getReturnTime());
             insert_stmt.setInt(2, borrow.getCardId());
             insert_stmt.setInt(3, borrow.getBookId());
             insert_stmt.setLong(4, borrow.getBorrowTime());
-            int len = insert_stmt.executeUpdate();
-            if(len != 1) {
-                rollback(conn);
-                return new ApiResult(false, "failed to return");
-            }
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            len = insert_stmt.executeUpdate();
+        }
+        if(len != 1) {
+            return new ApiResult(false, "failed to return");
+        }
+        if(!updateCardLoans(conn, borrow.getCardId(), -1)) {
+            return new ApiResult(false, "failed to return");
+        }
+        if(!updateCirculation(conn, borrow, -1)) {
+            return new ApiResult(false, "failed to return");
         }
         return new ApiResult(true, null);
     }
 
+    /* 修改借书证上的未还借阅计数，借书证不存在时返回false */
+    private boolean updateCardLoans(Connection conn, int cardId, int deltaLoans) throws SQLException {
+        PreparedStatement upd_stmt = prepare(conn, "UPDATE card SET open_loans = open_loans + ? WHERE card_id = ?");
+        upd_stmt.setInt(1, deltaLoans);
+        upd_stmt.setInt(2, cardId);
+        int len = upd_stmt.executeUpdate();
+        upd_stmt.close();
+        return len == 1;
+    }
+
+    /*
+        借还统计，与借还在同一事务中增量维护：借书时该书当天的借阅次数加一，
+        借书证所在院系的未还借阅数随借还加减。院系计数按card_id分散在几行上，
+        同一院系的并发借还不必排队等同一行的锁。院系直接在upsert语句里从card读出，
+        不再单独查询一次；借书证不存在时返回false。绕过借书接口直接写入borrow的历史记录不计入。
+     */
+    private boolean updateCirculation(Connection conn, Borrow borrow, int deltaLoans) throws SQLException {
+        DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+        if (deltaLoans > 0) {
+            PreparedStatement book_stmt = prepare(conn,
+                    initializer.sqlUpsertCounter("book_daily_borrows", "borrows", "book_id", "borrow_day"));
+            book_stmt.setInt(1, borrow.getBookId());
+            book_stmt.setInt(2, day(borrow.getBorrowTime()));
+            book_stmt.setInt(3, 1);
+            book_stmt.executeUpdate();
+            book_stmt.close();
+        }
+        // deltaLoans只会是1或-1，写成常量，不是所有数据库都能推断出select列表中参数的类型
+        String select = "SELECT department, card_id % " + DEPARTMENT_STRIPES + " AS stripe, " + deltaLoans +
+                " AS delta FROM card WHERE card_id = ?";
+        PreparedStatement dept_stmt = prepare(conn, initializer.sqlUpsertCounterFrom("department_loans", "loans",
+                select, "department", "stripe"));
+        dept_stmt.setInt(1, borrow.getCardId());
+        int len = dept_stmt.executeUpdate();
+        dept_stmt.close();
+        return len > 0;
+    }
+
+    /* bucket of book_daily_borrows holding a borrow_time, clamped for open-ended periods */
+    private static int day(long time) {
+        long day = Math.floorDiv(time, DAY_MILLIS);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, day));
+    }
+
+    /*
+        批量借还模块。在一个事务中依次执行一组借书/还书操作，每个操作对应一个结果。
+        每个操作前设置保存点，失败的操作只回滚到自己的保存点，不影响同组其他操作；
+        只有死锁等可重试错误会让整组回滚并重做。操作按书号做稳定排序后执行，
+        同一本书上的操作保持原有顺序，不同的组总是按相同顺序锁book行。
+        不经过lockManager。
+     */
+    public List<ApiResult> borrowAndReturn(List<BorrowOp> ops) {
+        Integer[] order = new Integer[ops.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> ops.get(i).borrow.getBookId()));
+        ApiResult[] results = new ApiResult[ops.size()];
+        ApiResult group = tx.execute(Connection.TRANSACTION_SERIALIZABLE, conn -> {
+            for (int i : order) {
+                BorrowOp op = ops.get(i);
+                Savepoint savepoint = conn.setSavepoint();
+                ApiResult result;
+                try {
+                    result = op.returning ? giveBack(conn, op.borrow) : borrow(conn, op.borrow);
+                } catch (SQLException e) {
+                    if (TransactionExecutor.classify(connector.getConf().getType(), e) != null) {
+                        throw e;
+                    }
+                    result = new ApiResult(false, e.getMessage());
+                }
+                if (!result.ok) {
+                    conn.rollback(savepoint);
+                }
+                results[i] = result;
+            }
+            return new ApiResult(true, null);
+        });
+        List<ApiResult> list = new ArrayList<>(results.length);
+        for (ApiResult result : results) {
+            list.add(group.ok ? result : group);
+        }
+        return list;
+    }
+
+    /* fill in a missing borrow time from the process clock */
+    private static void stampBorrow(Borrow borrow) {
+        if (borrow.getBorrowTime() == 0) {
+            borrow.setBorrowTime(UniqueClock.get().next());
+        }
+    }
+
+    /* fill in a missing return time, after the borrow time */
+    private static void stampReturn(Borrow borrow) {
+        if (borrow.getReturnTime() == 0) {
+            borrow.setReturnTime(UniqueClock.get().nextAfter(borrow.getBorrowTime()));
+        }
+    }
+
+    /* one borrow or return of borrowAndReturn */
+    public static final class BorrowOp {
+        private final Borrow borrow;
+        private final boolean returning;
+
+        private BorrowOp(Borrow borrow, boolean returning) {
+            this.borrow = borrow;
+            this.returning = returning;
+            if (returning) {
+                stampReturn(borrow);
+            } else {
+                stampBorrow(borrow);
+            }
+        }
+
+        public static BorrowOp borrow(Borrow borrow) {
+            return new BorrowOp(borrow, false);
+        }
+
+        public static BorrowOp giveBack(Borrow borrow) {
+            return new BorrowOp(borrow, true);
+        }
+
+        public Borrow getBorrow() {
+            return borrow;
+        }
+
+        public boolean isReturn() {
+            return returning;
+        }
+    }
+
     /*
         借书记录查询模块。查询某个用户的借书记录，
         按照借书时间递减、书号递增的方式排序。
      */
     @Override
     public ApiResult showBorrowHistory(int cardId) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            String show_sql = "SELECT * FROM borrow NATURAL JOIN book WHERE card_id = ? ORDER BY borrow_time DESC, book_id ASC";
-            PreparedStatement stmt = conn.prepareStatement(show_sql);
+        return tx.execute(conn -> {
+            // 借书证已删除、历史尚未清理完时，不返回残留的记录
+            PreparedStatement removed_stmt = prepare(conn, "SELECT card_id FROM removed_card WHERE card_id = ?");
+            removed_stmt.setInt(1, cardId);
+            boolean removed = removed_stmt.executeQuery().next();
+            removed_stmt.close();
+            if (removed) {
+                return new ApiResult(true, null, new BorrowHistories(new ArrayList<>()));
+            }
+            // 已归还的旧记录可能已被BorrowArchiver移入borrow_archive，两表合并后一起排序
+            String show_sql = "SELECT * FROM (" +
+                    "SELECT card_id, book_id, borrow_time, return_time FROM borrow WHERE card_id = ? " +
+                    "UNION ALL " +
+                    "SELECT card_id, book_id, borrow_time, return_time FROM borrow_archive WHERE card_id = ?" +
+                    ") h NATURAL JOIN book ORDER BY borrow_time DESC, book_id ASC";
+            PreparedStatement stmt = prepare(conn, show_sql);
             stmt.setInt(1, cardId);
+            stmt.setInt(2, cardId);
             ResultSet ret = stmt.executeQuery();
             List<BorrowHistories.Item> items = new ArrayList<>();
             while(ret.next()) {
@@ -476,12 +912,8 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 item.setCardId(ret.getInt("card_id"));
                 items.add(item);
             }
-            commit(conn);
             return new ApiResult(true, null, new BorrowHistories(items));
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
+        });
     }
 
     /*
@@ -490,12 +922,16 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
      */
     @Override
     public ApiResult registerCard(Card card) {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
+        return tx.execute(conn -> {
+            if (isPostgres() && idAllocator == null) {
+                if (!insertCardsReturning(conn, Collections.singletonList(card))) {
+                    return new ApiResult(false, "card exists");
+                }
+                return new ApiResult(true, null);
+            }
             String que_sql = "SELECT * FROM card WHERE " +
                     "name = ? AND department = ? AND type = ?";
-            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
+            PreparedStatement que_stmt = prepare(conn, que_sql);
             que_stmt.setString(1, card.getName());
             que_stmt.setString(2, card.getDepartment());
             que_stmt.setString(3, card.getType().getStr());
@@ -503,71 +939,172 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             ResultSet ret = que_stmt.executeQuery();
 
             if(ret.next()) {
-                rollback(conn);
                 return new ApiResult(false, "card exists");
             }
+            if (idAllocator != null) {
+                if (!insertCardsWithIds(conn, Collections.singletonList(card))) {
+                    return new ApiResult(false, "register card failed");
+                }
+                return new ApiResult(true, null);
+            }
             String insert_sql = "INSERT INTO card (name, department, type) " +
                     "VALUES(?, ?, ?)";
-            PreparedStatement insert_stmt = conn.prepareStatement(insert_sql, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement insert_stmt = prepare(conn, insert_sql, Statement.RETURN_GENERATED_KEYS);
             insert_stmt.setString(1, card.getName());
             insert_stmt.setString(2, card.getDepartment());
             insert_stmt.setObject(3, card.getType().getStr());
             int len = insert_stmt.executeUpdate();
             if(len != 1){
-                rollback(conn);
                 return new ApiResult(false, "register card failed");
             }
-            commit(conn);
             ResultSet ret2 = insert_stmt.getGeneratedKeys();
             if(ret2.next()) {
                 card.setCardId(ret2.getInt(1));
             }
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
-        return new ApiResult(true, null);
+            return new ApiResult(true, null);
+        });
+    }
+
+    /*
+        借书证批量注册模块。整批注册作为一个事务，若列表中有重复的借书证，
+        或者有借书证已经存在，那么整批注册都将失败。
+        查重时按<单位, 身份, 姓名>分块批量查询，插入时使用executeBatch()，
+        并将生成的card_id回写到每个card对象中。
+     */
+    @Override
+    public ApiResult registerCards(List<Card> cards) {
+        return tx.execute(conn -> {
+            if (new HashSet<>(cards).size() != cards.size()) {
+                return new ApiResult(false, "card exists");
+            }
+            if (isPostgres() && idAllocator == null) {
+                if (!insertCardsReturning(conn, cards)) {
+                    return new ApiResult(false, "card exists");
+                }
+                return new ApiResult(true, null);
+            }
+            for (int from = 0; from < cards.size(); from += BATCH_CHUNK) {
+                List<Card> chunk = cards.subList(from, Math.min(from + BATCH_CHUNK, cards.size()));
+                PreparedStatement que_stmt = prepareCardKeyQuery(conn, "SELECT card_id FROM card", chunk);
+                ResultSet ret = que_stmt.executeQuery();
+                if (ret.next()) {
+                    return new ApiResult(false, "card exists");
+                }
+                que_stmt.close();
+            }
+            if (idAllocator != null) {
+                if (!insertCardsWithIds(conn, cards)) {
+                    return new ApiResult(false, "register cards failed");
+                }
+                return new ApiResult(true, null);
+            }
+            String insert_sql = "INSERT INTO card (name, department, type) " +
+                    "VALUES(?, ?, ?)";
+            PreparedStatement insert_stmt = prepare(conn, insert_sql, Statement.RETURN_GENERATED_KEYS);
+            for (Card card : cards) {
+                insert_stmt.setString(1, card.getName());
+                insert_stmt.setString(2, card.getDepartment());
+                insert_stmt.setString(3, card.getType().getStr());
+                insert_stmt.addBatch();
+            }
+            int[] lens = insert_stmt.executeBatch();
+            for (int len : lens) {
+                if (len != 1 && len != Statement.SUCCESS_NO_INFO) {
+                    return new ApiResult(false, "register cards failed");
+                }
+            }
+            int[] keys = generatedKeys(insert_stmt, cards.size());
+            if (keys != null) {
+                for (int i = 0; i < cards.size(); ++i) {
+                    cards.get(i).setCardId(keys[i]);
+                }
+            } else {
+                resolveCardIds(conn, cards);
+            }
+            return new ApiResult(true, null);
+        });
     }
 
     /*
         删除借书证模块。如果该借书证还有未归还的图书，那么删除操作将失败。
+        用一条带条件的DELETE同时完成未还借阅检查和删除，只有删除失败时才再查一次区分失败原因。
+        borrow与borrow_archive不再级联删除，借书证记入removed_card，
+        借阅历史由BorrowArchiver#purge分段删除，删除借书证的耗时与历史长短无关。
      */
     @Override
     public ApiResult removeCard(int cardId) {
-        showBorrowHistory(cardId);
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
-            String card_sql = "SELECT * FROM card WHERE card_id = ?";
-            PreparedStatement card_stmt = conn.prepareStatement(card_sql);
-            card_stmt.setInt(1, cardId);
-            ResultSet ret0 = card_stmt.executeQuery();
-            if(!ret0.next()) {
-                rollback(conn);
-                return new ApiResult(false, "card not exists");
-            }
-            String que_sql = "SELECT * FROM borrow WHERE card_id = ? AND return_time = 0";
-            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
-            que_stmt.setInt(1, cardId);
-            ResultSet ret = que_stmt.executeQuery();
-            if(ret.next()){
-                rollback(conn);
+        try (StripedLockManager.Guard ignored = lockFor(cardId, StripedLockManager.NONE)) {
+            return tx.execute(conn -> {
+                String del_sql = "DELETE FROM card WHERE card_id = ? AND open_loans = 0";
+                PreparedStatement del_stmt = prepare(conn, del_sql);
+                del_stmt.setInt(1, cardId);
+                int ret1 = del_stmt.executeUpdate();
+                del_stmt.close();
+                if(ret1 == 1) {
+                    markRemoved(conn, Collections.singletonList(cardId));
+                    return new ApiResult(true, null);
+                }
+                String card_sql = "SELECT open_loans FROM card WHERE card_id = ?";
+                PreparedStatement card_stmt = prepare(conn, card_sql);
+                card_stmt.setInt(1, cardId);
+                ResultSet ret0 = card_stmt.executeQuery();
+                if(!ret0.next()) {
+                    return new ApiResult(false, "card not exists");
+                }
                 return new ApiResult(false, "book been borrowed");
+            });
+        }
+    }
+
+    /*
+        借书证批量删除模块。整批删除作为一个事务，若有借书证不存在，
+        或者有借书证还有未归还的图书，那么整批删除都将失败。
+        与removeCard相同，每段用一条带条件的DELETE完成检查和删除，
+        删除行数不足时才再查一次区分失败原因，整批随事务回滚。
+     */
+    @Override
+    public ApiResult removeCards(List<Integer> cardIds) {
+        return tx.execute(conn -> {
+            if (new HashSet<>(cardIds).size() != cardIds.size()) {
+                return new ApiResult(false, "duplicate card id");
             }
-            String del_sql = "DELETE FROM card WHERE card_id = ?";
-            PreparedStatement del_stmt = conn.prepareStatement(del_sql);
-            del_stmt.setInt(1, cardId);
-            int ret1 = del_stmt.executeUpdate();
-            if(ret1 != 1) {
-                rollback(conn);
-                return new ApiResult(false, "fail to remove the card");
+            for (int from = 0; from < cardIds.size(); from += BATCH_CHUNK) {
+                List<Integer> chunk = cardIds.subList(from, Math.min(from + BATCH_CHUNK, cardIds.size()));
+                String in_list = "(" + placeholders(chunk.size()) + ")";
+                PreparedStatement del_stmt = prepare(conn, 
+                        "DELETE FROM card WHERE open_loans = 0 AND card_id IN " + in_list);
+                bindInts(del_stmt, chunk);
+                int ret1 = del_stmt.executeUpdate();
+                del_stmt.close();
+                if (ret1 == chunk.size()) {
+                    markRemoved(conn, chunk);
+                    continue;
+                }
+                // 没删掉的借书证要么不存在，要么还有未还的书
+                PreparedStatement card_stmt = prepare(conn, 
+                        "SELECT COUNT(*) FROM card WHERE card_id IN " + in_list);
+                bindInts(card_stmt, chunk);
+                ResultSet ret0 = card_stmt.executeQuery();
+                int left = ret0.next() ? ret0.getInt(1) : 0;
+                card_stmt.close();
+                if (ret1 + left != chunk.size()) {
+                    return new ApiResult(false, "card not exists");
+                }
+                return new ApiResult(false, "book been borrowed");
             }
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            return new ApiResult(true, null);
+        });
+    }
+
+    /* 记下已删除的借书证，等待BorrowArchiver#purge清理其借阅历史 */
+    private void markRemoved(Connection conn, List<Integer> cardIds) throws SQLException {
+        PreparedStatement ins_stmt = prepare(conn, "INSERT INTO removed_card (card_id) VALUES(?)");
+        for (int cardId : cardIds) {
+            ins_stmt.setInt(1, cardId);
+            ins_stmt.addBatch();
         }
-        return new ApiResult(true, null);
+        ins_stmt.executeBatch();
+        ins_stmt.close();
     }
 
     /*
@@ -575,11 +1112,9 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
      */
     @Override
     public ApiResult showCards() {
-        Connection conn = connector.getConn();
-        try {
-            conn.setAutoCommit(false);
+        return tx.execute(conn -> {
             String show_sql = "SELECT * FROM card ORDER BY card_id";
-            PreparedStatement stmt = conn.prepareStatement(show_sql);
+            PreparedStatement stmt = prepare(conn, show_sql);
             ResultSet ret = stmt.executeQuery();
             List<Card> cards = new ArrayList<>();;
             while(ret.next()) {
@@ -590,52 +1125,528 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 card.setType(Card.CardType.values(ret.getString("type")));
                 cards.add(card);
             }
-            commit(conn);
             return new ApiResult(true, null, new CardList(cards));
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+        });
+    }
+
+    /*
+        热门图书模块。对[from, to)覆盖到的各天，汇总book_daily_borrows中的借阅次数，
+        按次数降序、书号升序返回前k本，category为null时不限类别。只读计数表，不扫描借书记录。
+     */
+    @Override
+    public ApiResult topBorrowedBooks(String category, long from, long to, int k) {
+        if (k <= 0) {
+            return new ApiResult(false, "k must be positive");
+        }
+        if (to <= from) {
+            return new ApiResult(true, null, new PopularBooks(new ArrayList<>()));
         }
+        return tx.execute(conn -> {
+            String top_sql = "SELECT book.*, " + TOTAL_STOCK + " AS total_stock, t.borrows FROM (SELECT book_id, SUM(borrows) AS borrows " +
+                    "FROM book_daily_borrows WHERE borrow_day >= ? AND borrow_day <= ? GROUP BY book_id) t " +
+                    "JOIN book ON book.book_id = t.book_id" +
+                    (category == null ? "" : " WHERE book.category = ?") +
+                    " ORDER BY t.borrows DESC, book.book_id ASC";
+            PreparedStatement stmt = prepare(conn, top_sql);
+            stmt.setMaxRows(k);
+            stmt.setInt(1, day(from));
+            stmt.setInt(2, day(to - 1));
+            if (category != null) {
+                stmt.setString(3, category);
+            }
+            ResultSet ret = stmt.executeQuery();
+            List<PopularBooks.Item> items = new ArrayList<>();
+            while (ret.next()) {
+                Book book = new Book(ret.getString("category"), ret.getString("title"), ret.getString("press"),
+                        ret.getInt("publish_year"), ret.getString("author"), ret.getDouble("price"),
+                        ret.getInt("total_stock"));
+                book.setBookId(ret.getInt("book_id"));
+                items.add(new PopularBooks.Item(book, ret.getLong("borrows")));
+            }
+            return new ApiResult(true, null, new PopularBooks(items));
+        });
+    }
+
+    /*
+        院系借阅模块。汇总department_loans各条上的计数，按未还借阅数降序、院系升序返回前k个院系，
+        k为0时全部返回。
+     */
+    @Override
+    public ApiResult showDepartmentLoans(int k) {
+        if (k < 0) {
+            return new ApiResult(false, "k < 0");
+        }
+        return tx.execute(conn -> {
+            String dept_sql = "SELECT department, SUM(loans) AS loans FROM department_loans " +
+                    "GROUP BY department HAVING SUM(loans) > 0 ORDER BY SUM(loans) DESC, department ASC";
+            PreparedStatement stmt = prepare(conn, dept_sql);
+            stmt.setMaxRows(k);
+            ResultSet ret = stmt.executeQuery();
+            List<DepartmentLoans.Item> items = new ArrayList<>();
+            while (ret.next()) {
+                items.add(new DepartmentLoans.Item(ret.getString("department"), ret.getLong("loans")));
+            }
+            return new ApiResult(true, null, new DepartmentLoans(items));
+        });
     }
 
     @Override
     public ApiResult resetDatabase() {
-        Connection conn = connector.getConn();
-        try {
-            Statement stmt = conn.createStatement();
+        String url = schemaUrl();
+        if (resetMode == ResetMode.TRUNCATE && createdSchemas.contains(url)) {
+            ApiResult result = tx.execute(this::truncateTables);
+            if (result.ok) {
+                return result;
+            }
+            // 表被他人删除等情况下截断失败，退回到重建
+        }
+        ApiResult result = tx.execute(conn -> {
+            Statement stmt = track(conn.createStatement());
             DBInitializer initializer = connector.getConf().getType().getDbInitializer();
             stmt.addBatch(initializer.sqlDropBorrow());
+            stmt.addBatch(initializer.sqlDropBorrowArchive());
+            stmt.addBatch(initializer.sqlDropOpenLoan());
+            stmt.addBatch(initializer.sqlDropBookStockStripe());
+            stmt.addBatch(initializer.sqlDropBookDailyBorrows());
+            stmt.addBatch(initializer.sqlDropDepartmentLoans());
+            stmt.addBatch(initializer.sqlDropRemovedCard());
             stmt.addBatch(initializer.sqlDropBook());
             stmt.addBatch(initializer.sqlDropCard());
+            stmt.addBatch(initializer.sqlDropIdBlock());
             stmt.addBatch(initializer.sqlCreateCard());
             stmt.addBatch(initializer.sqlCreateBook());
             stmt.addBatch(initializer.sqlCreateBorrow());
+            stmt.addBatch(initializer.sqlCreateBorrowIndex());
+            if (initializer.sqlCreateBorrowDefaultPartition() != null) {
+                stmt.addBatch(initializer.sqlCreateBorrowDefaultPartition());
+            }
+            stmt.addBatch(initializer.sqlCreateBorrowArchive());
+            stmt.addBatch(initializer.sqlCreateBorrowArchiveIndex());
+            stmt.addBatch(initializer.sqlCreateOpenLoan());
+            stmt.addBatch(initializer.sqlCreateOpenLoanIndex());
+            stmt.addBatch(initializer.sqlCreateBookStockStripe());
+            stmt.addBatch(initializer.sqlCreateBookDailyBorrows());
+            stmt.addBatch(initializer.sqlCreateBookDailyBorrowsIndex());
+            stmt.addBatch(initializer.sqlCreateDepartmentLoans());
+            stmt.addBatch(initializer.sqlCreateRemovedCard());
+            stmt.addBatch(initializer.sqlCreateIdBlock());
             stmt.executeBatch();
-            // 执行成功之后一定要记得提交事务
-            // 如果在函数执行时题前返回，需要及时将事务回滚或提交掉
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+            stripedBooks.clear();
+            if (idAllocator != null) {
+                idAllocator.reset();
+            }
+            // 返回ok时由事务执行器提交事务，否则回滚
+            return new ApiResult(true, null);
+        });
+        if (result.ok) {
+            createdSchemas.add(url);
+        }
+        return result;
+    }
+
+    public void setConcurrencyMode(ConcurrencyMode concurrencyMode) {
+        this.concurrencyMode = concurrencyMode;
+    }
+
+    public ConcurrencyMode getConcurrencyMode() {
+        return concurrencyMode;
+    }
+
+    public void setResetMode(ResetMode resetMode) {
+        this.resetMode = resetMode;
+    }
+
+    public ResetMode getResetMode() {
+        return resetMode;
+    }
+
+    public void setOptimisticAttempts(int optimisticAttempts) {
+        this.optimisticAttempts = Math.max(1, optimisticAttempts);
+    }
+
+    /*
+        share one lock manager between all Impl objects of the process to serialize
+        conflicting borrow/return calls in memory, null (the default) turns it off.
+     */
+    public void setLockManager(StripedLockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    public StripedLockManager getLockManager() {
+        return lockManager;
+    }
+
+    /*
+        with an allocator, storeBook & registerCard(s) insert ids taken from it instead of
+        reading back the generated keys. share one allocator between all objects of the process.
+     */
+    public void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = idAllocator;
+    }
+
+    public IdAllocator getIdAllocator() {
+        return idAllocator;
+    }
+
+    /* striped books are built for concurrent borrowers, only their card is locked */
+    private StripedLockManager.Guard lockFor(int cardId, int bookId) {
+        StripedLockManager locks = lockManager;
+        if (locks == null) {
+            return StripedLockManager.NO_LOCK;
+        }
+        if (bookId != StripedLockManager.NONE && stripedBooks.containsKey(bookId)) {
+            bookId = StripedLockManager.NONE;
+        }
+        return locks.lock(cardId, bookId);
+    }
+
+    /*
+        abort the statement that is running right now (Statement.cancel()) and refuse the
+        statements that follow, so the operation fails and its transaction is rolled back,
+        unless it had already reached its commit. safe to call from another thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        Statement stmt = current;
+        if (stmt != null) {
+            try {
+                stmt.cancel();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        return track(conn.prepareStatement(sql));
+    }
+
+    private PreparedStatement prepare(Connection conn, String sql, int autoGeneratedKeys) throws SQLException {
+        return track(conn.prepareStatement(sql, autoGeneratedKeys));
+    }
+
+    /* forget an earlier cancel(), before the next operation starts */
+    public void clearCancel() {
+        cancelled = false;
+    }
+
+    private <T extends Statement> T track(T stmt) throws SQLException {
+        /* publish first, a cancel() that misses this check then sees the new statement */
+        current = stmt;
+        if (cancelled) {
+            stmt.close();
+            throw new SQLException("operation cancelled", "57014");
+        }
+        return stmt;
+    }
+
+    public TransactionExecutor getTransactionExecutor() {
+        return tx;
+    }
+
+    /* a lost compare-and-set, reported as a serialization failure so that the executor retries it */
+    private static SQLException versionConflict() {
+        return new SQLException("concurrent update conflict", "40001");
+    }
+
+    /*
+        ResetMode.TRUNCATE: empties the tables without touching their definitions. The tables
+        referring to others go first; book & card are referred to by foreign keys, which rules
+        out TRUNCATE on most vendors, so they are emptied by DELETE (cheap once their children
+        are empty) and get their identity columns restarted.
+     */
+    private ApiResult truncateTables(Connection conn) throws SQLException {
+        DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+        Statement stmt = track(conn.createStatement());
+        for (String table : new String[]{"borrow", "borrow_archive", "open_loan", "book_stock_stripe",
+                "book_daily_borrows", "department_loans", "removed_card", "id_block"}) {
+            stmt.addBatch(initializer.sqlTruncate(table));
+        }
+        stmt.addBatch("DELETE FROM book");
+        stmt.addBatch("DELETE FROM card");
+        for (String table : new String[]{"book", "card"}) {
+            String sql = initializer.sqlRestartIdentity(table, table + "_id");
+            if (sql != null) {
+                stmt.addBatch(sql);
+            }
+        }
+        stmt.executeBatch();
+        stripedBooks.clear();
+        if (idAllocator != null) {
+            idAllocator.reset();
         }
         return new ApiResult(true, null);
     }
 
-    private void rollback(Connection conn) {
+    private String schemaUrl() {
+        ConnectConfig conf = connector.getConf();
+        return conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
+    }
+
+    private boolean isPostgres() {
+        return connector.getConf().getType() == DatabaseType.POSTGRES;
+    }
+
+    /*
+        batched insert with book_id taken from the IdAllocator, nothing has to be read back.
+        assigns the ids to the books on success.
+     */
+    private boolean insertBooksWithIds(Connection conn, List<Book> books) throws SQLException {
+        int[] ids = idAllocator.next(IdAllocator.BOOK, books.size());
+        String insert_book = "INSERT INTO book (book_id, category, title, press, publish_year, author, price, stock) " +
+                "VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
+        setIdentityInsert(conn, "book", true);
         try {
-            conn.rollback();
-        } catch (Exception e) {
-            e.printStackTrace();
+            PreparedStatement insert_stmt = prepare(conn, insert_book);
+            for (int i = 0; i < books.size(); ++i) {
+                Book book = books.get(i);
+                insert_stmt.setInt(1, ids[i]);
+                insert_stmt.setString(2, book.getCategory());
+                insert_stmt.setString(3, book.getTitle());
+                insert_stmt.setString(4, book.getPress());
+                insert_stmt.setInt(5, book.getPublishYear());
+                insert_stmt.setString(6, book.getAuthor());
+                insert_stmt.setDouble(7, book.getPrice());
+                insert_stmt.setInt(8, book.getStock());
+                insert_stmt.addBatch();
+            }
+            for (int len : insert_stmt.executeBatch()) {
+                if (len != 1 && len != Statement.SUCCESS_NO_INFO) {
+                    return false;
+                }
+            }
+            insert_stmt.close();
+        } finally {
+            setIdentityInsert(conn, "book", false);
+        }
+        for (int i = 0; i < books.size(); ++i) {
+            books.get(i).setBookId(ids[i]);
+        }
+        return true;
+    }
+
+    /* same for cards */
+    private boolean insertCardsWithIds(Connection conn, List<Card> cards) throws SQLException {
+        int[] ids = idAllocator.next(IdAllocator.CARD, cards.size());
+        String insert_sql = "INSERT INTO card (card_id, name, department, type) VALUES(?, ?, ?, ?)";
+        setIdentityInsert(conn, "card", true);
+        try {
+            PreparedStatement insert_stmt = prepare(conn, insert_sql);
+            for (int i = 0; i < cards.size(); ++i) {
+                Card card = cards.get(i);
+                insert_stmt.setInt(1, ids[i]);
+                insert_stmt.setString(2, card.getName());
+                insert_stmt.setString(3, card.getDepartment());
+                insert_stmt.setString(4, card.getType().getStr());
+                insert_stmt.addBatch();
+            }
+            for (int len : insert_stmt.executeBatch()) {
+                if (len != 1 && len != Statement.SUCCESS_NO_INFO) {
+                    return false;
+                }
+            }
+            insert_stmt.close();
+        } finally {
+            setIdentityInsert(conn, "card", false);
+        }
+        for (int i = 0; i < cards.size(); ++i) {
+            cards.get(i).setCardId(ids[i]);
+        }
+        return true;
+    }
+
+    /* SqlServer needs IDENTITY_INSERT for explicit ids, the other vendors accept them as they are */
+    private void setIdentityInsert(Connection conn, String table, boolean on) throws SQLException {
+        String sql = connector.getConf().getType().getDbInitializer().sqlSetIdentityInsert(table, on);
+        if (sql != null) {
+            Statement stmt = track(conn.createStatement());
+            stmt.executeUpdate(sql);
+            stmt.close();
+        }
+    }
+
+    /*
+        postgres fast path: a multi-row INSERT ... ON CONFLICT DO NOTHING RETURNING
+        checks duplicates, inserts and fetches the ids in one round trip per chunk.
+        returns false (and assigns no id) if some book already exists.
+     */
+    private boolean insertBooksReturning(Connection conn, List<Book> books) throws SQLException {
+        Map<Book, Integer> ids = new HashMap<>();
+        for (int from = 0; from < books.size(); from += BATCH_CHUNK) {
+            List<Book> chunk = books.subList(from, Math.min(from + BATCH_CHUNK, books.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO book " +
+                    "(category, title, press, publish_year, author, price, stock) VALUES ");
+            for (int i = 0; i < chunk.size(); ++i) {
+                sql.append(i == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?, ?)");
+            }
+            sql.append(" ON CONFLICT DO NOTHING RETURNING book_id, category, title, press, publish_year, author");
+            PreparedStatement stmt = prepare(conn, sql.toString());
+            int index = 0;
+            for (Book book : chunk) {
+                stmt.setString(++index, book.getCategory());
+                stmt.setString(++index, book.getTitle());
+                stmt.setString(++index, book.getPress());
+                stmt.setInt(++index, book.getPublishYear());
+                stmt.setString(++index, book.getAuthor());
+                stmt.setDouble(++index, book.getPrice());
+                stmt.setInt(++index, book.getStock());
+            }
+            ResultSet ret = stmt.executeQuery();
+            int inserted = 0;
+            while (ret.next()) {
+                ids.put(new Book(ret.getString("category"), ret.getString("title"), ret.getString("press"),
+                        ret.getInt("publish_year"), ret.getString("author"), 0, 0), ret.getInt("book_id"));
+                ++inserted;
+            }
+            stmt.close();
+            if (inserted != chunk.size()) {
+                return false;
+            }
+        }
+        for (Book book : books) {
+            book.setBookId(ids.get(book));
+        }
+        return true;
+    }
+
+    /* postgres fast path of registerCard(s), see insertBooksReturning */
+    private boolean insertCardsReturning(Connection conn, List<Card> cards) throws SQLException {
+        Map<Card, Integer> ids = new HashMap<>();
+        for (int from = 0; from < cards.size(); from += BATCH_CHUNK) {
+            List<Card> chunk = cards.subList(from, Math.min(from + BATCH_CHUNK, cards.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO card (name, department, type) VALUES ");
+            for (int i = 0; i < chunk.size(); ++i) {
+                sql.append(i == 0 ? "" : ", ").append("(?, ?, ?)");
+            }
+            sql.append(" ON CONFLICT DO NOTHING RETURNING card_id, name, department, type");
+            PreparedStatement stmt = prepare(conn, sql.toString());
+            int index = 0;
+            for (Card card : chunk) {
+                stmt.setString(++index, card.getName());
+                stmt.setString(++index, card.getDepartment());
+                stmt.setString(++index, card.getType().getStr());
+            }
+            ResultSet ret = stmt.executeQuery();
+            int inserted = 0;
+            while (ret.next()) {
+                ids.put(new Card(0, ret.getString("name"), ret.getString("department"),
+                        Card.CardType.values(ret.getString("type"))), ret.getInt("card_id"));
+                ++inserted;
+            }
+            stmt.close();
+            if (inserted != chunk.size()) {
+                return false;
+            }
+        }
+        for (Card card : cards) {
+            card.setCardId(ids.get(card));
+        }
+        return true;
+    }
+
+    /* "?, ?, ..., ?" with n placeholders, used to build IN lists */
+    private static String placeholders(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.toString();
+    }
+
+    private static void bindInts(PreparedStatement stmt, List<Integer> values) throws SQLException {
+        for (int i = 0; i < values.size(); ++i) {
+            stmt.setInt(i + 1, values.get(i));
         }
     }
 
-    private void commit(Connection conn) {
+    /* select from book by the (category, press, author, title, publish_year) unique key of every book in the chunk */
+    private PreparedStatement prepareBookKeyQuery(Connection conn, String select,
+                                                         List<Book> chunk) throws SQLException {
+        StringBuilder sql = new StringBuilder(select).append(" WHERE ");
+        for (int i = 0; i < chunk.size(); ++i) {
+            sql.append(i == 0 ? "" : " OR ")
+                    .append("(category = ? AND press = ? AND author = ? AND title = ? AND publish_year = ?)");
+        }
+        PreparedStatement stmt = prepare(conn, sql.toString());
+        int index = 0;
+        for (Book book : chunk) {
+            stmt.setString(++index, book.getCategory());
+            stmt.setString(++index, book.getPress());
+            stmt.setString(++index, book.getAuthor());
+            stmt.setString(++index, book.getTitle());
+            stmt.setInt(++index, book.getPublishYear());
+        }
+        return stmt;
+    }
+
+    /* select from card by the (department, type, name) unique key of every card in the chunk */
+    private PreparedStatement prepareCardKeyQuery(Connection conn, String select,
+                                                         List<Card> chunk) throws SQLException {
+        StringBuilder sql = new StringBuilder(select).append(" WHERE ");
+        for (int i = 0; i < chunk.size(); ++i) {
+            sql.append(i == 0 ? "" : " OR ").append("(department = ? AND type = ? AND name = ?)");
+        }
+        PreparedStatement stmt = prepare(conn, sql.toString());
+        int index = 0;
+        for (Card card : chunk) {
+            stmt.setString(++index, card.getDepartment());
+            stmt.setString(++index, card.getType().getStr());
+            stmt.setString(++index, card.getName());
+        }
+        return stmt;
+    }
+
+    /*
+        some drivers (e.g. SqlServer) do not return generated keys for a batch,
+        return null in that case so that the caller can look the ids up instead.
+     */
+    private static int[] generatedKeys(Statement stmt, int expected) {
         try {
-            conn.commit();
-        } catch (Exception e) {
-            e.printStackTrace();
+            ResultSet keys = stmt.getGeneratedKeys();
+            int[] ids = new int[expected];
+            int n = 0;
+            while (n < expected && keys.next()) {
+                ids[n++] = keys.getInt(1);
+            }
+            return n == expected ? ids : null;
+        } catch (SQLException e) {
+            return null;
         }
     }
 
+    private void resolveCardIds(Connection conn, List<Card> cards) throws SQLException {
+        for (int from = 0; from < cards.size(); from += BATCH_CHUNK) {
+            List<Card> chunk = cards.subList(from, Math.min(from + BATCH_CHUNK, cards.size()));
+            PreparedStatement stmt = prepareCardKeyQuery(conn,
+                    "SELECT card_id, name, department, type FROM card", chunk);
+            ResultSet ret = stmt.executeQuery();
+            Map<Card, Integer> ids = new HashMap<>();
+            while (ret.next()) {
+                ids.put(new Card(0, ret.getString("name"), ret.getString("department"),
+                        Card.CardType.values(ret.getString("type"))), ret.getInt("card_id"));
+            }
+            stmt.close();
+            for (Card card : chunk) {
+                card.setCardId(ids.get(card));
+            }
+        }
+    }
 
+    private void resolveBookIds(Connection conn, List<Book> books) throws SQLException {
+        for (int from = 0; from < books.size(); from += BATCH_CHUNK) {
+            List<Book> chunk = books.subList(from, Math.min(from + BATCH_CHUNK, books.size()));
+            PreparedStatement stmt = prepareBookKeyQuery(conn,
+                    "SELECT book_id, category, title, press, publish_year, author FROM book", chunk);
+            ResultSet ret = stmt.executeQuery();
+            Map<Book, Integer> ids = new HashMap<>();
+            while (ret.next()) {
+                ids.put(new Book(ret.getString("category"), ret.getString("title"), ret.getString("press"),
+                        ret.getInt("publish_year"), ret.getString("author"), 0, 0), ret.getInt("book_id"));
+            }
+            stmt.close();
+            for (Book book : chunk) {
+                book.setBookId(ids.get(book));
+            }
+        }
+    }
 }
@@ -0,0 +1,597 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+import queries.SortOrder;
+import utils.ConnectConfig;
+import utils.LatencyStats;
+import utils.VirtualThreads;
+import utils.ZipfSampler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/*
+    closed-loop load driver: a number of simulated patrons, each waiting for its call to
+    return and then thinking for a while (exponentially distributed around the mean think
+    time) before the next one. Every patron registers a card, then draws borrow, return,
+    query and register calls from the configured mix; books are picked by Zipf popularity,
+    a return gives back the patron's oldest loan (a borrow when it has none), drawing a book
+    the patron already holds gives it back instead.
+    Patrons start one by one over the ramp-up, the calls run on an
+    AsyncLibraryManagementSystemImpl with a fixed number of connections. Once per interval
+    the throughput, p50 & p99 latency and the failed calls of that interval are printed
+    and appended to the CSV file; a summary per operation follows at the end.
+ */
+public class LoadGenerator {
+
+    public enum Op {
+        BORROW, RETURN, QUERY, REGISTER;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        public static Op instance(String name) {
+            for (Op op : values()) {
+                if (op.getName().equalsIgnoreCase(name)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("unknown operation: " + name);
+        }
+    }
+
+    public static final class Options {
+        private final Map<Op, Integer> mix = new EnumMap<>(Op.class);
+        private int patrons = 50;
+        private int connections = 8;
+        private long thinkMillis = 100;
+        private long durationSeconds = 60;
+        private long rampUpSeconds = 10;
+        private long intervalSeconds = 1;
+        private int books = 1000;
+        private double skew = 1.0;
+        private boolean reset = false;
+        private Path csv = Paths.get("load.csv");
+
+        public Options() {
+            mix.put(Op.BORROW, 40);
+            mix.put(Op.RETURN, 30);
+            mix.put(Op.QUERY, 25);
+            mix.put(Op.REGISTER, 5);
+        }
+
+        public static String usage() {
+            return "usage: load [--mix=borrow=40,return=30,query=25,register=5] [--patrons=50] [--connections=8]\n" +
+                    "            [--think=100 (ms)] [--duration=60 (s)] [--ramp-up=10 (s)] [--interval=1 (s)]\n" +
+                    "            [--books=1000] [--skew=1.0] [--csv=load.csv] [--reset]";
+        }
+
+        /**
+         * @param args "--name=value" pairs and the "--reset" flag
+         * @throws IllegalArgumentException on an unknown option or a bad value
+         */
+        public static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                if ("--reset".equals(arg)) {
+                    o.reset = true;
+                    continue;
+                }
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("bad option: " + arg);
+                }
+                String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+                try {
+                    switch (name) {
+                        case "mix":
+                            o.setMix(value);
+                            break;
+                        case "patrons":
+                            o.patrons = positive(name, Integer.parseInt(value));
+                            break;
+                        case "connections":
+                            o.connections = positive(name, Integer.parseInt(value));
+                            break;
+                        case "think":
+                            o.thinkMillis = notNegative(name, Long.parseLong(value));
+                            break;
+                        case "duration":
+                            o.durationSeconds = positive(name, Integer.parseInt(value));
+                            break;
+                        case "ramp-up":
+                            o.rampUpSeconds = notNegative(name, Long.parseLong(value));
+                            break;
+                        case "interval":
+                            o.intervalSeconds = positive(name, Integer.parseInt(value));
+                            break;
+                        case "books":
+                            o.books = positive(name, Integer.parseInt(value));
+                            break;
+                        case "skew":
+                            o.skew = Double.parseDouble(value);
+                            if (!(o.skew >= 0)) {
+                                throw new IllegalArgumentException("--skew must not be negative");
+                            }
+                            break;
+                        case "csv":
+                            o.csv = value.isEmpty() ? null : Paths.get(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option: --" + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad value for --" + name + ": " + value);
+                }
+            }
+            return o;
+        }
+
+        private static int positive(String name, int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("--" + name + " must be at least 1");
+            }
+            return value;
+        }
+
+        private static long notNegative(String name, long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("--" + name + " must not be negative");
+            }
+            return value;
+        }
+
+        /* "borrow=40,return=30,query=25,register=5", operations left out get weight 0 */
+        public void setMix(String spec) {
+            Map<Op, Integer> weights = new EnumMap<>(Op.class);
+            for (Op op : Op.values()) {
+                weights.put(op, 0);
+            }
+            int sum = 0;
+            for (String part : spec.split(",")) {
+                String[] kv = part.trim().split("[=:]");
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("bad mix: " + spec);
+                }
+                int weight = Integer.parseInt(kv[1].trim());
+                if (weight < 0) {
+                    throw new IllegalArgumentException("bad mix: " + spec);
+                }
+                weights.put(Op.instance(kv[0].trim()), weight);
+                sum += weight;
+            }
+            if (sum == 0) {
+                throw new IllegalArgumentException("bad mix: " + spec);
+            }
+            mix.putAll(weights);
+        }
+
+        public Map<Op, Integer> getMix() {
+            return mix;
+        }
+
+        public int getPatrons() {
+            return patrons;
+        }
+
+        public void setPatrons(int patrons) {
+            this.patrons = patrons;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public void setConnections(int connections) {
+            this.connections = connections;
+        }
+
+        public long getThinkMillis() {
+            return thinkMillis;
+        }
+
+        public void setThinkMillis(long thinkMillis) {
+            this.thinkMillis = thinkMillis;
+        }
+
+        public long getDurationSeconds() {
+            return durationSeconds;
+        }
+
+        public void setDurationSeconds(long durationSeconds) {
+            this.durationSeconds = durationSeconds;
+        }
+
+        public long getRampUpSeconds() {
+            return rampUpSeconds;
+        }
+
+        public void setRampUpSeconds(long rampUpSeconds) {
+            this.rampUpSeconds = rampUpSeconds;
+        }
+
+        public long getIntervalSeconds() {
+            return intervalSeconds;
+        }
+
+        public void setIntervalSeconds(long intervalSeconds) {
+            this.intervalSeconds = intervalSeconds;
+        }
+
+        public int getBooks() {
+            return books;
+        }
+
+        public void setBooks(int books) {
+            this.books = books;
+        }
+
+        public double getSkew() {
+            return skew;
+        }
+
+        public void setSkew(double skew) {
+            this.skew = skew;
+        }
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        public void setReset(boolean reset) {
+            this.reset = reset;
+        }
+
+        /* null for no CSV file */
+        public Path getCsv() {
+            return csv;
+        }
+
+        public void setCsv(Path csv) {
+            this.csv = csv;
+        }
+
+        @Override
+        public String toString() {
+            return "Options {" + "mix=" + mix +
+                    ", patrons=" + patrons +
+                    ", connections=" + connections +
+                    ", thinkMillis=" + thinkMillis +
+                    ", durationSeconds=" + durationSeconds +
+                    ", rampUpSeconds=" + rampUpSeconds +
+                    ", books=" + books +
+                    ", skew=" + skew +
+                    ", reset=" + reset +
+                    ", csv=" + csv +
+                    '}';
+        }
+    }
+
+    private static final String CATEGORY = "Load";
+
+    private final ConnectConfig conf;
+    private final Options options;
+    private final Op[] ops;
+    private final int[] cumulative;
+
+    private final Map<Op, LatencyStats> totals = new EnumMap<>(Op.class);
+    private final Map<Op, AtomicLong> failures = new EnumMap<>(Op.class);
+    private final AtomicReference<LatencyStats> window = new AtomicReference<>(new LatencyStats());
+    private final AtomicLong windowFailures = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private long elapsedNanos = 0;
+
+    public LoadGenerator(ConnectConfig conf, Options options) {
+        this.conf = conf;
+        this.options = options;
+        List<Op> list = new ArrayList<>();
+        List<Integer> bounds = new ArrayList<>();
+        int sum = 0;
+        for (Map.Entry<Op, Integer> e : options.getMix().entrySet()) {
+            if (e.getValue() > 0) {
+                sum += e.getValue();
+                list.add(e.getKey());
+                bounds.add(sum);
+            }
+        }
+        this.ops = list.toArray(new Op[0]);
+        this.cumulative = bounds.stream().mapToInt(Integer::intValue).toArray();
+        for (Op op : Op.values()) {
+            totals.put(op, new LatencyStats());
+            failures.put(op, new AtomicLong());
+        }
+    }
+
+    private Op pick(SplittableRandom random) {
+        int dice = random.nextInt(cumulative[cumulative.length - 1]);
+        for (int i = 0; ; ++i) {
+            if (dice < cumulative[i]) {
+                return ops[i];
+            }
+        }
+    }
+
+    /* runs the load for the configured time, blocks until every patron has stopped */
+    public void run() throws IOException, InterruptedException {
+        BufferedWriter csv = null;
+        try (AsyncLibraryManagementSystemImpl pool = new AsyncLibraryManagementSystemImpl(conf,
+                options.getConnections(), options.getPatrons())) {
+            if (options.getCsv() != null) {
+                csv = Files.newBufferedWriter(options.getCsv(), StandardCharsets.UTF_8);
+                csv.write("elapsed_s,patrons,ops,ops_per_s,p50_ms,p99_ms,max_ms,failed\n");
+            }
+            if (options.isReset()) {
+                ApiResult ret = pool.resetDatabase().join();
+                if (!ret.ok) {
+                    throw new IllegalStateException("failed to reset database: " + ret.message);
+                }
+            }
+            int[] bookIds = seedBooks(pool);
+            ZipfSampler sampler = new ZipfSampler(bookIds.length, options.getSkew());
+
+            ExecutorService patrons = VirtualThreads.isSupported() ? VirtualThreads.newPerTaskExecutor()
+                    : Executors.newFixedThreadPool(options.getPatrons(), r -> {
+                        Thread t = new Thread(r, "load-patron");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "load-reporter");
+                t.setDaemon(true);
+                return t;
+            });
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(options.getDurationSeconds());
+            long rampUp = TimeUnit.SECONDS.toNanos(options.getRampUpSeconds());
+            SplittableRandom seeds = new SplittableRandom();
+            for (int i = 0; i < options.getPatrons(); ++i) {
+                long begin = start + rampUp * i / options.getPatrons();
+                SplittableRandom random = seeds.split();
+                patrons.execute(() -> patron(pool, bookIds, sampler, random, begin, end));
+            }
+            BufferedWriter out = csv;
+            long[] last = {start};
+            long interval = TimeUnit.SECONDS.toNanos(options.getIntervalSeconds());
+            reporter.scheduleAtFixedRate(() -> report(out, start, last), interval, interval, TimeUnit.NANOSECONDS);
+            patrons.shutdown();
+            patrons.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            reporter.shutdown();
+            reporter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            elapsedNanos = System.nanoTime() - start;
+            if (System.nanoTime() - last[0] > interval / 10) {
+                report(out, start, last);
+            }
+            summary();
+        } finally {
+            if (csv != null) {
+                csv.close();
+            }
+        }
+    }
+
+    /* the Load-i books, reusing the ones an earlier run without --reset left behind */
+    private int[] seedBooks(AsyncLibraryManagementSystem pool) {
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setCategory(CATEGORY);
+        ApiResult found = pool.queryBook(conditions).join();
+        if (!found.ok) {
+            throw new IllegalStateException("failed to query books: " + found.message);
+        }
+        Map<String, Integer> existing = new HashMap<>();
+        for (Book book : ((BookQueryResults) found.payload).getResults()) {
+            existing.put(book.getTitle(), book.getBookId());
+        }
+        int[] bookIds = new int[options.getBooks()];
+        List<Book> books = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < bookIds.length; ++i) {
+            String title = "Load-" + i;
+            Integer id = existing.get(title);
+            if (id != null) {
+                bookIds[i] = id;
+                continue;
+            }
+            books.add(new Book(CATEGORY, title, "Press-" + (i % 16), 1980 + i % 45,
+                    "Author-" + (i % 100), 10 + i % 90, 1000000));
+            slots.add(i);
+        }
+        if (!books.isEmpty()) {
+            ApiResult ret = pool.storeBook(books).join();
+            if (!ret.ok) {
+                throw new IllegalStateException("failed to store books: " + ret.message);
+            }
+            for (int j = 0; j < books.size(); ++j) {
+                bookIds[slots.get(j)] = books.get(j).getBookId();
+            }
+        }
+        return bookIds;
+    }
+
+    private void patron(AsyncLibraryManagementSystem pool, int[] bookIds, ZipfSampler sampler,
+                        SplittableRandom random, long begin, long end) {
+        try {
+            sleepNanos(begin - System.nanoTime());
+            active.incrementAndGet();
+            try {
+                Card card = newCard(random);
+                if (!call(Op.REGISTER, () -> pool.registerCard(card).join())) {
+                    return;
+                }
+                Deque<Borrow> loans = new ArrayDeque<>();
+                Set<Integer> borrowed = new HashSet<>();
+                while (System.nanoTime() < end) {
+                    Op op = pick(random);
+                    if (op == Op.RETURN && loans.isEmpty()) {
+                        op = Op.BORROW;
+                    }
+                    Borrow loan = null;
+                    if (op == Op.BORROW) {
+                        /* a patron cannot hold two copies of a book, pick another one or give this one back */
+                        int bookId = bookIds[sampler.sample(random) - 1];
+                        for (int i = 0; i < 8 && borrowed.contains(bookId); ++i) {
+                            bookId = bookIds[sampler.sample(random) - 1];
+                        }
+                        if (borrowed.contains(bookId)) {
+                            op = Op.RETURN;
+                            for (Borrow b : loans) {
+                                if (b.getBookId() == bookId) {
+                                    loan = b;
+                                }
+                            }
+                            loans.remove(loan);
+                        } else {
+                            loan = new Borrow(bookId, card.getCardId());
+                        }
+                    } else if (op == Op.RETURN) {
+                        loan = loans.pollFirst();
+                    }
+                    Borrow borrow = loan;
+                    switch (op) {
+                        case BORROW:
+                            if (call(op, () -> pool.borrowBook(borrow).join())) {
+                                loans.addLast(borrow);
+                                borrowed.add(borrow.getBookId());
+                            }
+                            break;
+                        case RETURN:
+                            call(op, () -> pool.returnBook(borrow).join());
+                            borrowed.remove(borrow.getBookId());
+                            break;
+                        case QUERY: {
+                            BookQueryConditions conditions = new BookQueryConditions();
+                            conditions.setCategory(CATEGORY);
+                            double min = 10 + random.nextInt(90);
+                            conditions.setMinPrice(min);
+                            conditions.setMaxPrice(min + 5);
+                            conditions.setSortBy(Book.SortColumn.PRICE);
+                            conditions.setSortOrder(random.nextBoolean() ? SortOrder.ASC : SortOrder.DESC);
+                            call(op, () -> pool.queryBook(conditions).join());
+                            break;
+                        }
+                        default: {
+                            Card other = newCard(random);
+                            call(op, () -> pool.registerCard(other).join());
+                            break;
+                        }
+                    }
+                    if (options.getThinkMillis() > 0) {
+                        /* exponential think time, -ln(1 - u) * mean */
+                        double think = -Math.log(1 - random.nextDouble()) * options.getThinkMillis();
+                        sleepNanos(Math.min((long) (think * 1e6), end - System.nanoTime()));
+                    }
+                }
+            } finally {
+                active.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean call(Op op, Supplier<ApiResult> call) {
+        long start = System.nanoTime();
+        ApiResult ret = call.get();
+        long nanos = System.nanoTime() - start;
+        totals.get(op).record(nanos);
+        window.get().record(nanos);
+        if (!ret.ok) {
+            failures.get(op).incrementAndGet();
+            windowFailures.incrementAndGet();
+        }
+        return ret.ok;
+    }
+
+    /* cards are unique by name, department & type */
+    private static Card newCard(SplittableRandom random) {
+        return new Card(0, "Patron-" + Long.toHexString(random.nextLong()), "Load",
+                random.nextBoolean() ? Card.CardType.Student : Card.CardType.Teacher);
+    }
+
+    private static void sleepNanos(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    private void report(BufferedWriter csv, long start, long[] last) {
+        long now = System.nanoTime();
+        LatencyStats stats = window.getAndSet(new LatencyStats());
+        long failed = windowFailures.getAndSet(0);
+        double seconds = (now - last[0]) / 1e9;
+        last[0] = now;
+        double elapsed = (now - start) / 1e9;
+        double tput = seconds > 0 ? stats.getCount() / seconds : 0;
+        System.out.printf("%7.1fs  patrons=%d  %9.1f ops/s  p50=%.2fms  p99=%.2fms  max=%.2fms  failed=%d%n",
+                elapsed, active.get(), tput, stats.percentile(50) / 1e6, stats.percentile(99) / 1e6,
+                stats.getMaxNanos() / 1e6, failed);
+        if (csv == null) {
+            return;
+        }
+        try {
+            csv.write(String.format(Locale.ROOT, "%.1f,%d,%d,%.1f,%.3f,%.3f,%.3f,%d\n", elapsed, active.get(),
+                    stats.getCount(), tput, stats.percentile(50) / 1e6, stats.percentile(99) / 1e6,
+                    stats.getMaxNanos() / 1e6, failed));
+            csv.flush();
+        } catch (IOException e) {
+            System.out.println("failed to write csv: " + e.getMessage());
+        }
+    }
+
+    private void summary() {
+        System.out.printf("%d calls in %.1fs, %.1f ops/s%n", getCalls(), elapsedNanos / 1e9,
+                elapsedNanos == 0 ? 0 : getCalls() / (elapsedNanos / 1e9));
+        for (Op op : Op.values()) {
+            LatencyStats stats = totals.get(op);
+            if (stats.getCount() > 0) {
+                System.out.printf("  %-8s failed=%d, %s%n", op.getName(), failures.get(op).get(), stats);
+            }
+        }
+    }
+
+    public long getCalls() {
+        long n = 0;
+        for (LatencyStats stats : totals.values()) {
+            n += stats.getCount();
+        }
+        return n;
+    }
+
+    public LatencyStats getTotal(Op op) {
+        return totals.get(op);
+    }
+
+    public long getFailures(Op op) {
+        return failures.get(op).get();
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000;
+    }
+}
@@ -1,6 +1,7 @@
 import utils.ConnectConfig;
 import utils.DatabaseConnector;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class Main {
@@ -12,6 +13,21 @@ public class Main {
             // parse connection config from "resources/application.yaml"
             ConnectConfig conf = new ConnectConfig();
             log.info("Success to parse connect config. " + conf.toString());
+            // "load [options]" drives a closed-loop load test, see LoadGenerator
+            if (args.length > 0 && "load".equals(args[0])) {
+                LoadGenerator.Options options;
+                try {
+                    options = LoadGenerator.Options.parse(Arrays.copyOfRange(args, 1, args.length));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.err.println(LoadGenerator.Options.usage());
+                    System.exit(2);
+                    return;
+                }
+                log.info("Start load test. " + options);
+                new LoadGenerator(conf, options).run();
+                return;
+            }
             // connect to database
             DatabaseConnector connector = new DatabaseConnector(conf);
             boolean connStatus = connector.connect();
@@ -0,0 +1,268 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+import queries.BorrowHistories;
+import queries.CardList;
+import queries.DepartmentLoans;
+import queries.PopularBooks;
+import utils.WorkloadLog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+    records every call that goes through it into a WorkloadLog, so the traffic can be
+    replayed later by WorkloadReplayer against any implementation. A call is written after
+    it returned, with what the delegate filled in: the ids assigned by storeBook and
+    registerCard, the borrow & return times stamped by borrowBook and returnBook, and the
+    number of rows seen by the queries. Safe to share between threads, failing to write
+    the log never fails a call, it is only counted.
+ */
+public class RecordingLibrary implements LibraryManagementSystem, AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(RecordingLibrary.class.getName());
+
+    private final LibraryManagementSystem delegate;
+    private final WorkloadLog.Writer writer;
+    private final long origin = System.nanoTime();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public RecordingLibrary(LibraryManagementSystem delegate, Path path) throws IOException {
+        this.delegate = delegate;
+        this.writer = new WorkloadLog.Writer(path);
+    }
+
+    private ApiResult record(String method, Supplier<ApiResult> call, Function<ApiResult, String> result,
+                             String... args) {
+        long start = System.nanoTime();
+        ApiResult ret = call.get();
+        long end = System.nanoTime();
+        try {
+            writer.append(new WorkloadLog.Entry((start - origin) / 1000, (end - start) / 1000, method,
+                    ret.ok, ret.ok ? result.apply(ret) : "", args));
+        } catch (IOException e) {
+            if (dropped.getAndIncrement() == 0) {
+                log.log(Level.WARNING, "failed to record " + method, e);
+            }
+        }
+        return ret;
+    }
+
+    private static String none(ApiResult ret) {
+        return "";
+    }
+
+    /* rows seen by a query, compared by WorkloadReplayer */
+    static String count(ApiResult ret) {
+        Object payload = ret.payload;
+        if (payload instanceof BookQueryResults) {
+            return String.valueOf(((BookQueryResults) payload).getCount());
+        }
+        if (payload instanceof BorrowHistories) {
+            return String.valueOf(((BorrowHistories) payload).getCount());
+        }
+        if (payload instanceof CardList) {
+            return String.valueOf(((CardList) payload).getCount());
+        }
+        if (payload instanceof PopularBooks) {
+            return String.valueOf(((PopularBooks) payload).getCount());
+        }
+        if (payload instanceof DepartmentLoans) {
+            return String.valueOf(((DepartmentLoans) payload).getCount());
+        }
+        return "";
+    }
+
+    private static String str(Object o) {
+        return o == null ? null : o.toString();
+    }
+
+    /* book_id, category, title, press, publish_year, author, price, stock */
+    private static void addBook(List<String> args, Book book) {
+        args.add(String.valueOf(book.getBookId()));
+        args.add(book.getCategory());
+        args.add(book.getTitle());
+        args.add(book.getPress());
+        args.add(String.valueOf(book.getPublishYear()));
+        args.add(book.getAuthor());
+        args.add(String.valueOf(book.getPrice()));
+        args.add(String.valueOf(book.getStock()));
+    }
+
+    /* name, department, type */
+    private static void addCard(List<String> args, Card card) {
+        args.add(card.getName());
+        args.add(card.getDepartment());
+        args.add(card.getType() == null ? null : card.getType().getStr());
+    }
+
+    private static String[] array(List<String> args) {
+        return args.toArray(new String[0]);
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        List<String> args = new ArrayList<>(8);
+        addBook(args, book);
+        return record("storeBook", () -> delegate.storeBook(book),
+                ret -> String.valueOf(book.getBookId()), array(args));
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return record("incBookStock", () -> delegate.incBookStock(bookId, deltaStock),
+                RecordingLibrary::none, String.valueOf(bookId), String.valueOf(deltaStock));
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        List<String> args = new ArrayList<>(books.size() * 8);
+        for (Book book : books) {
+            addBook(args, book);
+        }
+        return record("storeBooks", () -> delegate.storeBook(books), ret -> {
+            List<Integer> ids = new ArrayList<>(books.size());
+            for (Book book : books) {
+                ids.add(book.getBookId());
+            }
+            return WorkloadLog.join(ids);
+        }, array(args));
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return record("removeBook", () -> delegate.removeBook(bookId), RecordingLibrary::none,
+                String.valueOf(bookId));
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        List<String> args = new ArrayList<>(8);
+        addBook(args, book);
+        return record("modifyBookInfo", () -> delegate.modifyBookInfo(book), RecordingLibrary::none,
+                array(args));
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return record("queryBook", () -> delegate.queryBook(conditions), RecordingLibrary::count,
+                conditions.getCategory(), conditions.getTitle(), conditions.getPress(),
+                str(conditions.getMinPublishYear()), str(conditions.getMaxPublishYear()),
+                conditions.getAuthor(), str(conditions.getMinPrice()), str(conditions.getMaxPrice()),
+                str(conditions.getSortBy()), str(conditions.getSortOrder()));
+    }
+
+    @Override
+    public ApiResult stripeBookStock(int bookId, int stripes) {
+        return record("stripeBookStock", () -> delegate.stripeBookStock(bookId, stripes),
+                RecordingLibrary::none, String.valueOf(bookId), String.valueOf(stripes));
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        String borrowTime = String.valueOf(borrow.getBorrowTime());
+        return record("borrowBook", () -> delegate.borrowBook(borrow),
+                ret -> String.valueOf(borrow.getBorrowTime()),
+                String.valueOf(borrow.getBookId()), String.valueOf(borrow.getCardId()), borrowTime);
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        String returnTime = String.valueOf(borrow.getReturnTime());
+        return record("returnBook", () -> delegate.returnBook(borrow),
+                ret -> String.valueOf(borrow.getReturnTime()),
+                String.valueOf(borrow.getBookId()), String.valueOf(borrow.getCardId()),
+                String.valueOf(borrow.getBorrowTime()), returnTime);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return record("showBorrowHistory", () -> delegate.showBorrowHistory(cardId), RecordingLibrary::count,
+                String.valueOf(cardId));
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        List<String> args = new ArrayList<>(3);
+        addCard(args, card);
+        return record("registerCard", () -> delegate.registerCard(card),
+                ret -> String.valueOf(card.getCardId()), array(args));
+    }
+
+    @Override
+    public ApiResult registerCards(List<Card> cards) {
+        List<String> args = new ArrayList<>(cards.size() * 3);
+        for (Card card : cards) {
+            addCard(args, card);
+        }
+        return record("registerCards", () -> delegate.registerCards(cards), ret -> {
+            List<Integer> ids = new ArrayList<>(cards.size());
+            for (Card card : cards) {
+                ids.add(card.getCardId());
+            }
+            return WorkloadLog.join(ids);
+        }, array(args));
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return record("removeCard", () -> delegate.removeCard(cardId), RecordingLibrary::none,
+                String.valueOf(cardId));
+    }
+
+    @Override
+    public ApiResult removeCards(List<Integer> cardIds) {
+        List<String> args = new ArrayList<>(cardIds.size());
+        for (int id : cardIds) {
+            args.add(String.valueOf(id));
+        }
+        return record("removeCards", () -> delegate.removeCards(cardIds), RecordingLibrary::none, array(args));
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return record("showCards", delegate::showCards, RecordingLibrary::count);
+    }
+
+    @Override
+    public ApiResult topBorrowedBooks(String category, long from, long to, int k) {
+        return record("topBorrowedBooks", () -> delegate.topBorrowedBooks(category, from, to, k),
+                RecordingLibrary::count, category, String.valueOf(from), String.valueOf(to), String.valueOf(k));
+    }
+
+    @Override
+    public ApiResult showDepartmentLoans(int k) {
+        return record("showDepartmentLoans", () -> delegate.showDepartmentLoans(k), RecordingLibrary::count,
+                String.valueOf(k));
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return record("resetDatabase", delegate::resetDatabase, RecordingLibrary::none);
+    }
+
+    /* flush and close the log, the delegate stays open */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    public long getRecorded() {
+        return writer.getEntries();
+    }
+
+    /* calls that could not be written to the log */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,586 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.SortOrder;
+import utils.LatencyStats;
+import utils.WorkloadLog;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+    replays a log written by RecordingLibrary against any implementation, at the recorded
+    pace (speed 1), n times faster (speed n) or as fast as the targets go (speed 0).
+    Every target gets its own worker thread. Calls that touch a book (borrowBook, returnBook
+    and the stock and book changes) go to the worker of that book, the other calls on a card
+    to the worker of that card, everything else is spread over the workers. A call that
+    touches a book or card also waits for the earlier calls on it that run on other workers,
+    so the calls on one book, and on one card, keep the recorded order across workers.
+    resetDatabase waits for all earlier calls to finish.
+    The ids assigned by the replay and the borrow times it stamps differ from the recorded
+    ones; later calls are translated, and a call that needs the result of an earlier one
+    waits for it. A call diverges when it succeeds where the recording failed or the other
+    way round, or when a query sees a different number of rows.
+    Latency is taken from the moment the call was due by the schedule, so a target that
+    falls behind shows up in the percentiles instead of silently slowing the replay down.
+ */
+public class WorkloadReplayer {
+
+    private static final int MAX_EXAMPLES = 10;
+
+    private static final class Task {
+        final long line;
+        final WorkloadLog.Entry entry;
+        final long dueNanos;
+        /* the earlier calls on the same books and cards */
+        final List<CompletableFuture<Void>> after;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Task(long line, WorkloadLog.Entry entry, long dueNanos, List<CompletableFuture<Void>> after) {
+            this.line = line;
+            this.entry = entry;
+            this.dueNanos = dueNanos;
+            this.after = after;
+        }
+    }
+
+    private static final Task END = new Task(0, null, 0, Collections.emptyList());
+
+    public static final class Report {
+        private final long calls;
+        private final long elapsedMillis;
+        private final long divergences;
+        private final List<String> examples;
+        private final LatencyStats response;
+        private final LatencyStats service;
+        private final LatencyStats recorded;
+        private final Map<String, LatencyStats> methods;
+
+        Report(long calls, long elapsedMillis, long divergences, List<String> examples, LatencyStats response,
+               LatencyStats service, LatencyStats recorded, Map<String, LatencyStats> methods) {
+            this.calls = calls;
+            this.elapsedMillis = elapsedMillis;
+            this.divergences = divergences;
+            this.examples = examples;
+            this.response = response;
+            this.service = service;
+            this.recorded = recorded;
+            this.methods = methods;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getCallsPerSecond() {
+            return elapsedMillis == 0 ? calls : calls * 1000.0 / elapsedMillis;
+        }
+
+        public long getDivergences() {
+            return divergences;
+        }
+
+        /* the first few diverging calls, with their line in the log */
+        public List<String> getExamples() {
+            return examples;
+        }
+
+        /* from the time a call was due to its end */
+        public LatencyStats getResponse() {
+            return response;
+        }
+
+        /* from the time a call started to its end */
+        public LatencyStats getService() {
+            return service;
+        }
+
+        /* the durations written by RecordingLibrary */
+        public LatencyStats getRecorded() {
+            return recorded;
+        }
+
+        /* service time per method */
+        public Map<String, LatencyStats> getMethods() {
+            return methods;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Report {calls=").append(calls)
+                    .append(", elapsedMillis=").append(elapsedMillis)
+                    .append(", callsPerSecond=").append(String.format("%.1f", getCallsPerSecond()))
+                    .append(", divergences=").append(divergences).append("}\n");
+            sb.append("  response: ").append(response).append('\n');
+            sb.append("  service:  ").append(service).append('\n');
+            sb.append("  recorded: ").append(recorded).append('\n');
+            for (Map.Entry<String, LatencyStats> e : methods.entrySet()) {
+                sb.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+            }
+            for (String example : examples) {
+                sb.append("  diverged ").append(example).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    private final List<? extends LibraryManagementSystem> targets;
+
+    /* recorded id -> id assigned by the replay, present once the assigning call is dispatched */
+    private final Map<Integer, CompletableFuture<Integer>> bookIds = new ConcurrentHashMap<>();
+    private final Map<Integer, CompletableFuture<Integer>> cardIds = new ConcurrentHashMap<>();
+    /* "card:book:recorded borrow time" -> borrow time stamped by the replay */
+    private final Map<String, CompletableFuture<Long>> borrowTimes = new ConcurrentHashMap<>();
+    /* "b<recorded book id>" / "c<recorded card id>" -> the last call dispatched on it, only used by the reader */
+    private final Map<String, CompletableFuture<Void>> lastCalls = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition idle = lock.newCondition();
+    private long inFlight = 0;
+
+    private final AtomicLong divergences = new AtomicLong();
+    private final List<String> examples = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, LatencyStats> methods = new ConcurrentHashMap<>();
+    private LatencyStats response;
+    private LatencyStats service;
+
+    /**
+     * @param targets one worker thread is started per target; pass the same library several
+     *                times if it is safe to share between threads
+     */
+    public WorkloadReplayer(List<? extends LibraryManagementSystem> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("no target to replay against");
+        }
+        this.targets = targets;
+    }
+
+    /**
+     * @param speed 1 replays at the recorded pace, 2 twice as fast, 0 as fast as possible
+     */
+    public Report replay(Path path, double speed) throws IOException, InterruptedException {
+        bookIds.clear();
+        cardIds.clear();
+        borrowTimes.clear();
+        lastCalls.clear();
+        divergences.set(0);
+        examples.clear();
+        methods.clear();
+        response = new LatencyStats();
+        service = new LatencyStats();
+        LatencyStats recorded = new LatencyStats();
+
+        List<BlockingQueue<Task>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < targets.size(); ++i) {
+            BlockingQueue<Task> queue = new LinkedBlockingQueue<>(1024);
+            LibraryManagementSystem target = targets.get(i);
+            Thread t = new Thread(() -> work(target, queue), "workload-replay-" + (i + 1));
+            t.setDaemon(true);
+            queues.add(queue);
+            workers.add(t);
+        }
+        workers.forEach(Thread::start);
+
+        long calls = 0;
+        long begin = System.nanoTime();
+        try (WorkloadLog.Reader reader = new WorkloadLog.Reader(path)) {
+            long first = -1;
+            for (WorkloadLog.Entry entry; (entry = reader.next()) != null; ) {
+                ++calls;
+                recorded.record(entry.getDurationMicros() * 1000);
+                if (first < 0) {
+                    first = entry.getStartMicros();
+                }
+                long due = System.nanoTime();
+                if (speed > 0) {
+                    due = begin + (long) ((entry.getStartMicros() - first) * 1000 / speed);
+                    for (long left; (left = due - System.nanoTime()) > 0; ) {
+                        LockSupport.parkNanos(left);
+                    }
+                }
+                if ("resetDatabase".equals(entry.getMethod())) {
+                    awaitIdle();
+                    bookIds.clear();
+                    cardIds.clear();
+                    borrowTimes.clear();
+                    lastCalls.clear();
+                }
+                expect(entry);
+                lock.lock();
+                try {
+                    ++inFlight;
+                } finally {
+                    lock.unlock();
+                }
+                List<String> keys = keys(entry);
+                List<CompletableFuture<Void>> after = new ArrayList<>();
+                for (String key : keys) {
+                    CompletableFuture<Void> last = lastCalls.get(key);
+                    if (last != null && !last.isDone()) {
+                        after.add(last);
+                    }
+                }
+                Task task = new Task(calls, entry, due, after);
+                for (String key : keys) {
+                    lastCalls.put(key, task.done);
+                }
+                int worker = keys.isEmpty() ? (int) calls : keys.get(0).hashCode();
+                queues.get(Math.floorMod(worker, queues.size())).put(task);
+            }
+        } finally {
+            for (BlockingQueue<Task> queue : queues) {
+                queue.put(END);
+            }
+            for (Thread t : workers) {
+                t.join();
+            }
+        }
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+        return new Report(calls, elapsed, divergences.get(), new ArrayList<>(examples), response, service,
+                recorded, new TreeMap<>(methods));
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight > 0) {
+                idle.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+        the books and cards a call depends on, the first one picks its worker: every call that
+        changes a book's stock goes by the book. empty for calls that are only spread.
+     */
+    private static List<String> keys(WorkloadLog.Entry entry) {
+        List<String> keys = new ArrayList<>();
+        switch (entry.getMethod()) {
+            case "borrowBook":
+            case "returnBook":
+                keys.add("b" + entry.intArg(0));
+                keys.add("c" + entry.intArg(1));
+                break;
+            case "incBookStock":
+            case "removeBook":
+            case "stripeBookStock":
+            case "modifyBookInfo":
+                keys.add("b" + entry.intArg(0));
+                break;
+            case "showBorrowHistory":
+            case "removeCard":
+                keys.add("c" + entry.intArg(0));
+                break;
+            case "removeCards":
+                for (int i = 0; i < entry.getArgs().length; ++i) {
+                    keys.add("c" + entry.intArg(i));
+                }
+                break;
+            default:
+                break;
+        }
+        return keys;
+    }
+
+    /* announce the ids and borrow times this call is going to produce, before later calls ask for them */
+    private void expect(WorkloadLog.Entry entry) {
+        if (!entry.isOk()) {
+            return;
+        }
+        switch (entry.getMethod()) {
+            case "storeBook":
+            case "storeBooks":
+                for (int id : WorkloadLog.split(entry.getResult())) {
+                    bookIds.put(id, new CompletableFuture<>());
+                }
+                break;
+            case "registerCard":
+            case "registerCards":
+                for (int id : WorkloadLog.split(entry.getResult())) {
+                    cardIds.put(id, new CompletableFuture<>());
+                }
+                break;
+            case "borrowBook":
+                borrowTimes.put(loan(entry.intArg(1), entry.intArg(0), Long.parseLong(entry.getResult())),
+                        new CompletableFuture<>());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void work(LibraryManagementSystem target, BlockingQueue<Task> queue) {
+        for (;;) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == END) {
+                return;
+            }
+            /* earlier calls always sit ahead in their own queue, so this never waits in a circle */
+            for (CompletableFuture<Void> earlier : task.after) {
+                earlier.join();
+            }
+            long start = System.nanoTime();
+            ApiResult ret;
+            try {
+                ret = call(target, task.entry);
+            } catch (RuntimeException e) {
+                ret = new ApiResult(false, e.toString());
+            }
+            settle(task.entry);
+            task.done.complete(null);
+            long end = System.nanoTime();
+            response.record(end - task.dueNanos);
+            service.record(end - start);
+            methods.computeIfAbsent(task.entry.getMethod(), m -> new LatencyStats()).record(end - start);
+            compare(task, ret);
+            lock.lock();
+            try {
+                if (--inFlight == 0) {
+                    idle.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /* whatever the call did not resolve keeps its recorded value, so no later call waits forever */
+    private void settle(WorkloadLog.Entry entry) {
+        if (!entry.isOk()) {
+            return;
+        }
+        switch (entry.getMethod()) {
+            case "storeBook":
+            case "storeBooks":
+                for (int id : WorkloadLog.split(entry.getResult())) {
+                    resolve(bookIds, id, id);
+                }
+                break;
+            case "registerCard":
+            case "registerCards":
+                for (int id : WorkloadLog.split(entry.getResult())) {
+                    resolve(cardIds, id, id);
+                }
+                break;
+            case "borrowBook": {
+                long time = Long.parseLong(entry.getResult());
+                resolve(borrowTimes, loan(entry.intArg(1), entry.intArg(0), time), time);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void compare(Task task, ApiResult ret) {
+        WorkloadLog.Entry entry = task.entry;
+        String why = null;
+        if (ret.ok != entry.isOk()) {
+            why = "recorded ok=" + entry.isOk() + ", replayed ok=" + ret.ok + " (" + ret.message + ")";
+        } else if (ret.ok && isQuery(entry.getMethod())
+                && !RecordingLibrary.count(ret).equals(entry.getResult())) {
+            why = "recorded " + entry.getResult() + " rows, replayed " + RecordingLibrary.count(ret);
+        }
+        if (why == null) {
+            return;
+        }
+        divergences.incrementAndGet();
+        if (examples.size() < MAX_EXAMPLES) {
+            examples.add("line " + (task.line + 1) + " " + entry.getMethod() + ": " + why);
+        }
+    }
+
+    private static boolean isQuery(String method) {
+        return "queryBook".equals(method) || "showBorrowHistory".equals(method) || "showCards".equals(method)
+                || "topBorrowedBooks".equals(method) || "showDepartmentLoans".equals(method);
+    }
+
+    private static String loan(int cardId, int bookId, long borrowTime) {
+        return cardId + ":" + bookId + ":" + borrowTime;
+    }
+
+    /* ids that no call of the log assigned are taken as they are */
+    private static int translate(Map<Integer, CompletableFuture<Integer>> ids, int recorded) {
+        CompletableFuture<Integer> id = ids.get(recorded);
+        return id == null ? recorded : id.join();
+    }
+
+    private static <T> void resolve(Map<?, CompletableFuture<T>> map, Object recorded, T replayed) {
+        CompletableFuture<T> f = map.get(recorded);
+        if (f != null) {
+            f.complete(replayed);
+        }
+    }
+
+    private static ApiResult invoke(Supplier<ApiResult> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            return new ApiResult(false, e.toString());
+        }
+    }
+
+    private static Integer integer(String s) {
+        return s == null ? null : Integer.valueOf(s);
+    }
+
+    private static Double dbl(String s) {
+        return s == null ? null : Double.valueOf(s);
+    }
+
+    private Book book(WorkloadLog.Entry entry, int at, boolean mapId) {
+        Book book = new Book(entry.arg(at + 1), entry.arg(at + 2), entry.arg(at + 3), entry.intArg(at + 4),
+                entry.arg(at + 5), Double.parseDouble(entry.arg(at + 6)), entry.intArg(at + 7));
+        if (mapId) {
+            book.setBookId(translate(bookIds, entry.intArg(at)));
+        }
+        return book;
+    }
+
+    private static Card card(WorkloadLog.Entry entry, int at) {
+        return new Card(0, entry.arg(at), entry.arg(at + 1), Card.CardType.values(entry.arg(at + 2)));
+    }
+
+    private ApiResult call(LibraryManagementSystem target, WorkloadLog.Entry entry) {
+        ApiResult ret;
+        switch (entry.getMethod()) {
+            case "storeBook": {
+                Book book = book(entry, 0, false);
+                ret = invoke(() -> target.storeBook(book));
+                if (ret.ok) {
+                    resolve(bookIds, entry.getResult().isEmpty() ? 0 : Integer.parseInt(entry.getResult()),
+                            book.getBookId());
+                }
+                return ret;
+            }
+            case "storeBooks": {
+                List<Book> books = new ArrayList<>();
+                for (int at = 0; at < entry.getArgs().length; at += 8) {
+                    books.add(book(entry, at, false));
+                }
+                ret = invoke(() -> target.storeBook(books));
+                List<Integer> ids = WorkloadLog.split(entry.getResult());
+                for (int i = 0; ret.ok && i < ids.size() && i < books.size(); ++i) {
+                    resolve(bookIds, ids.get(i), books.get(i).getBookId());
+                }
+                return ret;
+            }
+            case "incBookStock":
+                return invoke(() -> target.incBookStock(translate(bookIds, entry.intArg(0)), entry.intArg(1)));
+            case "removeBook":
+                return invoke(() -> target.removeBook(translate(bookIds, entry.intArg(0))));
+            case "modifyBookInfo":
+                return invoke(() -> target.modifyBookInfo(book(entry, 0, true)));
+            case "queryBook": {
+                BookQueryConditions conditions = new BookQueryConditions();
+                conditions.setCategory(entry.arg(0));
+                conditions.setTitle(entry.arg(1));
+                conditions.setPress(entry.arg(2));
+                conditions.setMinPublishYear(integer(entry.arg(3)));
+                conditions.setMaxPublishYear(integer(entry.arg(4)));
+                conditions.setAuthor(entry.arg(5));
+                conditions.setMinPrice(dbl(entry.arg(6)));
+                conditions.setMaxPrice(dbl(entry.arg(7)));
+                conditions.setSortBy(entry.arg(8) == null ? null : Book.SortColumn.valueOf(entry.arg(8)));
+                conditions.setSortOrder(entry.arg(9) == null ? null : SortOrder.valueOf(entry.arg(9)));
+                return invoke(() -> target.queryBook(conditions));
+            }
+            case "stripeBookStock":
+                return invoke(() -> target.stripeBookStock(translate(bookIds, entry.intArg(0)), entry.intArg(1)));
+            case "borrowBook": {
+                Borrow borrow = new Borrow(translate(bookIds, entry.intArg(0)), translate(cardIds, entry.intArg(1)));
+                borrow.setBorrowTime(entry.longArg(2));
+                ret = invoke(() -> target.borrowBook(borrow));
+                if (ret.ok && entry.isOk()) {
+                    resolve(borrowTimes, loan(entry.intArg(1), entry.intArg(0), Long.parseLong(entry.getResult())),
+                            borrow.getBorrowTime());
+                }
+                return ret;
+            }
+            case "returnBook": {
+                Borrow borrow = new Borrow(translate(bookIds, entry.intArg(0)), translate(cardIds, entry.intArg(1)));
+                long recordedTime = entry.longArg(2);
+                CompletableFuture<Long> stamped = borrowTimes.get(loan(entry.intArg(1), entry.intArg(0), recordedTime));
+                long borrowTime = stamped == null ? recordedTime : stamped.join();
+                borrow.setBorrowTime(borrowTime);
+                /* an explicit return time keeps its distance to the borrow time */
+                long returnTime = entry.longArg(3);
+                borrow.setReturnTime(returnTime == 0 ? 0 : returnTime + borrowTime - recordedTime);
+                return invoke(() -> target.returnBook(borrow));
+            }
+            case "showBorrowHistory":
+                return invoke(() -> target.showBorrowHistory(translate(cardIds, entry.intArg(0))));
+            case "registerCard": {
+                Card card = card(entry, 0);
+                ret = invoke(() -> target.registerCard(card));
+                if (ret.ok) {
+                    resolve(cardIds, entry.getResult().isEmpty() ? 0 : Integer.parseInt(entry.getResult()),
+                            card.getCardId());
+                }
+                return ret;
+            }
+            case "registerCards": {
+                List<Card> cards = new ArrayList<>();
+                for (int at = 0; at < entry.getArgs().length; at += 3) {
+                    cards.add(card(entry, at));
+                }
+                ret = invoke(() -> target.registerCards(cards));
+                List<Integer> ids = WorkloadLog.split(entry.getResult());
+                for (int i = 0; ret.ok && i < ids.size() && i < cards.size(); ++i) {
+                    resolve(cardIds, ids.get(i), cards.get(i).getCardId());
+                }
+                return ret;
+            }
+            case "removeCard":
+                return invoke(() -> target.removeCard(translate(cardIds, entry.intArg(0))));
+            case "removeCards": {
+                List<Integer> ids = new ArrayList<>();
+                for (int i = 0; i < entry.getArgs().length; ++i) {
+                    ids.add(translate(cardIds, entry.intArg(i)));
+                }
+                return invoke(() -> target.removeCards(ids));
+            }
+            case "showCards":
+                return invoke(target::showCards);
+            case "topBorrowedBooks":
+                return invoke(() -> target.topBorrowedBooks(entry.arg(0), entry.longArg(1), entry.longArg(2),
+                        entry.intArg(3)));
+            case "showDepartmentLoans":
+                return invoke(() -> target.showDepartmentLoans(entry.intArg(0)));
+            case "resetDatabase":
+                return invoke(target::resetDatabase);
+            default:
+                return new ApiResult(false, "unknown method " + entry.getMethod());
+        }
+    }
+}
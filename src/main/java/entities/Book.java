@@ -13,6 +13,8 @@ public final class Book {
     private String author;
     private double price;
     private int stock;
+    /* row version for optimistic concurrency, bumped by every update of the book */
+    private int version;
 
     public enum SortColumn {
         BOOK_ID("book_id", Comparator.comparingInt(Book::getBookId)),
@@ -63,6 +65,7 @@ public final class Book {
     public Book clone() {
         Book b = new Book(category, title, press, publishYear, author, price, stock);
         b.bookId = bookId;
+        b.version = version;
         return b;
     }
 
@@ -160,4 +163,12 @@ public final class Book {
     public void setStock(int stock) {
         this.stock = stock;
     }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
 }
@@ -1,6 +1,6 @@
 package entities;
 
-import java.util.Date;
+import utils.UniqueClock;
 
 public final class Borrow {
     private int cardId;
@@ -31,22 +31,14 @@ public final class Borrow {
                 '}';
     }
 
+    /* a unique timestamp, no two borrows of this process share a borrow time */
     public void resetBorrowTime() {
-        this.borrowTime = new Date().getTime();
-        try {
-            Thread.sleep(1);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this.borrowTime = UniqueClock.get().next();
     }
 
+    /* a unique timestamp after the borrow time */
     public void resetReturnTime() {
-        this.returnTime = new Date().getTime();
-        try {
-            Thread.sleep(1);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this.returnTime = UniqueClock.get().nextAfter(borrowTime);
     }
 
     public int getCardId() {
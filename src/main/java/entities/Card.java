@@ -1,7 +1,7 @@
 package entities;
 
 import java.util.Objects;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public final class Card {
 
@@ -30,7 +30,7 @@ public final class Card {
         }
 
         public static CardType random() {
-            return values()[new Random().nextInt(values().length)];
+            return values()[ThreadLocalRandom.current().nextInt(values().length)];
         }
     };
 
@@ -0,0 +1,66 @@
+package queries;
+
+import java.util.List;
+
+public class DepartmentLoans {
+
+    public static class Item {
+        private String department;
+        private long loans;
+
+        public Item() {
+        }
+
+        public Item(String department, long loans) {
+            this.department = department;
+            this.loans = loans;
+        }
+
+        @Override
+        public String toString() {
+            return "Item {" + "department='" + department + '\'' +
+                    ", loans=" + loans +
+                    '}';
+        }
+
+        public String getDepartment() {
+            return department;
+        }
+
+        public void setDepartment(String department) {
+            this.department = department;
+        }
+
+        public long getLoans() {
+            return loans;
+        }
+
+        public void setLoans(long loans) {
+            this.loans = loans;
+        }
+    }
+
+    private int count;
+    private List<Item> items;
+
+    public DepartmentLoans(List<Item> items) {
+        this.count = items.size();
+        this.items = items;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Item> items) {
+        this.items = items;
+    }
+}
@@ -0,0 +1,68 @@
+package queries;
+
+import entities.Book;
+
+import java.util.List;
+
+public class PopularBooks {
+
+    public static class Item {
+        private Book book;
+        private long borrows;
+
+        public Item() {
+        }
+
+        public Item(Book book, long borrows) {
+            this.book = book;
+            this.borrows = borrows;
+        }
+
+        @Override
+        public String toString() {
+            return "Item {" + "book=" + book +
+                    ", borrows=" + borrows +
+                    '}';
+        }
+
+        public Book getBook() {
+            return book;
+        }
+
+        public void setBook(Book book) {
+            this.book = book;
+        }
+
+        public long getBorrows() {
+            return borrows;
+        }
+
+        public void setBorrows(long borrows) {
+            this.borrows = borrows;
+        }
+    }
+
+    private int count;
+    private List<Item> items;
+
+    public PopularBooks(List<Item> items) {
+        this.count = items.size();
+        this.items = items;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Item> items) {
+        this.items = items;
+    }
+}
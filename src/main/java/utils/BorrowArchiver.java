@@ -0,0 +1,325 @@
+package utils;
+
+import queries.ApiResult;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * background job that moves returned loans older than a cutoff from borrow into
+ * borrow_archive, so borrow only holds recent history and the open loans. Rows are moved
+ * in chunks of chunkSize, each in a short transaction of its own, so borrowers are never
+ * blocked for long; showBorrowHistory reads both tables and does not notice the move.
+ * Open loans are never touched, so returnBook always finds its row in borrow.
+ *
+ * Where the vendor partitions borrow by borrow_time (see DBInitializer#sqlCreateBorrowPartition),
+ * ensurePartitions() adds the ranges ahead of time, and the archival scans only touch the
+ * partitions below the cutoff.
+ *
+ * purge() deletes the history of the cards listed in removed_card the same way, chunk by
+ * chunk; removeCard only records the card there, so its latency does not depend on the
+ * length of the history.
+ *
+ * Note that only one archiver should run per database, two of them would race for the
+ * same rows and fail on the primary key of borrow_archive.
+ */
+public class BorrowArchiver implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger(BorrowArchiver.class.getName());
+
+    private final DatabaseConnector connector;
+    private final TransactionExecutor tx;
+    private final DBInitializer initializer;
+    private final int chunkSize;
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param chunkSize rows moved per transaction
+     */
+    public BorrowArchiver(ConnectConfig conf, int chunkSize) {
+        this.connector = new DatabaseConnector(conf);
+        if (!connector.connect()) {
+            throw new IllegalStateException("failed to connect to database");
+        }
+        this.tx = new TransactionExecutor(connector);
+        this.initializer = conf.getType().getDbInitializer();
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * move every loan returned before cutoff into borrow_archive.
+     *
+     * @return rows moved
+     */
+    public long archive(long cutoff) throws SQLException {
+        long moved = 0;
+        for (;;) {
+            int n = archiveChunk(cutoff);
+            moved += n;
+            if (n < chunkSize) {
+                break;
+            }
+        }
+        runs.incrementAndGet();
+        return moved;
+    }
+
+    private int archiveChunk(long cutoff) throws SQLException {
+        ApiResult result = tx.execute(Connection.TRANSACTION_READ_COMMITTED, conn -> {
+            /* borrow_time < cutoff follows from the rest, it is there to prune partitions */
+            String que_sql = "SELECT card_id, book_id, borrow_time, return_time FROM borrow " +
+                    "WHERE borrow_time < ? AND return_time > 0 AND return_time < ?";
+            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
+            que_stmt.setMaxRows(chunkSize);
+            que_stmt.setLong(1, cutoff);
+            que_stmt.setLong(2, cutoff);
+            ResultSet ret = que_stmt.executeQuery();
+            List<long[]> rows = new ArrayList<>();
+            while (ret.next()) {
+                rows.add(new long[]{ret.getInt(1), ret.getInt(2), ret.getLong(3), ret.getLong(4)});
+            }
+            que_stmt.close();
+            if (rows.isEmpty()) {
+                return new ApiResult(true, null, 0);
+            }
+            String ins_sql = "INSERT INTO borrow_archive (card_id, book_id, borrow_time, return_time) " +
+                    "VALUES (?, ?, ?, ?)";
+            String del_sql = "DELETE FROM borrow WHERE card_id = ? AND book_id = ? AND borrow_time = ?";
+            PreparedStatement ins_stmt = conn.prepareStatement(ins_sql);
+            PreparedStatement del_stmt = conn.prepareStatement(del_sql);
+            for (long[] row : rows) {
+                ins_stmt.setInt(1, (int) row[0]);
+                ins_stmt.setInt(2, (int) row[1]);
+                ins_stmt.setLong(3, row[2]);
+                ins_stmt.setLong(4, row[3]);
+                ins_stmt.addBatch();
+                del_stmt.setInt(1, (int) row[0]);
+                del_stmt.setInt(2, (int) row[1]);
+                del_stmt.setLong(3, row[2]);
+                del_stmt.addBatch();
+            }
+            ins_stmt.executeBatch();
+            del_stmt.executeBatch();
+            ins_stmt.close();
+            del_stmt.close();
+            return new ApiResult(true, null, rows.size());
+        });
+        if (!result.ok) {
+            throw new SQLException("failed to archive borrow records: " + result.message);
+        }
+        int n = (Integer) result.payload;
+        archived.addAndGet(n);
+        return n;
+    }
+
+    /**
+     * delete the borrow and borrow_archive rows of every card in removed_card, then drop
+     * the card from removed_card once both tables are clean.
+     *
+     * @return rows deleted
+     */
+    public long purge() throws SQLException {
+        long deleted = 0;
+        for (;;) {
+            List<Integer> cards = removedCards();
+            for (int cardId : cards) {
+                for (String table : new String[]{"borrow", "borrow_archive"}) {
+                    for (;;) {
+                        int n = purgeChunk(table, cardId);
+                        deleted += n;
+                        if (n < chunkSize) {
+                            break;
+                        }
+                    }
+                }
+                forget(cardId);
+            }
+            if (cards.size() < chunkSize) {
+                break;
+            }
+        }
+        return deleted;
+    }
+
+    private List<Integer> removedCards() throws SQLException {
+        List<Integer> cards = new ArrayList<>();
+        ApiResult result = tx.execute(conn -> {
+            PreparedStatement que_stmt = conn.prepareStatement("SELECT card_id FROM removed_card ORDER BY card_id");
+            que_stmt.setMaxRows(chunkSize);
+            ResultSet ret = que_stmt.executeQuery();
+            while (ret.next()) {
+                cards.add(ret.getInt(1));
+            }
+            que_stmt.close();
+            return new ApiResult(true, null);
+        });
+        if (!result.ok) {
+            throw new SQLException("failed to read removed cards: " + result.message);
+        }
+        return cards;
+    }
+
+    private int purgeChunk(String table, int cardId) throws SQLException {
+        ApiResult result = tx.execute(Connection.TRANSACTION_READ_COMMITTED, conn -> {
+            /* keyed by the primary key, which starts with card_id */
+            PreparedStatement que_stmt = conn.prepareStatement(
+                    "SELECT book_id, borrow_time FROM " + table + " WHERE card_id = ?");
+            que_stmt.setMaxRows(chunkSize);
+            que_stmt.setInt(1, cardId);
+            ResultSet ret = que_stmt.executeQuery();
+            List<long[]> rows = new ArrayList<>();
+            while (ret.next()) {
+                rows.add(new long[]{ret.getInt(1), ret.getLong(2)});
+            }
+            que_stmt.close();
+            if (rows.isEmpty()) {
+                return new ApiResult(true, null, 0);
+            }
+            PreparedStatement del_stmt = conn.prepareStatement(
+                    "DELETE FROM " + table + " WHERE card_id = ? AND book_id = ? AND borrow_time = ?");
+            for (long[] row : rows) {
+                del_stmt.setInt(1, cardId);
+                del_stmt.setInt(2, (int) row[0]);
+                del_stmt.setLong(3, row[1]);
+                del_stmt.addBatch();
+            }
+            del_stmt.executeBatch();
+            del_stmt.close();
+            return new ApiResult(true, null, rows.size());
+        });
+        if (!result.ok) {
+            throw new SQLException("failed to purge " + table + " records: " + result.message);
+        }
+        int n = (Integer) result.payload;
+        purged.addAndGet(n);
+        return n;
+    }
+
+    private void forget(int cardId) throws SQLException {
+        ApiResult result = tx.execute(conn -> {
+            PreparedStatement del_stmt = conn.prepareStatement("DELETE FROM removed_card WHERE card_id = ?");
+            del_stmt.setInt(1, cardId);
+            del_stmt.executeUpdate();
+            del_stmt.close();
+            return new ApiResult(true, null);
+        });
+        if (!result.ok) {
+            throw new SQLException("failed to forget removed card: " + result.message);
+        }
+    }
+
+    /**
+     * create the partitions of borrow for the next ahead ranges of width milliseconds, the
+     * first one starting at the range boundary after now. Ranges are only added in advance,
+     * a vendor refuses a range that rows of the default partition already fall into.
+     *
+     * @return partitions created or already there, 0 if the vendor keeps borrow unpartitioned
+     */
+    public int ensurePartitions(long now, long width, int ahead) throws SQLException {
+        long from = (now / width + 1) * width;
+        List<String> sqls = new ArrayList<>();
+        for (int i = 0; i < ahead; ++i) {
+            long start = from + i * width;
+            String sql = initializer.sqlCreateBorrowPartition("borrow_p" + start, start, start + width);
+            if (sql == null) {
+                return 0;
+            }
+            sqls.add(sql);
+        }
+        ApiResult result = tx.execute(conn -> {
+            Statement stmt = conn.createStatement();
+            for (String sql : sqls) {
+                stmt.addBatch(sql);
+            }
+            stmt.executeBatch();
+            stmt.close();
+            return new ApiResult(true, null);
+        });
+        if (!result.ok) {
+            throw new SQLException("failed to create borrow partitions: " + result.message);
+        }
+        return ahead;
+    }
+
+    /**
+     * archive loans returned more than retentionMillis ago and purge the history of removed
+     * cards every periodMillis on a daemon thread, starting at once. A failed run is logged
+     * and retried on the next one.
+     */
+    public synchronized void start(long retentionMillis, long periodMillis) {
+        if (scheduler != null) {
+            throw new IllegalStateException("archiver already started");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "borrow-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                long moved = archive(System.currentTimeMillis() - retentionMillis);
+                log.fine("Archived " + moved + " borrow records.");
+                long deleted = purge();
+                log.fine("Purged " + deleted + " borrow records of removed cards.");
+            } catch (SQLException | RuntimeException e) {
+                failures.incrementAndGet();
+                log.log(Level.WARNING, "Borrow archival failed.", e);
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /* stop the scheduled runs, waiting for a running one, and release the connection */
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+        }
+        connector.release();
+    }
+
+    /* rows moved into borrow_archive so far */
+    public long getArchived() {
+        return archived.get();
+    }
+
+    /* rows of removed cards deleted so far */
+    public long getPurged() {
+        return purged.get();
+    }
+
+    /* completed archive() calls, scheduled or not */
+    public long getRuns() {
+        return runs.get();
+    }
+
+    /* scheduled runs that failed */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+}
@@ -0,0 +1,62 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * vendor-native bulk ingest, e.g. LOAD DATA LOCAL INFILE, bulk copy or COPY FROM STDIN.
+ *
+ * Rows are read from a csv stream: utf-8, comma separated, one row per '\n'
+ * terminated line, no header, fields may be enclosed in '"' with '""' as an
+ * escaped quote. The load runs inside the current transaction of conn.
+ */
+public interface BulkLoader {
+
+    final class Column {
+        private final String name;
+        private final int jdbcType;
+        private final int precision;
+        private final int scale;
+
+        public Column(String name, int jdbcType, int precision, int scale) {
+            this.name = name;
+            this.jdbcType = jdbcType;
+            this.precision = precision;
+            this.scale = scale;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getJdbcType() {
+            return jdbcType;
+        }
+
+        public int getPrecision() {
+            return precision;
+        }
+
+        public int getScale() {
+            return scale;
+        }
+    }
+
+    /**
+     * @return number of loaded rows, or -1 if the driver does not report it
+     */
+    long load(Connection conn, String table, List<Column> columns, InputStream csv)
+            throws SQLException, IOException;
+
+    static String columnList(List<Column> columns) {
+        StringBuilder sb = new StringBuilder();
+        for (Column column : columns) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(column.getName());
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,563 @@
+package utils;
+
+import entities.Book;
+import queries.ApiResult;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Streaming catalog importer for files of the form
+ * "category, title, press, publish_year, author, price, stock" (one book per line,
+ * fields may be double-quoted).
+ *
+ * The file is read in fixed-size chunks through a {@link FileChannel}, chunks are
+ * parsed by a pool of worker threads, duplicated books are dropped in memory and the
+ * remaining books are handed over in batches to a {@link BatchSink}. All stages are
+ * connected through bounded queues, so memory use does not depend on the file size.
+ *
+ * The in-memory de-duplication only remembers the most recent keys (see
+ * {@link #setDedupCapacity}), which catches duplicates that are close to each other
+ * in the file. Exact de-duplication across the whole file is left to the database:
+ * storeBook refuses books that already exist (they end up in the reject file) and
+ * the bulk path merges from the staging table without overwriting existing books.
+ *
+ * Rows that cannot be parsed or are refused by the database are written to the
+ * reject file (if configured) as "line_no<TAB>reason<TAB>raw line".
+ *
+ * {@link #bulkImportFile} runs the same pipeline but streams the books into the
+ * vendor-native {@link BulkLoader} of the database instead of batched INSERTs.
+ */
+public class CatalogImporter {
+
+    private static final Logger log = Logger.getLogger(CatalogImporter.class.getName());
+
+    /* schema limits of the book table */
+    private static final int MAX_TEXT_LENGTH = 63;
+    private static final double MAX_PRICE = 99999.99;
+
+    /* a batch consumer, typically LibraryManagementSystem::storeBook */
+    public interface BatchSink {
+        ApiResult store(List<Book> books);
+    }
+
+    public static final class Report {
+        private final long lines;
+        private final long imported;
+        private final long duplicates;
+        private final long rejected;
+        private final long elapsedMillis;
+
+        Report(long lines, long imported, long duplicates, long rejected, long elapsedMillis) {
+            this.lines = lines;
+            this.imported = imported;
+            this.duplicates = duplicates;
+            this.rejected = rejected;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedMillis == 0 ? lines : lines * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Report {" + "lines=" + lines +
+                    ", imported=" + imported +
+                    ", duplicates=" + duplicates +
+                    ", rejected=" + rejected +
+                    ", elapsedMillis=" + elapsedMillis +
+                    ", rowsPerSecond=" + String.format("%.1f", getRowsPerSecond()) +
+                    '}';
+        }
+    }
+
+    /* a piece of the file that ends at a line boundary */
+    private static final class Chunk {
+        final long firstLine;
+        final byte[] data;
+
+        Chunk(long firstLine, byte[] data) {
+            this.firstLine = firstLine;
+            this.data = data;
+        }
+    }
+
+    private interface BatchConsumer {
+        void accept(List<Book> batch, BufferedWriter rejectWriter) throws IOException;
+    }
+
+    /* column layout of the csv stream fed to the bulk loader */
+    private static final List<BulkLoader.Column> BOOK_STAGE_COLUMNS = Arrays.asList(
+            new BulkLoader.Column("category", Types.VARCHAR, 63, 0),
+            new BulkLoader.Column("title", Types.VARCHAR, 63, 0),
+            new BulkLoader.Column("press", Types.VARCHAR, 63, 0),
+            new BulkLoader.Column("publish_year", Types.INTEGER, 0, 0),
+            new BulkLoader.Column("author", Types.VARCHAR, 63, 0),
+            new BulkLoader.Column("price", Types.DECIMAL, 7, 2),
+            new BulkLoader.Column("stock", Types.INTEGER, 0, 0));
+    private static final int PIPE_BYTES = 1 << 20;
+
+    private static final Chunk END_OF_FILE = new Chunk(-1, new byte[0]);
+    private static final List<Book> END_OF_BATCHES = Collections.emptyList();
+
+    private int parserThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int chunkBytes = 1 << 20;
+    private int batchSize = 1000;
+    private int queueCapacity = 8;
+    private long progressInterval = 100000;
+    private int dedupCapacity = 1 << 16;
+    private Path rejectFile;
+
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final ReentrantLock rejectLock = new ReentrantLock();
+    private long startNanos;
+
+    /**
+     * import a catalog file, blocking until every line has been stored or rejected.
+     *
+     * @param csv  the catalog file
+     * @param sink receives batches of parsed, de-duplicated books
+     */
+    public Report importFile(Path csv, BatchSink sink) throws IOException, InterruptedException {
+        reset();
+        pipeline(csv, (batch, rejectWriter) -> store(batch, sink, rejectWriter));
+        return finish();
+    }
+
+    /**
+     * high-volume import through the vendor-native bulk loader of the connector's
+     * database type: parsed books are streamed into a session-local staging table,
+     * then merged into book in one statement that skips books which already exist.
+     * everything happens in a single transaction on the connector's connection.
+     *
+     * @param csv       the catalog file
+     * @param connector an open connector
+     * @throws SQLFeatureNotSupportedException if the database type has no bulk loader
+     */
+    public Report bulkImportFile(Path csv, DatabaseConnector connector)
+            throws IOException, InterruptedException, SQLException {
+        DatabaseType type = connector.getConf().getType();
+        if (type.getBulkLoader() == null) {
+            throw new SQLFeatureNotSupportedException("bulk import is not supported on " + type.getTypeName());
+        }
+        reset();
+        DBInitializer initializer = type.getDbInitializer();
+        Connection conn = connector.getConn();
+        PipedInputStream in = new PipedInputStream(PIPE_BYTES);
+        PipedOutputStream out = new PipedOutputStream(in);
+        AtomicLong staged = new AtomicLong();
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        Future<?> parsing = producer.submit(() -> {
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                pipeline(csv, (batch, rejectWriter) -> {
+                    for (Book book : batch) {
+                        writeCsv(writer, book);
+                    }
+                    staged.addAndGet(batch.size());
+                });
+            }
+            return null;
+        });
+        try (Statement stmt = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            stmt.executeUpdate(initializer.sqlDropBookStage());
+            stmt.executeUpdate(initializer.sqlCreateBookStage());
+            type.getBulkLoader().load(conn, initializer.bookStageTable(), BOOK_STAGE_COLUMNS, in);
+            parsing.get();
+            int merged = stmt.executeUpdate(initializer.sqlMergeBookStage());
+            stmt.executeUpdate(initializer.sqlDropBookStage());
+            conn.commit();
+            imported.set(merged);
+            duplicates.addAndGet(staged.get() - merged);
+        } catch (SQLException | IOException e) {
+            conn.rollback();
+            throw e;
+        } catch (ExecutionException e) {
+            conn.rollback();
+            throw new IOException("catalog import failed", e.getCause());
+        } finally {
+            /* unblocks the producer if the loader stopped reading early */
+            in.close();
+            producer.shutdownNow();
+        }
+        return finish();
+    }
+
+    private void reset() {
+        lines.set(0);
+        imported.set(0);
+        duplicates.set(0);
+        rejected.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    private Report finish() {
+        Report report = new Report(lines.get(), imported.get(), duplicates.get(), rejected.get(),
+                (System.nanoTime() - startNanos) / 1000000);
+        log.info("Catalog import finished. " + report);
+        return report;
+    }
+
+    /* run reader -> parsers -> consumer, the consumer is called on the calling thread */
+    private void pipeline(Path csv, BatchConsumer consumer) throws IOException, InterruptedException {
+        Set<String> seen = recentKeys(dedupCapacity);
+        BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<List<Book>> batches = new ArrayBlockingQueue<>(queueCapacity);
+        ExecutorService pool = Executors.newFixedThreadPool(parserThreads + 1);
+        BufferedWriter rejectWriter = rejectFile == null ? null
+                : Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8);
+        try {
+            List<Future<?>> parsers = new ArrayList<>();
+            for (int i = 0; i < parserThreads; ++i) {
+                parsers.add(pool.submit(() -> {
+                    parse(chunks, batches, seen, rejectWriter);
+                    return null;
+                }));
+            }
+            Future<?> reader = pool.submit(() -> {
+                read(csv, chunks);
+                return null;
+            });
+            int finished = 0;
+            while (finished < parserThreads) {
+                List<Book> batch = batches.take();
+                if (batch == END_OF_BATCHES) {
+                    ++finished;
+                } else {
+                    consumer.accept(batch, rejectWriter);
+                }
+            }
+            for (Future<?> parser : parsers) {
+                parser.get();
+            }
+            reader.get();
+        } catch (ExecutionException e) {
+            throw new IOException("catalog import failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (rejectWriter != null) {
+                rejectWriter.close();
+            }
+        }
+    }
+
+    /* a thread-safe set that forgets its least recently used keys beyond the capacity */
+    private static Set<String> recentKeys(int capacity) {
+        return Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        }));
+    }
+
+    private static void writeCsv(BufferedWriter writer, Book book) throws IOException {
+        writer.write(quote(book.getCategory()));
+        writer.write(',');
+        writer.write(quote(book.getTitle()));
+        writer.write(',');
+        writer.write(quote(book.getPress()));
+        writer.write(',');
+        writer.write(Integer.toString(book.getPublishYear()));
+        writer.write(',');
+        writer.write(quote(book.getAuthor()));
+        writer.write(',');
+        writer.write(BigDecimal.valueOf(book.getPrice()).setScale(2, RoundingMode.HALF_UP).toPlainString());
+        writer.write(',');
+        writer.write(Integer.toString(book.getStock()));
+        writer.write('\n');
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private void read(Path csv, BlockingQueue<Chunk> chunks) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(chunkBytes);
+            long lineNo = 1;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                byte[] array = buffer.array();
+                int end = buffer.position();
+                int cut = end - 1;
+                while (cut >= 0 && array[cut] != '\n') {
+                    --cut;
+                }
+                if (eof) {
+                    cut = end - 1;
+                } else if (cut < 0) {
+                    if (!buffer.hasRemaining()) {
+                        /* a single line longer than the buffer, grow it */
+                        buffer = ByteBuffer.wrap(Arrays.copyOf(array, array.length * 2), end, array.length);
+                    }
+                    continue;
+                }
+                if (cut >= 0) {
+                    Chunk chunk = new Chunk(lineNo, Arrays.copyOfRange(array, 0, cut + 1));
+                    for (int i = 0; i <= cut; ++i) {
+                        if (array[i] == '\n') {
+                            ++lineNo;
+                        }
+                    }
+                    chunks.put(chunk);
+                }
+                /* cast for java 8, where flip() and position() return Buffer */
+                ((Buffer) buffer).flip();
+                ((Buffer) buffer).position(cut + 1);
+                buffer.compact();
+            }
+        } finally {
+            for (int i = 0; i < parserThreads; ++i) {
+                chunks.put(END_OF_FILE);
+            }
+        }
+    }
+
+    private void parse(BlockingQueue<Chunk> chunks, BlockingQueue<List<Book>> batches,
+                       Set<String> seen, BufferedWriter rejectWriter) throws IOException, InterruptedException {
+        List<Book> batch = new ArrayList<>(batchSize);
+        try {
+            Chunk chunk;
+            while ((chunk = chunks.take()) != END_OF_FILE) {
+                String text = new String(chunk.data, StandardCharsets.UTF_8);
+                long lineNo = chunk.firstLine;
+                int from = 0;
+                while (from < text.length()) {
+                    int to = text.indexOf('\n', from);
+                    if (to < 0) {
+                        to = text.length();
+                    }
+                    String line = text.substring(from, to > from && text.charAt(to - 1) == '\r' ? to - 1 : to);
+                    from = to + 1;
+                    if (line.trim().isEmpty()) {
+                        ++lineNo;
+                        continue;
+                    }
+                    progress(lines.incrementAndGet());
+                    Book book;
+                    try {
+                        book = parseBook(line);
+                    } catch (IllegalArgumentException e) {
+                        reject(rejectWriter, lineNo++, e.getMessage(), line);
+                        continue;
+                    }
+                    ++lineNo;
+                    if (!seen.add(book.getCategory() + '\u0000' + book.getTitle() + '\u0000' + book.getPress()
+                            + '\u0000' + book.getPublishYear() + '\u0000' + book.getAuthor())) {
+                        duplicates.incrementAndGet();
+                        continue;
+                    }
+                    batch.add(book);
+                    if (batch.size() == batchSize) {
+                        batches.put(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+        } finally {
+            if (!batch.isEmpty()) {
+                batches.put(batch);
+            }
+            batches.put(END_OF_BATCHES);
+        }
+    }
+
+    private void store(List<Book> batch, BatchSink sink, BufferedWriter rejectWriter) throws IOException {
+        if (sink.store(batch).ok) {
+            imported.addAndGet(batch.size());
+            return;
+        }
+        /* the batch is refused as a whole, store one by one to isolate the bad rows */
+        for (Book book : batch) {
+            ApiResult result = sink.store(Collections.singletonList(book));
+            if (result.ok) {
+                imported.incrementAndGet();
+            } else {
+                reject(rejectWriter, -1, result.message, book.toString());
+            }
+        }
+    }
+
+    private void progress(long n) {
+        if (progressInterval > 0 && n % progressInterval == 0) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            log.info(String.format("Catalog import: %d lines read, %d imported, %d duplicates, " +
+                    "%d rejected, %.1f lines/s", n, imported.get(), duplicates.get(), rejected.get(), n / seconds));
+        }
+    }
+
+    private void reject(BufferedWriter rejectWriter, long lineNo, String reason, String line) throws IOException {
+        rejected.incrementAndGet();
+        if (rejectWriter != null) {
+            rejectLock.lock();
+            try {
+                rejectWriter.write((lineNo < 0 ? "-" : String.valueOf(lineNo)) + '\t' + reason + '\t' + line);
+                rejectWriter.newLine();
+            } finally {
+                rejectLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * parse one catalog line, throws IllegalArgumentException with the reason
+     * if the line is not a valid book.
+     */
+    public static Book parseBook(String line) {
+        List<String> fields = splitCsv(line);
+        if (fields.size() != 7) {
+            throw new IllegalArgumentException("expect 7 fields but got " + fields.size());
+        }
+        String category = text(fields.get(0), "category");
+        String title = text(fields.get(1), "title");
+        String press = text(fields.get(2), "press");
+        String author = text(fields.get(4), "author");
+        int publishYear;
+        double price;
+        int stock;
+        try {
+            publishYear = Integer.parseInt(fields.get(3));
+            price = Double.parseDouble(fields.get(5));
+            stock = Integer.parseInt(fields.get(6));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number: " + e.getMessage());
+        }
+        if (price < 0 || price > MAX_PRICE || Double.isNaN(price)) {
+            throw new IllegalArgumentException("price out of range");
+        }
+        if (stock < 0) {
+            throw new IllegalArgumentException("negative stock");
+        }
+        return new Book(category, title, press, publishYear, author, Math.round(price * 100) / 100.0, stock);
+    }
+
+    private static String text(String value, String name) {
+        if (value.isEmpty() || value.length() > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException(name + " must have 1-" + MAX_TEXT_LENGTH + " characters");
+        }
+        return value;
+    }
+
+    /* split a csv line, fields are trimmed and may be quoted with "" as escaped quote */
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>(7);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    ++i;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.toString().trim().isEmpty()) {
+                field.setLength(0);
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(wasQuoted ? field.toString() : field.toString().trim());
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (!wasQuoted || !Character.isWhitespace(c)) {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(wasQuoted ? field.toString() : field.toString().trim());
+        return fields;
+    }
+
+    public void setParserThreads(int parserThreads) {
+        this.parserThreads = Math.max(1, parserThreads);
+    }
+
+    public void setChunkBytes(int chunkBytes) {
+        this.chunkBytes = Math.max(64, chunkBytes);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    public void setDedupCapacity(int dedupCapacity) {
+        this.dedupCapacity = Math.max(1, dedupCapacity);
+    }
+
+    public void setRejectFile(Path rejectFile) {
+        this.rejectFile = rejectFile;
+    }
+}
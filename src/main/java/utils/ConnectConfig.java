@@ -16,9 +16,13 @@ public final class ConnectConfig {
     private final String password;
     private final String db;
     private final DatabaseType type;
+    private final ConnectionProfile profile;
+    private final ResetMode resetMode;
 
     public ConnectConfig() throws FileNotFoundException, NullPointerException, ClassNotFoundException {
-        URL res = ConnectConfig.class.getClassLoader().getResource("application.yaml");
+        /* e.g. -Dlibrary.config=application_h2.yaml to run against the embedded database */
+        URL res = ConnectConfig.class.getClassLoader().getResource(
+                System.getProperty("library.config", "application.yaml"));
         if (res == null) {
             throw new NullPointerException();
         }
@@ -32,10 +36,33 @@ public final class ConnectConfig {
         password = (String)objectMap.getOrDefault("password", "");
         db = (String)objectMap.getOrDefault("db", "library");
         type = DatabaseType.instance((String)objectMap.getOrDefault("type", "mysql"));
+        profile = ConnectionProfile.instance((String)objectMap.getOrDefault("profile", "oltp"));
+        resetMode = ResetMode.instance((String)objectMap.getOrDefault("reset", "recreate"));
         /* load database connect driver */
         Class.forName(type.getDriverName());
     }
 
+    private ConnectConfig(ConnectConfig other, String db, ConnectionProfile profile) {
+        this.host = other.host;
+        this.port = other.port;
+        this.user = other.user;
+        this.password = other.password;
+        this.db = db;
+        this.type = other.type;
+        this.profile = profile;
+        this.resetMode = other.resetMode;
+    }
+
+    /* the same database with another connection profile */
+    public ConnectConfig withProfile(ConnectionProfile profile) {
+        return new ConnectConfig(this, db, profile);
+    }
+
+    /* another database on the same server, see DBInitializer#sqlCreateDatabase */
+    public ConnectConfig withDatabase(String db) {
+        return new ConnectConfig(this, db, profile);
+    }
+
     @Override
     public String toString() {
         return "utils.ConnectConfig: {" + "host='" + host + '\'' +
@@ -44,6 +71,8 @@ public final class ConnectConfig {
                 ", password='" + password + '\'' +
                 ", db='" + db + '\'' +
                 ", type='" + type.toString() + '\'' +
+                ", profile='" + profile.getProfileName() + '\'' +
+                ", reset='" + resetMode.getModeName() + '\'' +
                 '}';
     }
 
@@ -70,4 +99,12 @@ public final class ConnectConfig {
     public DatabaseType getType() {
         return type;
     }
+
+    public ConnectionProfile getProfile() {
+        return profile;
+    }
+
+    public ResetMode getResetMode() {
+        return resetMode;
+    }
 }
@@ -0,0 +1,104 @@
+package utils;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+/**
+ * named driver tuning for different workloads, select one with "profile" in
+ * application.yaml or open another connector with {@link ConnectConfig#withProfile}.
+ */
+public enum ConnectionProfile {
+    /* short transactions, prepared statement caching */
+    OLTP("oltp"),
+    /* large batches and native bulk loads */
+    BULK_IMPORT("bulk-import"),
+    /* long read-only scans with cursor based fetching */
+    REPORTING("reporting");
+
+    ConnectionProfile(String profileName) {
+        this.profileName = profileName;
+    }
+
+    /**
+     * driver properties for this profile, user & password are added by the connector.
+     */
+    public Properties driverProperties(DatabaseType type) {
+        Properties props = new Properties();
+        switch (type) {
+            case MYSQL:
+                props.setProperty("cachePrepStmts", "true");
+                props.setProperty("prepStmtCacheSize", "250");
+                props.setProperty("prepStmtCacheSqlLimit", "2048");
+                props.setProperty("rewriteBatchedStatements", "true");
+                props.setProperty("useLocalSessionState", "true");
+                props.setProperty("cacheServerConfiguration", "true");
+                if (this == OLTP) {
+                    props.setProperty("useServerPrepStmts", "true");
+                    props.setProperty("elideSetAutoCommits", "true");
+                    props.setProperty("maintainTimeStats", "false");
+                } else if (this == BULK_IMPORT) {
+                    /* client side prepares let the driver rewrite batches into multi-row INSERTs */
+                    props.setProperty("useServerPrepStmts", "false");
+                    props.setProperty("allowLoadLocalInfile", "true");
+                } else {
+                    props.setProperty("useCursorFetch", "true");
+                    props.setProperty("defaultFetchSize", String.valueOf(getFetchSize()));
+                }
+                break;
+            case SQLSERVER:
+                /* the schema uses varchar, unicode parameters would turn index seeks into scans */
+                props.setProperty("sendStringParametersAsUnicode", "false");
+                if (this == OLTP) {
+                    props.setProperty("disableStatementPooling", "false");
+                    props.setProperty("statementPoolingCacheSize", "250");
+                } else if (this == BULK_IMPORT) {
+                    props.setProperty("useBulkCopyForBatchInsert", "true");
+                } else {
+                    props.setProperty("responseBuffering", "adaptive");
+                    props.setProperty("selectMethod", "cursor");
+                }
+                break;
+            case POSTGRES:
+                props.setProperty("reWriteBatchedInserts", "true");
+                if (this == OLTP) {
+                    props.setProperty("prepareThreshold", "1");
+                } else if (this == REPORTING) {
+                    props.setProperty("defaultRowFetchSize", String.valueOf(getFetchSize()));
+                }
+                break;
+            default:
+                break;
+        }
+        return props;
+    }
+
+    /* default fetch size of this profile, 0 for the driver's default */
+    public int getFetchSize() {
+        return this == REPORTING ? 10000 : 0;
+    }
+
+    /* default transaction isolation applied when connecting */
+    public int isolation(DatabaseType type) {
+        if (this == REPORTING && type != DatabaseType.SQLSERVER) {
+            /* an MVCC snapshot for consistent scans, SqlServer would hold shared locks instead */
+            return Connection.TRANSACTION_REPEATABLE_READ;
+        }
+        return Connection.TRANSACTION_READ_COMMITTED;
+    }
+
+    public static ConnectionProfile instance(String profileName) throws IllegalArgumentException {
+        for (ConnectionProfile profile : ConnectionProfile.values()) {
+            if (profile.profileName.equals(profileName.toLowerCase())) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Invalid connection profile name.");
+    }
+
+    public String getProfileName() {
+        return profileName;
+    }
+
+    private final String profileName;
+
+}
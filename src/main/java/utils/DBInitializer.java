@@ -2,11 +2,69 @@ package utils;
 
 public interface DBInitializer {
 
+    /*
+        a database of its own on the same server, e.g. one per test class so that they can run
+        in parallel; its tables are created by resetDatabase. null if connecting creates it.
+        Run outside of a transaction.
+     */
+    String sqlCreateDatabase(String db);
+    String sqlDropDatabase(String db);
+
     String sqlDropBook();
     String sqlDropCard();
     String sqlDropBorrow();
     String sqlCreateBook();
     String sqlCreateCard();
     String sqlCreateBorrow();
+    /* foreign keys are not indexed by every vendor, book_id lookups and cascades need it */
+    String sqlCreateBorrowIndex();
+    /* borrow is range-partitioned by borrow_time where the vendor allows that next to its foreign keys:
+       the partition catching rows no range covers, null if borrow is a plain table */
+    String sqlCreateBorrowDefaultPartition();
+    /* partition of borrow for borrow_time in [from, to), null if borrow is a plain table */
+    String sqlCreateBorrowPartition(String name, long from, long to);
+    /* returned loans moved out of borrow by BorrowArchiver, compressed where the vendor supports it */
+    String sqlDropBorrowArchive();
+    String sqlCreateBorrowArchive();
+    String sqlCreateBorrowArchiveIndex();
+    /* loans not returned yet, one row per (card, book), kept next to the full history in borrow */
+    String sqlDropOpenLoan();
+    String sqlCreateOpenLoan();
+    String sqlCreateOpenLoanIndex();
+    /* per-stripe stock of hot books, see LibraryManagementSystem#stripeBookStock */
+    String sqlDropBookStockStripe();
+    String sqlCreateBookStockStripe();
+    /* next free book_id / card_id of the client-side allocator, see IdAllocator */
+    String sqlDropIdBlock();
+    String sqlCreateIdBlock();
+    /* circulation counters kept by borrowBook & returnBook, see LibraryManagementSystem#topBorrowedBooks:
+       borrows per book and day (borrow_time / 86400000) */
+    String sqlDropBookDailyBorrows();
+    String sqlCreateBookDailyBorrows();
+    String sqlCreateBookDailyBorrowsIndex();
+    /* open loans per department, spread over a few stripe rows so that one department's borrows do not queue on one row */
+    String sqlDropDepartmentLoans();
+    String sqlCreateDepartmentLoans();
+    /* cards removed by removeCard(s) whose borrow history BorrowArchiver#purge has not deleted yet;
+       borrow & borrow_archive keep no foreign key to card, so removing a card does not cascade */
+    String sqlDropRemovedCard();
+    String sqlCreateRemovedCard();
+    /* add the last parameter to column counter of the row keyed by the other parameters, inserting the row if missing */
+    String sqlUpsertCounter(String table, String counter, String... keys);
+    /* same, adding the one row of select: its columns are the keys, then the delta named "delta"; no row, no change */
+    String sqlUpsertCounterFrom(String table, String counter, String select, String... keys);
+    /* fast reset (ResetMode.TRUNCATE): empty a table no foreign key refers to */
+    String sqlTruncate(String table);
+    /* restart the identity column of a table that was emptied by DELETE, null if not needed */
+    String sqlRestartIdentity(String table, String column);
+    /* statement that allows (on) or forbids explicit values for the identity column of table, null if not needed */
+    String sqlSetIdentityInsert(String table, boolean on);
+
+    /* session-local staging table used by bulk catalog imports */
+    String bookStageTable();
+    String sqlDropBookStage();
+    String sqlCreateBookStage();
+    /* insert staged books that do not exist in book yet */
+    String sqlMergeBookStage();
 
 }
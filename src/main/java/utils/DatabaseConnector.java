@@ -3,44 +3,58 @@ package utils;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DatabaseConnector {
 
     private final ConnectConfig conf;
-    private Connection conn;
+    private volatile Connection conn;
+    /* a lock instead of synchronized, a virtual thread waiting here does not pin its carrier */
+    private final ReentrantLock lock = new ReentrantLock();
 
     public DatabaseConnector(ConnectConfig conf) {
         this.conf = conf;
     }
 
     public boolean connect() {
-        if (conn != null) {
-            return false;
-        }
+        lock.lock();
         try {
+            if (conn != null) {
+                return false;
+            }
             String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
-            conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
+            Properties props = conf.getProfile().driverProperties(conf.getType());
+            props.setProperty("user", conf.getUser());
+            props.setProperty("password", conf.getPassword());
+            conn = DriverManager.getConnection(url, props);
             if (conn != null) {
                 /* Note: you need to connect & release trx explicitly */
                 conn.setAutoCommit(false);
+                conn.setTransactionIsolation(conf.getProfile().isolation(conf.getType()));
                 return true;
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
         return false;
     }
 
     public boolean release() {
-        if (conn == null) {
-            return false;
-        }
+        lock.lock();
         try {
+            if (conn == null) {
+                return false;
+            }
             conn.close();
             conn = null;
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
         return false;
     }
@@ -1,15 +1,18 @@
 package utils;
 
 public enum DatabaseType {
-    MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer()),
-    // TODO: to be updated
-    POSTGRES("postgresql", "org.postgresql.Driver", new MysqlInitializer()),
-    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer());
+    MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer(), new MysqlBulkLoader()),
+    POSTGRES("postgresql", "org.postgresql.Driver", new PostgresInitializer(), new PostgresBulkLoader()),
+    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer(),
+            new SqlServerBulkLoader()),
+    /* in-process database, host & port are ignored */
+    H2("h2", "org.h2.Driver", new H2Initializer(), new JdbcBatchBulkLoader());
 
-    DatabaseType(String typeName, String driverName, DBInitializer dbInitializer) {
+    DatabaseType(String typeName, String driverName, DBInitializer dbInitializer, BulkLoader bulkLoader) {
         this.typeName = typeName;
         this.driverName = driverName;
         this.dbInitializer = dbInitializer;
+        this.bulkLoader = bulkLoader;
     }
 
     @Override
@@ -27,10 +30,22 @@ public enum DatabaseType {
             case MYSQL:
             case POSTGRES:
                 return String.format("jdbc:%s://%s:%s/%s", typeName, host, port, db);
+            case H2:
+                /* keep the database alive between connections, it lives as long as the process */
+                return String.format("jdbc:h2:mem:%s;MODE=MySQL;DATABASE_TO_LOWER=TRUE;" +
+                        "DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", db);
         }
         return null;
     }
 
+    /*
+        fetch size that makes the driver stream a large result set instead of
+        materializing it, MySQL only streams with Integer.MIN_VALUE.
+     */
+    public int streamingFetchSize(int preferred) {
+        return this == MYSQL ? Integer.MIN_VALUE : preferred;
+    }
+
     public static DatabaseType instance(String typeName) throws IllegalArgumentException {
         for (DatabaseType type : DatabaseType.values()) {
             if (type.typeName.equals(typeName.toLowerCase())) {
@@ -52,8 +67,13 @@ public enum DatabaseType {
         return dbInitializer;
     }
 
+    public BulkLoader getBulkLoader() {
+        return bulkLoader;
+    }
+
     private final String typeName;
     private final String driverName;
     private final DBInitializer dbInitializer;
+    private final BulkLoader bulkLoader;
 
 };
\ No newline at end of file
@@ -0,0 +1,296 @@
+package utils;
+
+/*
+    in-process H2 database (MySQL compatibility mode), used to run the tests
+    and benchmarks without an external database service.
+ */
+public class H2Initializer implements DBInitializer {
+
+    @Override
+    public String sqlCreateDatabase(String db) {
+        /* an in-memory database of a new name is created by the first connection */
+        return null;
+    }
+
+    @Override
+    public String sqlDropDatabase(String db) {
+        return null;
+    }
+
+    @Override
+    public String sqlDropBook() {
+        return "drop table if exists book;";
+    }
+
+    @Override
+    public String sqlDropCard() {
+        return "drop table if exists card;";
+    }
+
+    @Override
+    public String sqlDropBorrow() {
+        return "drop table if exists borrow;";
+    }
+
+    @Override
+    public String sqlCreateBook() {
+        return "create table book (\n" +
+                "    book_id int generated by default as identity,\n" +
+                "    category varchar(63) not null,\n" +
+                "    title varchar(63) not null,\n" +
+                "    press varchar(63) not null,\n" +
+                "    publish_year int not null,\n" +
+                "    author varchar(63) not null,\n" +
+                "    price decimal(7, 2) not null default 0.00,\n" +
+                "    stock int not null default 0,\n" +
+                "    version int not null default 0,\n" +
+                "    stripes int not null default 0,\n" +
+                "    open_loans int not null default 0,\n" +
+                "    primary key (book_id),\n" +
+                "    unique (category, press, author, title, publish_year)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateCard() {
+        return "create table card (\n" +
+                "    card_id int generated by default as identity,\n" +
+                "    name varchar(63) not null,\n" +
+                "    department varchar(63) not null,\n" +
+                "    type char(1) not null,\n" +
+                "    open_loans int not null default 0,\n" +
+                "    primary key (card_id),\n" +
+                "    unique (department, type, name),\n" +
+                "    check ( type in ('T', 'S') )\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBorrow() {
+        return "create table borrow (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    return_time bigint not null default 0,\n" +
+                "    primary key (card_id, book_id, borrow_time),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBorrowIndex() {
+        return "create index borrow_book_idx on borrow (book_id);";
+    }
+
+    @Override
+    public String sqlCreateBorrowDefaultPartition() {
+        /* no table partitioning */
+        return null;
+    }
+
+    @Override
+    public String sqlCreateBorrowPartition(String name, long from, long to) {
+        return null;
+    }
+
+    @Override
+    public String sqlDropBorrowArchive() {
+        return "drop table if exists borrow_archive;";
+    }
+
+    @Override
+    public String sqlCreateBorrowArchive() {
+        return "create table borrow_archive (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    return_time bigint not null,\n" +
+                "    primary key (card_id, book_id, borrow_time),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBorrowArchiveIndex() {
+        return "create index borrow_archive_book_idx on borrow_archive (book_id);";
+    }
+
+    @Override
+    public String sqlDropOpenLoan() {
+        return "drop table if exists open_loan;";
+    }
+
+    @Override
+    public String sqlCreateOpenLoan() {
+        return "create table open_loan (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    primary key (card_id, book_id),\n" +
+                "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateOpenLoanIndex() {
+        return "create index open_loan_book_idx on open_loan (book_id);";
+    }
+
+    @Override
+    public String sqlDropBookStockStripe() {
+        return "drop table if exists book_stock_stripe;";
+    }
+
+    @Override
+    public String sqlCreateBookStockStripe() {
+        return "create table book_stock_stripe (\n" +
+                "    book_id int not null,\n" +
+                "    stripe int not null,\n" +
+                "    stock int not null default 0,\n" +
+                "    open_loans int not null default 0,\n" +
+                "    primary key (book_id, stripe),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlDropIdBlock() {
+        return "drop table if exists id_block;";
+    }
+
+    @Override
+    public String sqlCreateIdBlock() {
+        return "create table id_block (\n" +
+                "    name varchar(63) not null,\n" +
+                "    next_id int not null,\n" +
+                "    primary key (name)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlDropBookDailyBorrows() {
+        return "drop table if exists book_daily_borrows;";
+    }
+
+    @Override
+    public String sqlCreateBookDailyBorrows() {
+        return "create table book_daily_borrows (\n" +
+                "    book_id int not null,\n" +
+                "    borrow_day int not null,\n" +
+                "    borrows int not null default 0,\n" +
+                "    primary key (book_id, borrow_day),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBookDailyBorrowsIndex() {
+        return "create index book_daily_borrows_day_idx on book_daily_borrows (borrow_day, book_id);";
+    }
+
+    @Override
+    public String sqlDropDepartmentLoans() {
+        return "drop table if exists department_loans;";
+    }
+
+    @Override
+    public String sqlCreateDepartmentLoans() {
+        return "create table department_loans (\n" +
+                "    department varchar(63) not null,\n" +
+                "    stripe int not null,\n" +
+                "    loans int not null default 0,\n" +
+                "    primary key (department, stripe)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlDropRemovedCard() {
+        return "drop table if exists removed_card;";
+    }
+
+    @Override
+    public String sqlCreateRemovedCard() {
+        return "create table removed_card (\n" +
+                "    card_id int not null,\n" +
+                "    primary key (card_id)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlUpsertCounter(String table, String counter, String... keys) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < keys.length; ++i) {
+            values.append("?, ");
+        }
+        return upsertCounter(table, counter, "values (" + values + "?)", keys);
+    }
+
+    @Override
+    public String sqlUpsertCounterFrom(String table, String counter, String select, String... keys) {
+        return upsertCounter(table, counter, select, keys);
+    }
+
+    private static String upsertCounter(String table, String counter, String source, String... keys) {
+        String columns = String.join(", ", keys);
+        StringBuilder match = new StringBuilder();
+        StringBuilder inserted = new StringBuilder();
+        for (String key : keys) {
+            match.append(match.length() == 0 ? "" : " and ").append("t.").append(key).append(" = s.").append(key);
+            inserted.append("s.").append(key).append(", ");
+        }
+        return "merge into " + table + " t using (" + source + ") s (" + columns + ", " + counter + ")\n" +
+                "on " + match + "\n" +
+                "when matched then update set " + counter + " = t." + counter + " + s." + counter + "\n" +
+                "when not matched then insert (" + columns + ", " + counter + ") values (" + inserted + "s." + counter + ");";
+    }
+
+    @Override
+    public String sqlTruncate(String table) {
+        return "truncate table " + table + ";";
+    }
+
+    @Override
+    public String sqlRestartIdentity(String table, String column) {
+        return "alter table " + table + " alter column " + column + " restart with 1;";
+    }
+
+    @Override
+    public String sqlSetIdentityInsert(String table, boolean on) {
+        /* explicit values are accepted by the identity column as they are */
+        return null;
+    }
+
+    @Override
+    public String bookStageTable() {
+        return "book_stage";
+    }
+
+    @Override
+    public String sqlDropBookStage() {
+        return "drop table if exists book_stage;";
+    }
+
+    @Override
+    public String sqlCreateBookStage() {
+        return "create local temporary table book_stage (\n" +
+                "    category varchar(63) not null,\n" +
+                "    title varchar(63) not null,\n" +
+                "    press varchar(63) not null,\n" +
+                "    publish_year int not null,\n" +
+                "    author varchar(63) not null,\n" +
+                "    price decimal(7, 2) not null default 0.00,\n" +
+                "    stock int not null default 0\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlMergeBookStage() {
+        return "insert into book (category, title, press, publish_year, author, price, stock)\n" +
+                "select s.category, s.title, s.press, s.publish_year, s.author, s.price, s.stock\n" +
+                "from book_stage s\n" +
+                "where not exists (select 1 from book b\n" +
+                "    where b.category = s.category and b.press = s.press and b.author = s.author\n" +
+                "      and b.title = s.title and b.publish_year = s.publish_year);";
+    }
+}
@@ -0,0 +1,172 @@
+package utils;
+
+import queries.ApiResult;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * client-side book_id / card_id allocation in blocks (hi/lo). Every block is reserved
+ * by bumping the counter row of the id_block table in a short transaction of its own,
+ * then handed out from memory, so inserts can carry their ids and never need
+ * getGeneratedKeys() or a per-row lookup.
+ * The first block of a table starts after its current max id.
+ *
+ * Note that:
+ *      (1) all writers of a database must either use an allocator or not, ids taken from
+ *          the identity column are not known to id_block and vice versa.
+ *      (2) ids of a block not used before the allocator is closed are lost, so ids are
+ *          unique but not gap-free.
+ *      (3) one allocator is meant to be shared by all libraries of the process.
+ */
+public class IdAllocator implements AutoCloseable {
+
+    public static final String BOOK = "book";
+    public static final String CARD = "card";
+
+    private static final class Block {
+        final ReentrantLock lock = new ReentrantLock();
+        long next = 0;
+        long limit = 0;
+    }
+
+    private final DatabaseConnector connector;
+    private final TransactionExecutor tx;
+    private final int blockSize;
+    private final Map<String, Block> blocks = new HashMap<>();
+    /* the connection is shared by both sequences */
+    private final ReentrantLock connLock = new ReentrantLock();
+    private final AtomicLong reserved = new AtomicLong();
+
+    /**
+     * @param blockSize ids reserved per round trip to id_block
+     */
+    public IdAllocator(ConnectConfig conf, int blockSize) {
+        this.connector = new DatabaseConnector(conf);
+        if (!connector.connect()) {
+            throw new IllegalStateException("failed to connect to database");
+        }
+        this.tx = new TransactionExecutor(connector);
+        this.blockSize = Math.max(1, blockSize);
+        blocks.put(BOOK, new Block());
+        blocks.put(CARD, new Block());
+    }
+
+    /* the next id of BOOK or CARD */
+    public int next(String table) throws SQLException {
+        return next(table, 1)[0];
+    }
+
+    /**
+     * n fresh ids of BOOK or CARD in increasing order, not necessarily consecutive.
+     */
+    public int[] next(String table, int n) throws SQLException {
+        Block block = blocks.get(table);
+        if (block == null) {
+            throw new IllegalArgumentException("no id sequence for " + table);
+        }
+        int[] ids = new int[n];
+        block.lock.lock();
+        try {
+            for (int i = 0; i < n; ) {
+                if (block.next >= block.limit) {
+                    /* a large batch reserves what it needs in one go */
+                    int size = Math.max(blockSize, n - i);
+                    block.next = reserve(table, size);
+                    block.limit = block.next + size;
+                }
+                while (i < n && block.next < block.limit) {
+                    ids[i++] = (int) block.next++;
+                }
+            }
+        } finally {
+            block.lock.unlock();
+        }
+        return ids;
+    }
+
+    /* first id of a fresh block of size ids */
+    private long reserve(String table, int size) throws SQLException {
+        connLock.lock();
+        try {
+            try {
+                return reserveOnce(table, size);
+            } catch (SQLException e) {
+                /* lost the race to seed the row, it exists now */
+                return reserveOnce(table, size);
+            }
+        } finally {
+            connLock.unlock();
+        }
+    }
+
+    private long reserveOnce(String table, int size) throws SQLException {
+        ApiResult result = tx.execute(Connection.TRANSACTION_READ_COMMITTED, conn -> {
+            String upd_sql = "UPDATE id_block SET next_id = next_id + ? WHERE name = ?";
+            PreparedStatement upd_stmt = conn.prepareStatement(upd_sql);
+            upd_stmt.setInt(1, size);
+            upd_stmt.setString(2, table);
+            if (upd_stmt.executeUpdate() == 0) {
+                /* first block of this table, a concurrent seed fails on the primary key and is retried */
+                String seed_sql = "INSERT INTO id_block (name, next_id) " +
+                        "SELECT ?, COALESCE(MAX(" + table + "_id), 0) + 1 + ? FROM " + table;
+                PreparedStatement seed_stmt = conn.prepareStatement(seed_sql);
+                seed_stmt.setString(1, table);
+                seed_stmt.setInt(2, size);
+                seed_stmt.executeUpdate();
+                seed_stmt.close();
+            }
+            upd_stmt.close();
+            String que_sql = "SELECT next_id FROM id_block WHERE name = ?";
+            PreparedStatement que_stmt = conn.prepareStatement(que_sql);
+            que_stmt.setString(1, table);
+            ResultSet ret = que_stmt.executeQuery();
+            if (!ret.next()) {
+                return new ApiResult(false, "id_block row of " + table + " is missing");
+            }
+            long end = ret.getLong(1);
+            que_stmt.close();
+            return new ApiResult(true, null, end - size);
+        });
+        if (!result.ok) {
+            throw new SQLException("failed to reserve ids for " + table + ": " + result.message);
+        }
+        reserved.addAndGet(size);
+        return (Long) result.payload;
+    }
+
+    /**
+     * forget the cached blocks, call after the tables were dropped and created again.
+     */
+    public void reset() {
+        for (Block block : blocks.values()) {
+            block.lock.lock();
+            try {
+                block.next = 0;
+                block.limit = 0;
+            } finally {
+                block.lock.unlock();
+            }
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /* ids reserved from id_block so far, used or not */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    @Override
+    public void close() {
+        connector.release();
+    }
+}
@@ -0,0 +1,74 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/*
+    fallback for vendors without a native bulk path: parse the csv and
+    insert it through executeBatch().
+ */
+public class JdbcBatchBulkLoader implements BulkLoader {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Override
+    public long load(Connection conn, String table, List<Column> columns, InputStream csv)
+            throws SQLException, IOException {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < columns.size(); ++i) {
+            values.append(i == 0 ? "?" : ", ?");
+        }
+        String sql = "INSERT INTO " + table + " (" + BulkLoader.columnList(columns) + ") VALUES (" + values + ")";
+        long rows = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(csv, StandardCharsets.UTF_8));
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                List<String> fields = CatalogImporter.splitCsv(line);
+                if (fields.size() != columns.size()) {
+                    throw new SQLException("expect " + columns.size() + " fields but got " + fields.size());
+                }
+                for (int i = 0; i < columns.size(); ++i) {
+                    bind(stmt, i + 1, columns.get(i).getJdbcType(), fields.get(i));
+                }
+                stmt.addBatch();
+                if (++rows % BATCH_SIZE == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            if (rows % BATCH_SIZE != 0) {
+                stmt.executeBatch();
+            }
+        }
+        return rows;
+    }
+
+    private static void bind(PreparedStatement stmt, int index, int type, String value) throws SQLException {
+        switch (type) {
+            case Types.INTEGER:
+                stmt.setInt(index, Integer.parseInt(value));
+                break;
+            case Types.BIGINT:
+                stmt.setLong(index, Long.parseLong(value));
+                break;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                stmt.setBigDecimal(index, new BigDecimal(value));
+                break;
+            default:
+                stmt.setString(index, value);
+        }
+    }
+}
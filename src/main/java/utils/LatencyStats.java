@@ -0,0 +1,102 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free latency histogram for benchmarks and load generators. Values are bucketed by
+ * power of two with 16 linear sub-buckets each, so a reported percentile is at most ~6%
+ * above the true value; anything beyond 2^40 ns (~18 min) lands in the last bucket.
+ */
+public class LatencyStats {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXP - SUB_BITS + 2) * SUB);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        buckets.incrementAndGet(index(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    /* exact below 16, then 16 buckets per power of two */
+    private static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        if (exp > MAX_EXP) {
+            return (MAX_EXP - SUB_BITS + 2) * SUB - 1;
+        }
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /* largest value that falls into bucket i */
+    private static long upperBound(int i) {
+        if (i < SUB) {
+            return i;
+        }
+        int exp = i / SUB + SUB_BITS - 1;
+        long sub = i % SUB;
+        return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @param p percentile in [0, 100]
+     * @return upper bound of the bucket holding the p-th percentile in nanoseconds, 0 if empty
+     */
+    public long percentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * Math.min(100, Math.max(0, p)) / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); ++i) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, mean=%.2fms, p50=%.2fms, p99=%.2fms, max=%.2fms", getCount(),
+                getMeanNanos() / 1e6, percentile(50) / 1e6, percentile(99) / 1e6, getMaxNanos() / 1e6);
+    }
+}
@@ -0,0 +1,37 @@
+package utils;
+
+import com.mysql.cj.conf.PropertyKey;
+import com.mysql.cj.jdbc.JdbcConnection;
+import com.mysql.cj.jdbc.JdbcStatement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/*
+    LOAD DATA LOCAL INFILE fed from a stream instead of a file. The connection
+    needs allowLoadLocalInfile=true, without it the rows go through executeBatch().
+ */
+public class MysqlBulkLoader implements BulkLoader {
+
+    @Override
+    public long load(Connection conn, String table, List<Column> columns, InputStream csv)
+            throws SQLException, IOException {
+        if (!conn.unwrap(JdbcConnection.class).getPropertySet()
+                .getBooleanProperty(PropertyKey.allowLoadLocalInfile).getValue()) {
+            return new JdbcBatchBulkLoader().load(conn, table, columns, csv);
+        }
+        String sql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + table +
+                " CHARACTER SET utf8mb4" +
+                " FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"' ESCAPED BY ''" +
+                " LINES TERMINATED BY '\\n'" +
+                " (" + BulkLoader.columnList(columns) + ")";
+        try (Statement stmt = conn.createStatement()) {
+            stmt.unwrap(JdbcStatement.class).setLocalInfileInputStream(csv);
+            return stmt.executeUpdate(sql);
+        }
+    }
+}
@@ -2,6 +2,16 @@ package utils;
 
 public class MysqlInitializer implements DBInitializer {
 
+    @Override
+    public String sqlCreateDatabase(String db) {
+        return "create database `" + db + "` charset utf8mb4;";
+    }
+
+    @Override
+    public String sqlDropDatabase(String db) {
+        return "drop database if exists `" + db + "`;";
+    }
+
     @Override
     public String sqlDropBook() {
         return "drop table if exists `book`;";
@@ -28,6 +38,9 @@ public class MysqlInitializer implements DBInitializer {
                 "    `author` varchar(63) not null,\n" +
                 "    `price` decimal(7, 2) not null default 0.00,\n" +
                 "    `stock` int not null default 0,\n" +
+                "    `version` int not null default 0,\n" +
+                "    `stripes` int not null default 0,\n" +
+                "    `open_loans` int not null default 0,\n" +
                 "    primary key (`book_id`),\n" +
                 "    unique (`category`, `press`, `author`, `title`, `publish_year`)\n" +
                 ") engine=innodb charset=utf8mb4;";
@@ -40,6 +53,7 @@ public class MysqlInitializer implements DBInitializer {
                 "    `name` varchar(63) not null,\n" +
                 "    `department` varchar(63) not null,\n" +
                 "    `type` char(1) not null,\n" +
+                "    `open_loans` int not null default 0,\n" +
                 "    primary key (`card_id`),\n" +
                 "    unique (`department`, `type`, `name`),\n" +
                 "    check ( `type` in ('T', 'S') )\n" +
@@ -54,8 +68,221 @@ public class MysqlInitializer implements DBInitializer {
                 "  `borrow_time` bigint not null,\n" +
                 "  `return_time` bigint not null default 0,\n" +
                 "  primary key (`card_id`, `book_id`, `borrow_time`),\n" +
-                "  foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,\n" +
                 "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
                 ") engine=innodb charset=utf8mb4;";
     }
+
+    @Override
+    public String sqlCreateBorrowIndex() {
+        return "create index `borrow_book_idx` on `borrow` (`book_id`);";
+    }
+
+    @Override
+    public String sqlCreateBorrowDefaultPartition() {
+        /* InnoDB does not partition tables with foreign keys, old loans go to borrow_archive instead */
+        return null;
+    }
+
+    @Override
+    public String sqlCreateBorrowPartition(String name, long from, long to) {
+        return null;
+    }
+
+    @Override
+    public String sqlDropBorrowArchive() {
+        return "drop table if exists `borrow_archive`;";
+    }
+
+    @Override
+    public String sqlCreateBorrowArchive() {
+        return "create table `borrow_archive` (\n" +
+                "    `card_id` int not null,\n" +
+                "    `book_id` int not null,\n" +
+                "    `borrow_time` bigint not null,\n" +
+                "    `return_time` bigint not null,\n" +
+                "    primary key (`card_id`, `book_id`, `borrow_time`),\n" +
+                "    foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
+                ") engine=innodb charset=utf8mb4 row_format=compressed;";
+    }
+
+    @Override
+    public String sqlCreateBorrowArchiveIndex() {
+        return "create index `borrow_archive_book_idx` on `borrow_archive` (`book_id`);";
+    }
+
+    @Override
+    public String sqlDropOpenLoan() {
+        return "drop table if exists `open_loan`;";
+    }
+
+    @Override
+    public String sqlCreateOpenLoan() {
+        return "create table `open_loan` (\n" +
+                "    `card_id` int not null,\n" +
+                "    `book_id` int not null,\n" +
+                "    `borrow_time` bigint not null,\n" +
+                "    primary key (`card_id`, `book_id`),\n" +
+                "    foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,\n" +
+                "    foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlCreateOpenLoanIndex() {
+        return "create index `open_loan_book_idx` on `open_loan` (`book_id`);";
+    }
+
+    @Override
+    public String sqlDropBookStockStripe() {
+        return "drop table if exists `book_stock_stripe`;";
+    }
+
+    @Override
+    public String sqlCreateBookStockStripe() {
+        return "create table `book_stock_stripe` (\n" +
+                "    `book_id` int not null,\n" +
+                "    `stripe` int not null,\n" +
+                "    `stock` int not null default 0,\n" +
+                "    `open_loans` int not null default 0,\n" +
+                "    primary key (`book_id`, `stripe`),\n" +
+                "    foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlDropIdBlock() {
+        return "drop table if exists `id_block`;";
+    }
+
+    @Override
+    public String sqlCreateIdBlock() {
+        return "create table `id_block` (\n" +
+                "    `name` varchar(63) not null,\n" +
+                "    `next_id` int not null,\n" +
+                "    primary key (`name`)\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlDropBookDailyBorrows() {
+        return "drop table if exists `book_daily_borrows`;";
+    }
+
+    @Override
+    public String sqlCreateBookDailyBorrows() {
+        return "create table `book_daily_borrows` (\n" +
+                "    `book_id` int not null,\n" +
+                "    `borrow_day` int not null,\n" +
+                "    `borrows` int not null default 0,\n" +
+                "    primary key (`book_id`, `borrow_day`),\n" +
+                "    foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlCreateBookDailyBorrowsIndex() {
+        return "create index `book_daily_borrows_day_idx` on `book_daily_borrows` (`borrow_day`, `book_id`);";
+    }
+
+    @Override
+    public String sqlDropDepartmentLoans() {
+        return "drop table if exists `department_loans`;";
+    }
+
+    @Override
+    public String sqlCreateDepartmentLoans() {
+        return "create table `department_loans` (\n" +
+                "    `department` varchar(63) not null,\n" +
+                "    `stripe` int not null,\n" +
+                "    `loans` int not null default 0,\n" +
+                "    primary key (`department`, `stripe`)\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlDropRemovedCard() {
+        return "drop table if exists `removed_card`;";
+    }
+
+    @Override
+    public String sqlCreateRemovedCard() {
+        return "create table `removed_card` (\n" +
+                "    `card_id` int not null,\n" +
+                "    primary key (`card_id`)\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlUpsertCounter(String table, String counter, String... keys) {
+        StringBuilder values = new StringBuilder();
+        for (String key : keys) {
+            values.append("?, ");
+        }
+        /* row alias instead of values(col), which is deprecated since 8.0.20 */
+        return "insert into `" + table + "` (" + upsertColumns(counter, keys) + ") values (" + values + "?) as s\n" +
+                "on duplicate key update `" + counter + "` = `" + counter + "` + s.`" + counter + "`;";
+    }
+
+    @Override
+    public String sqlUpsertCounterFrom(String table, String counter, String select, String... keys) {
+        return "insert into `" + table + "` (" + upsertColumns(counter, keys) + ") select * from (" + select + ") as s\n" +
+                "on duplicate key update `" + counter + "` = `" + counter + "` + s.`delta`;";
+    }
+
+    private static String upsertColumns(String counter, String... keys) {
+        StringBuilder columns = new StringBuilder();
+        for (String key : keys) {
+            columns.append('`').append(key).append("`, ");
+        }
+        return columns + "`" + counter + "`";
+    }
+
+    @Override
+    public String sqlTruncate(String table) {
+        return "truncate table `" + table + "`;";
+    }
+
+    @Override
+    public String sqlRestartIdentity(String table, String column) {
+        return "alter table `" + table + "` auto_increment = 1;";
+    }
+
+    @Override
+    public String sqlSetIdentityInsert(String table, boolean on) {
+        /* explicit values are accepted by the identity column as they are */
+        return null;
+    }
+
+    @Override
+    public String bookStageTable() {
+        return "book_stage";
+    }
+
+    @Override
+    public String sqlDropBookStage() {
+        return "drop temporary table if exists `book_stage`;";
+    }
+
+    @Override
+    public String sqlCreateBookStage() {
+        return "create temporary table `book_stage` (\n" +
+                "    `category` varchar(63) not null,\n" +
+                "    `title` varchar(63) not null,\n" +
+                "    `press` varchar(63) not null,\n" +
+                "    `publish_year` int not null,\n" +
+                "    `author` varchar(63) not null,\n" +
+                "    `price` decimal(7, 2) not null default 0.00,\n" +
+                "    `stock` int not null default 0\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public String sqlMergeBookStage() {
+        return "insert into book (category, title, press, publish_year, author, price, stock)\n" +
+                "select s.category, s.title, s.press, s.publish_year, s.author, s.price, s.stock\n" +
+                "from book_stage s\n" +
+                "where not exists (select 1 from book b\n" +
+                "    where b.category = s.category and b.press = s.press and b.author = s.author\n" +
+                "      and b.title = s.title and b.publish_year = s.publish_year);";
+    }
 }
@@ -0,0 +1,22 @@
+package utils;
+
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/*
+    COPY ... FROM STDIN through the driver's CopyManager.
+ */
+public class PostgresBulkLoader implements BulkLoader {
+
+    @Override
+    public long load(Connection conn, String table, List<Column> columns, InputStream csv)
+            throws SQLException, IOException {
+        String sql = "COPY " + table + " (" + BulkLoader.columnList(columns) + ") FROM STDIN WITH CSV";
+        return conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, csv);
+    }
+}
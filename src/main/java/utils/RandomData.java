@@ -1,12 +1,11 @@
 package utils;
 
 import entities.Book;
-import org.apache.commons.lang3.RandomUtils;
 
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public final class RandomData {
 
@@ -30,36 +29,36 @@ public final class RandomData {
     }
 
     public static String randomCategory() {
-        return categories.get(new Random().nextInt(categories.size()));
+        return categories.get(ThreadLocalRandom.current().nextInt(categories.size()));
     }
 
     public static String randomPress() {
-        return press.get(new Random().nextInt(press.size()));
+        return press.get(ThreadLocalRandom.current().nextInt(press.size()));
     }
 
     public static String randomAuthor() {
-        return authors.get(new Random().nextInt(authors.size()));
+        return authors.get(ThreadLocalRandom.current().nextInt(authors.size()));
     }
 
     public static String randomTitle() {
-        return titles.get(new Random().nextInt(titles.size()));
+        return titles.get(ThreadLocalRandom.current().nextInt(titles.size()));
     }
 
     public static int randomPublishYear() {
-        return RandomUtils.nextInt(2000, 2023);
+        return ThreadLocalRandom.current().nextInt(2000, 2023);
     }
 
     public static double randomPrice() {
-        double v = RandomUtils.nextDouble(0.1, 233.3);
-        return Double.parseDouble(String.format("%.2f", v));
+        /* whole cents, rounding through String.format was the slowest part of randomBook() */
+        return ThreadLocalRandom.current().nextInt(10, 23330) / 100.0;
     }
 
     public static int randomStock() {
-        return RandomUtils.nextInt(1, 100);
+        return ThreadLocalRandom.current().nextInt(1, 100);
     }
 
     public static String randomDepartment() {
-        return departments.get(new Random().nextInt(departments.size()));
+        return departments.get(ThreadLocalRandom.current().nextInt(departments.size()));
     }
 
     private static final Calendar calStart = Calendar.getInstance();
@@ -70,7 +69,7 @@ public final class RandomData {
     }
 
     public static long randomTime() {
-        return RandomUtils.nextLong(calStart.getTimeInMillis(), calEnd.getTimeInMillis());
+        return ThreadLocalRandom.current().nextLong(calStart.getTimeInMillis(), calEnd.getTimeInMillis());
     }
 
 }
@@ -0,0 +1,36 @@
+package utils;
+
+/**
+ * how resetDatabase empties the database, select one with "reset" in application.yaml
+ * or with LibraryManagementSystemImpl#setResetMode.
+ */
+public enum ResetMode {
+    /* drop and create every table, always leaves the current schema */
+    RECREATE("recreate"),
+    /*
+        empty the tables and restart the identity columns without any DDL on the table
+        definitions. Only used once this process has created the schema, the first reset
+        of a database still recreates it, so a schema left behind by an older build is
+        never reused.
+     */
+    TRUNCATE("truncate");
+
+    ResetMode(String modeName) {
+        this.modeName = modeName;
+    }
+
+    public static ResetMode instance(String modeName) throws IllegalArgumentException {
+        for (ResetMode mode : ResetMode.values()) {
+            if (mode.modeName.equals(modeName.toLowerCase())) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Invalid reset mode name.");
+    }
+
+    public String getModeName() {
+        return modeName;
+    }
+
+    private final String modeName;
+}
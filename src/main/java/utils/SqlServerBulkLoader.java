@@ -0,0 +1,37 @@
+package utils;
+
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCSVFileRecord;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/*
+    SQLServerBulkCopy over a csv record source, the copy joins the
+    current transaction of the connection.
+ */
+public class SqlServerBulkLoader implements BulkLoader {
+
+    @Override
+    public long load(Connection conn, String table, List<Column> columns, InputStream csv) throws SQLException {
+        SQLServerBulkCSVFileRecord record = new SQLServerBulkCSVFileRecord(csv, "UTF-8", ",", false);
+        record.setEscapeColumnDelimitersCSV(true);
+        for (int i = 0; i < columns.size(); ++i) {
+            Column column = columns.get(i);
+            record.addColumnMetadata(i + 1, column.getName(), column.getJdbcType(),
+                    column.getPrecision(), column.getScale());
+        }
+        try (SQLServerBulkCopy copy = new SQLServerBulkCopy(conn)) {
+            copy.setDestinationTableName(table);
+            for (Column column : columns) {
+                copy.addColumnMapping(column.getName(), column.getName());
+            }
+            copy.writeToServer(record);
+        } finally {
+            record.close();
+        }
+        return -1;
+    }
+}
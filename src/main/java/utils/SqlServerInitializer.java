@@ -2,6 +2,16 @@ package utils;
 
 public class SqlServerInitializer implements DBInitializer {
 
+    @Override
+    public String sqlCreateDatabase(String db) {
+        return "CREATE DATABASE " + db + ";";
+    }
+
+    @Override
+    public String sqlDropDatabase(String db) {
+        return "IF DB_ID('" + db + "') IS NOT NULL DROP DATABASE " + db + ";";
+    }
+
     @Override
     public String sqlDropBook() {
         return "IF OBJECT_ID('dbo.book', 'U') IS NOT NULL DROP TABLE dbo.book;";
@@ -28,6 +38,9 @@ public class SqlServerInitializer implements DBInitializer {
                 "    author varchar(63) not null,\n" +
                 "    price decimal(7, 2) not null default 0.00,\n" +
                 "    stock int not null default 0,\n" +
+                "    version int not null default 0,\n" +
+                "    stripes int not null default 0,\n" +
+                "    open_loans int not null default 0,\n" +
                 "    primary key (book_id),\n" +
                 "    unique (category, press, author, title, publish_year)\n" +
                 ");";
@@ -40,6 +53,7 @@ public class SqlServerInitializer implements DBInitializer {
                 "    name varchar(63) not null,\n" +
                 "    department varchar(63) not null,\n" +
                 "    type char(1) not null,\n" +
+                "    open_loans int not null default 0,\n" +
                 "    primary key (card_id),\n" +
                 "    unique (department, type, name),\n" +
                 "    check ( type in ('T', 'S') )\n" +
@@ -54,8 +68,227 @@ public class SqlServerInitializer implements DBInitializer {
                 "    borrow_time bigint not null,\n" +
                 "    return_time bigint not null default 0,\n" +
                 "    primary key (card_id, book_id, borrow_time),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBorrowIndex() {
+        return "create index borrow_book_idx on borrow (book_id);";
+    }
+
+    @Override
+    public String sqlCreateBorrowDefaultPartition() {
+        /* partitioning needs a partition function and scheme per filegroup layout, left to the DBA */
+        return null;
+    }
+
+    @Override
+    public String sqlCreateBorrowPartition(String name, long from, long to) {
+        return null;
+    }
+
+    @Override
+    public String sqlDropBorrowArchive() {
+        return "IF OBJECT_ID('dbo.borrow_archive', 'U') IS NOT NULL DROP TABLE dbo.borrow_archive;";
+    }
+
+    @Override
+    public String sqlCreateBorrowArchive() {
+        return "create table borrow_archive (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    return_time bigint not null,\n" +
+                "    primary key (card_id, book_id, borrow_time),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ") with (data_compression = page);";
+    }
+
+    @Override
+    public String sqlCreateBorrowArchiveIndex() {
+        return "create index borrow_archive_book_idx on borrow_archive (book_id);";
+    }
+
+    @Override
+    public String sqlDropOpenLoan() {
+        return "IF OBJECT_ID('dbo.open_loan', 'U') IS NOT NULL DROP TABLE dbo.open_loan;";
+    }
+
+    @Override
+    public String sqlCreateOpenLoan() {
+        return "create table open_loan (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    primary key (card_id, book_id),\n" +
                 "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
                 "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
                 ");";
     }
+
+    @Override
+    public String sqlCreateOpenLoanIndex() {
+        return "create index open_loan_book_idx on open_loan (book_id);";
+    }
+
+    @Override
+    public String sqlDropBookStockStripe() {
+        return "IF OBJECT_ID('dbo.book_stock_stripe', 'U') IS NOT NULL DROP TABLE dbo.book_stock_stripe;";
+    }
+
+    @Override
+    public String sqlCreateBookStockStripe() {
+        return "create table book_stock_stripe (\n" +
+                "    book_id int not null,\n" +
+                "    stripe int not null,\n" +
+                "    stock int not null default 0,\n" +
+                "    open_loans int not null default 0,\n" +
+                "    primary key (book_id, stripe),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlDropIdBlock() {
+        return "IF OBJECT_ID('dbo.id_block', 'U') IS NOT NULL DROP TABLE dbo.id_block;";
+    }
+
+    @Override
+    public String sqlCreateIdBlock() {
+        return "create table id_block (\n" +
+                "    name varchar(63) not null,\n" +
+                "    next_id int not null,\n" +
+                "    primary key (name)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlDropBookDailyBorrows() {
+        return "IF OBJECT_ID('dbo.book_daily_borrows', 'U') IS NOT NULL DROP TABLE dbo.book_daily_borrows;";
+    }
+
+    @Override
+    public String sqlCreateBookDailyBorrows() {
+        return "create table book_daily_borrows (\n" +
+                "    book_id int not null,\n" +
+                "    borrow_day int not null,\n" +
+                "    borrows int not null default 0,\n" +
+                "    primary key (book_id, borrow_day),\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBookDailyBorrowsIndex() {
+        return "create index book_daily_borrows_day_idx on book_daily_borrows (borrow_day, book_id);";
+    }
+
+    @Override
+    public String sqlDropDepartmentLoans() {
+        return "IF OBJECT_ID('dbo.department_loans', 'U') IS NOT NULL DROP TABLE dbo.department_loans;";
+    }
+
+    @Override
+    public String sqlCreateDepartmentLoans() {
+        return "create table department_loans (\n" +
+                "    department varchar(63) not null,\n" +
+                "    stripe int not null,\n" +
+                "    loans int not null default 0,\n" +
+                "    primary key (department, stripe)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlDropRemovedCard() {
+        return "IF OBJECT_ID('dbo.removed_card', 'U') IS NOT NULL DROP TABLE dbo.removed_card;";
+    }
+
+    @Override
+    public String sqlCreateRemovedCard() {
+        return "create table removed_card (\n" +
+                "    card_id int not null,\n" +
+                "    primary key (card_id)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlUpsertCounter(String table, String counter, String... keys) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < keys.length; ++i) {
+            values.append("?, ");
+        }
+        return upsertCounter(table, counter, "values (" + values + "?)", keys);
+    }
+
+    @Override
+    public String sqlUpsertCounterFrom(String table, String counter, String select, String... keys) {
+        return upsertCounter(table, counter, select, keys);
+    }
+
+    private static String upsertCounter(String table, String counter, String source, String... keys) {
+        /* holdlock keeps two first increments of a row from both inserting it */
+        String columns = String.join(", ", keys);
+        StringBuilder match = new StringBuilder();
+        StringBuilder inserted = new StringBuilder();
+        for (String key : keys) {
+            match.append(match.length() == 0 ? "" : " and ").append("t.").append(key).append(" = s.").append(key);
+            inserted.append("s.").append(key).append(", ");
+        }
+        return "merge into " + table + " with (holdlock) t using (" + source + ") s (" + columns + ", " + counter + ")\n" +
+                "on " + match + "\n" +
+                "when matched then update set " + counter + " = t." + counter + " + s." + counter + "\n" +
+                "when not matched then insert (" + columns + ", " + counter + ") values (" + inserted + "s." + counter + ");";
+    }
+
+    @Override
+    public String sqlTruncate(String table) {
+        return "truncate table " + table + ";";
+    }
+
+    @Override
+    public String sqlRestartIdentity(String table, String column) {
+        /* RESEED 0 makes the next id 1 only if a row was ever inserted, a fresh table starts at 1 anyway */
+        return "IF EXISTS (SELECT * FROM sys.identity_columns WHERE object_id = OBJECT_ID('dbo." + table + "') " +
+                "AND last_value IS NOT NULL) DBCC CHECKIDENT ('dbo." + table + "', RESEED, 0);";
+    }
+
+    @Override
+    public String sqlSetIdentityInsert(String table, boolean on) {
+        /* only one table of a session can have IDENTITY_INSERT on at a time */
+        return "SET IDENTITY_INSERT " + table + (on ? " ON;" : " OFF;");
+    }
+
+    @Override
+    public String bookStageTable() {
+        return "#book_stage";
+    }
+
+    @Override
+    public String sqlDropBookStage() {
+        return "IF OBJECT_ID('tempdb..#book_stage', 'U') IS NOT NULL DROP TABLE #book_stage;";
+    }
+
+    @Override
+    public String sqlCreateBookStage() {
+        return "create table #book_stage (\n" +
+                "    category varchar(63) not null,\n" +
+                "    title varchar(63) not null,\n" +
+                "    press varchar(63) not null,\n" +
+                "    publish_year int not null,\n" +
+                "    author varchar(63) not null,\n" +
+                "    price decimal(7, 2) not null default 0.00,\n" +
+                "    stock int not null default 0\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlMergeBookStage() {
+        return "insert into book (category, title, press, publish_year, author, price, stock)\n" +
+                "select s.category, s.title, s.press, s.publish_year, s.author, s.price, s.stock\n" +
+                "from #book_stage s\n" +
+                "where not exists (select 1 from book b\n" +
+                "    where b.category = s.category and b.press = s.press and b.author = s.author\n" +
+                "      and b.title = s.title and b.publish_year = s.publish_year);";
+    }
 }
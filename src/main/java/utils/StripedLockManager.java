@@ -0,0 +1,147 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * process-local lock table that serializes conflicting borrow/return calls before they
+ * reach the database. Card and book ids hash into two separate arrays of locks, and
+ * {@link #lock(int, int)} always takes the card stripe before the book stripe, so two
+ * callers can never wait for each other in a cycle.
+ * Share one instance between all LibraryManagementSystemImpl objects of the process.
+ */
+public class StripedLockManager {
+
+    /**
+     * releases the locks taken by {@link #lock(int, int)}, use with try-with-resources.
+     */
+    public interface Guard extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /* pass as card or book id to skip that lock */
+    public static final int NONE = -1;
+
+    public static final Guard NO_LOCK = () -> { };
+
+    private final ReentrantLock[] cardLocks;
+    private final ReentrantLock[] bookLocks;
+    private final int mask;
+    private final boolean fair;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public StripedLockManager() {
+        this(1024, false);
+    }
+
+    /**
+     * @param stripes locks per key space, rounded up to a power of two
+     * @param fair    grant waiting threads in arrival order, slower but without starvation
+     */
+    public StripedLockManager(int stripes, boolean fair) {
+        int n = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.mask = n - 1;
+        this.fair = fair;
+        this.cardLocks = new ReentrantLock[n];
+        this.bookLocks = new ReentrantLock[n];
+        for (int i = 0; i < n; ++i) {
+            cardLocks[i] = new ReentrantLock(fair);
+            bookLocks[i] = new ReentrantLock(fair);
+        }
+    }
+
+    /**
+     * lock the stripes of cardId and bookId (either may be NONE), card first.
+     */
+    public Guard lock(int cardId, int bookId) {
+        ReentrantLock card = cardId == NONE ? null : cardLocks[index(cardId)];
+        ReentrantLock book = bookId == NONE ? null : bookLocks[index(bookId)];
+        if (card != null) {
+            acquire(card);
+        }
+        if (book != null) {
+            acquire(book);
+        }
+        return () -> {
+            if (book != null) {
+                book.unlock();
+            }
+            if (card != null) {
+                card.unlock();
+            }
+        };
+    }
+
+    private void acquire(ReentrantLock lock) {
+        acquisitions.incrementAndGet();
+        /* tryLock() barges even on a fair lock, only use the fast path for unfair ones */
+        if (!fair && lock.tryLock()) {
+            return;
+        }
+        boolean busy = lock.isLocked();
+        long start = System.nanoTime();
+        lock.lock();
+        long waited = System.nanoTime() - start;
+        if (busy) {
+            contended.incrementAndGet();
+        }
+        waitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited)) {
+        }
+    }
+
+    /* murmur3 finalizer, consecutive ids end up on unrelated stripes */
+    private int index(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    public int getStripes() {
+        return mask + 1;
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /* acquisitions that had to wait for another thread */
+    public long getContended() {
+        return contended.get();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public void resetMetrics() {
+        acquisitions.set(0);
+        contended.set(0);
+        waitNanos.set(0);
+        maxWaitNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("stripes=%d, fair=%b, acquisitions=%d, contended=%d, wait=%.1fms, maxWait=%.1fms",
+                getStripes(), fair, getAcquisitions(), getContended(), getWaitNanos() / 1e6, getMaxWaitNanos() / 1e6);
+    }
+}
@@ -0,0 +1,345 @@
+package utils;
+
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * seeded generator of production-shaped catalogs: books, cards and borrow histories in
+ * which a few books are borrowed far more often than the rest (Zipf popularity).
+ *
+ * Every item is derived from the seed and its own index only, so the output is the same
+ * for any number of threads. Items are generated in chunks on a pool and handed to the
+ * sink chunk by chunk in index order from the calling thread, so sinks need not be
+ * thread-safe, e.g. LibraryManagementSystem::storeBook or ::registerCards.
+ *
+ * Books are unique by construction (the title carries the index as volume number), cards
+ * by their name, and the loans of a card have strictly increasing borrow times, so no
+ * batch is refused for a duplicate.
+ */
+public class SyntheticDataGenerator implements AutoCloseable {
+
+    /* a chunk of generated items, e.g. LibraryManagementSystem::storeBook */
+    public interface Sink<T> {
+        ApiResult store(List<T> items);
+    }
+
+    private static final String[] CATEGORIES = {"Computer Science", "Mathematics", "Physics", "Chemistry",
+            "Biology", "Medicine", "Economics", "Law", "History", "Philosophy", "Psychology", "Art", "Music",
+            "Novel", "Poetry", "Horror", "Science Fiction", "Fantasy", "Biography", "Travel", "Cooking",
+            "Children", "Dictionary", "Magazine"};
+    private static final String[] ADJECTIVES = {"Modern", "Applied", "Advanced", "Practical", "Introductory",
+            "Concise", "Complete", "Hidden", "Silent", "Lost", "Ancient", "Invisible", "Distributed", "Quiet",
+            "Golden", "Broken", "Endless", "Secret", "Wild", "Gentle", "Northern", "Red", "Last", "First",
+            "Little", "Great", "Strange", "Brief", "Essential", "Elementary"};
+    private static final String[] NOUNS = {"Databases", "Algorithms", "Networks", "Compilers", "Systems",
+            "Calculus", "Mechanics", "Rivers", "Cities", "Gardens", "Empires", "Dreams", "Machines", "Stars",
+            "Oceans", "Letters", "Voices", "Islands", "Mountains", "Kingdoms", "Theories", "Numbers", "Shadows",
+            "Winters", "Journeys", "Minds", "Structures", "Patterns", "Signals", "Markets"};
+    private static final String[] PRESSES = {"Machine Industry Press", "Higher Education Press",
+            "Tsinghua University Press", "Zhejiang University Press", "Peking University Press", "O'Reilly",
+            "Addison-Wesley", "Prentice Hall", "Springer", "MIT Press", "Penguin", "HarperCollins",
+            "Random House", "Wiley", "Elsevier", "Cambridge University Press", "Oxford University Press",
+            "Pearson", "McGraw-Hill", "People's Literature Press"};
+    private static final String[] FIRST_NAMES = {"Wei", "Fang", "Min", "Jing", "Lei", "Yan", "Hao", "Xin",
+            "Ying", "Jun", "Alice", "Bob", "Carol", "David", "Eve", "Frank", "Grace", "Heidi", "Ivan", "Judy",
+            "Mallory", "Niaj", "Olivia", "Peggy", "Rupert", "Sybil", "Trent", "Victor", "Walter", "Zoe"};
+    private static final String[] LAST_NAMES = {"Wang", "Li", "Zhang", "Liu", "Chen", "Yang", "Zhao", "Huang",
+            "Zhou", "Wu", "Xu", "Sun", "Hu", "Zhu", "Gao", "Lin", "He", "Guo", "Ma", "Luo", "Smith", "Johnson",
+            "Brown", "Garcia", "Miller", "Davis", "Lopez", "Wilson", "Moore", "Taylor"};
+    private static final String[] DEPARTMENTS = {"Computer Science", "Law", "Management", "Civil Engineering",
+            "Architecture", "Environmental Science", "English Language", "General Education",
+            "Ideological & Political", "Mathematics", "Physics", "Medicine", "Economics", "Art", "History"};
+
+    /* separate streams, so that e.g. the books do not change when more cards are generated */
+    private static final long BOOK_STREAM = 0x9E3779B97F4A7C15L;
+    private static final long CARD_STREAM = 0xC2B2AE3D27D4EB4FL;
+    private static final long BORROW_STREAM = 0x165667B19E3779F9L;
+
+    private static final int BOOK_CHUNK = 5000;
+    private static final int CARD_CHUNK = 5000;
+    /* cards per chunk of loans, the chunk holds about loansPerCard times as many loans */
+    private static final int BORROW_CARD_CHUNK = 500;
+
+    private final long seed;
+    private final int threads;
+    private final ExecutorService pool;
+    private double popularity = 1.0;
+    private long meanLoanMillis = 14L * 24 * 3600 * 1000;
+
+    /**
+     * @param threads generating threads, the output does not depend on it
+     */
+    public SyntheticDataGenerator(long seed, int threads) {
+        this.seed = seed;
+        this.threads = Math.max(1, threads);
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "synthetic-data-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /* an independent random source for item index of a stream */
+    private SplittableRandom random(long stream, long index) {
+        return new SplittableRandom(mix(seed ^ stream) + index * stream);
+    }
+
+    /* the finalizer of SplitMix64 */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static String pick(String[] words, SplittableRandom random) {
+        return words[random.nextInt(words.length)];
+    }
+
+    /* book number index, books with different indexes never collide */
+    public Book book(int index) {
+        SplittableRandom random = random(BOOK_STREAM, index);
+        String title = pick(ADJECTIVES, random) + " " + pick(NOUNS, random) + " Vol. " + (index + 1);
+        /* cents, so no formatting is needed to get two decimals */
+        int cents = 100 + random.nextInt(23000);
+        return new Book(pick(CATEGORIES, random), title, pick(PRESSES, random), 1950 + random.nextInt(74),
+                pick(FIRST_NAMES, random) + " " + pick(LAST_NAMES, random), cents / 100.0,
+                1 + random.nextInt(99));
+    }
+
+    /* card number index, cards with different indexes never collide */
+    public Card card(int index) {
+        SplittableRandom random = random(CARD_STREAM, index);
+        String name = pick(FIRST_NAMES, random) + " " + pick(LAST_NAMES, random) + " " + (index + 1);
+        Card.CardType type = random.nextInt(10) == 0 ? Card.CardType.Teacher : Card.CardType.Student;
+        return new Card(0, name, pick(DEPARTMENTS, random), type);
+    }
+
+    /**
+     * the returned loans of card number cardIndex: count loans spread over [from, to), each
+     * of a book drawn by the sampler, i.e. bookIds[0] is the most popular one.
+     */
+    public List<Borrow> loans(int cardIndex, int count, int[] bookIds, int[] cardIds, ZipfSampler books,
+                              long from, long to) {
+        SplittableRandom random = random(BORROW_STREAM, cardIndex);
+        /* exponential gaps scaled to the window, so the borrow times of the card fill [from, to) */
+        double[] gaps = new double[count + 1];
+        double total = 0;
+        for (int i = 0; i <= count; ++i) {
+            gaps[i] = -Math.log(1 - random.nextDouble());
+            total += gaps[i];
+        }
+        List<Borrow> loans = new ArrayList<>(count);
+        double span = to - from;
+        double at = 0;
+        long prev = from - 1;
+        for (int i = 0; i < count; ++i) {
+            at += gaps[i];
+            long borrowTime = Math.max(prev + 1, from + (long) (at / total * span));
+            long duration = 1 + (long) (-Math.log(1 - random.nextDouble()) * meanLoanMillis);
+            Borrow loan = new Borrow(bookIds[books.sample(random) - 1], cardIds[cardIndex]);
+            loan.setBorrowTime(borrowTime);
+            loan.setReturnTime(borrowTime + duration);
+            loans.add(loan);
+            prev = borrowTime;
+        }
+        return loans;
+    }
+
+    /* books number 0 to n - 1, chunk by chunk */
+    public long books(int n, Sink<Book> sink) {
+        return generate(n, BOOK_CHUNK, this::book, sink);
+    }
+
+    /* cards number 0 to n - 1, chunk by chunk */
+    public long cards(int n, Sink<Card> sink) {
+        return generate(n, CARD_CHUNK, this::card, sink);
+    }
+
+    /**
+     * nLoans returned loans between from and to, spread evenly over the cards, with books drawn
+     * by popularity. Stored books and cards are passed by their ids, most popular book first.
+     */
+    public long loans(long nLoans, int[] bookIds, int[] cardIds, long from, long to, Sink<Borrow> sink) {
+        if (nLoans > 0 && (bookIds.length == 0 || cardIds.length == 0)) {
+            throw new IllegalArgumentException("loans need at least one book and one card");
+        }
+        if (nLoans <= 0) {
+            return 0;
+        }
+        ZipfSampler books = new ZipfSampler(bookIds.length, popularity);
+        int nCards = cardIds.length;
+        long base = nLoans / nCards;
+        long extra = nLoans % nCards;
+        int chunks = (nCards + BORROW_CARD_CHUNK - 1) / BORROW_CARD_CHUNK;
+        return pipeline(chunks, chunk -> {
+            int first = chunk * BORROW_CARD_CHUNK;
+            int last = Math.min(nCards, first + BORROW_CARD_CHUNK);
+            List<Borrow> loans = new ArrayList<>();
+            for (int c = first; c < last; ++c) {
+                int count = (int) (base + (c < extra ? 1 : 0));
+                loans.addAll(loans(c, count, bookIds, cardIds, books, from, to));
+            }
+            return loans;
+        }, sink);
+    }
+
+    /* books as "category, title, press, publish_year, author, price, stock" lines, see CatalogImporter */
+    public long writeBooks(Path csv, int n) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            return books(n, chunk -> {
+                StringBuilder sb = new StringBuilder(chunk.size() * 96);
+                for (Book b : chunk) {
+                    sb.append('"').append(b.getCategory()).append("\",\"").append(b.getTitle()).append("\",\"")
+                            .append(b.getPress()).append("\",").append(b.getPublishYear()).append(",\"")
+                            .append(b.getAuthor()).append("\",").append(b.getPrice()).append(',')
+                            .append(b.getStock()).append('\n');
+                }
+                return write(out, sb);
+            });
+        }
+    }
+
+    /* loans as "card_id, book_id, borrow_time, return_time" lines, the columns of the borrow table */
+    public long writeLoans(Path csv, long nLoans, int[] bookIds, int[] cardIds, long from, long to)
+            throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            return loans(nLoans, bookIds, cardIds, from, to, chunk -> {
+                StringBuilder sb = new StringBuilder(chunk.size() * 40);
+                for (Borrow r : chunk) {
+                    sb.append(r.getCardId()).append(',').append(r.getBookId()).append(',')
+                            .append(r.getBorrowTime()).append(',').append(r.getReturnTime()).append('\n');
+                }
+                return write(out, sb);
+            });
+        }
+    }
+
+    private static ApiResult write(BufferedWriter out, CharSequence text) {
+        try {
+            out.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ApiResult(true, null);
+    }
+
+    /**
+     * a sink that inserts returned loans straight into borrow with batched INSERTs, for
+     * seeding history without going through borrowBook. Open loans, stock and the
+     * open_loans counters are left alone, so only use it for returned loans.
+     */
+    public static Sink<Borrow> historySink(DatabaseConnector connector) {
+        return loans -> {
+            Connection conn = connector.getConn();
+            String ins_sql = "INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (?, ?, ?, ?)";
+            try (PreparedStatement stmt = conn.prepareStatement(ins_sql)) {
+                for (Borrow r : loans) {
+                    stmt.setInt(1, r.getCardId());
+                    stmt.setInt(2, r.getBookId());
+                    stmt.setLong(3, r.getBorrowTime());
+                    stmt.setLong(4, r.getReturnTime());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                conn.commit();
+                return new ApiResult(true, null);
+            } catch (SQLException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException ignored) {
+                }
+                return new ApiResult(false, e.getMessage());
+            }
+        };
+    }
+
+    private <T> long generate(int n, int chunkSize, IntFunction<T> item, Sink<T> sink) {
+        int chunks = (n + chunkSize - 1) / chunkSize;
+        return pipeline(chunks, chunk -> {
+            int first = chunk * chunkSize;
+            int last = Math.min(n, first + chunkSize);
+            List<T> items = new ArrayList<>(last - first);
+            for (int i = first; i < last; ++i) {
+                items.add(item.apply(i));
+            }
+            return items;
+        }, sink);
+    }
+
+    /*
+        chunks are generated on the pool, at most 2 per thread ahead of the sink so memory
+        stays bounded, and stored in order on the calling thread.
+     */
+    private <T> long pipeline(int chunks, IntFunction<List<T>> chunk, Sink<T> sink) {
+        Deque<Future<List<T>>> ahead = new ArrayDeque<>();
+        int next = 0;
+        long stored = 0;
+        try {
+            while (next < chunks || !ahead.isEmpty()) {
+                while (next < chunks && ahead.size() < threads * 2) {
+                    int c = next++;
+                    ahead.add(pool.submit(() -> chunk.apply(c)));
+                }
+                List<T> items = ahead.poll().get();
+                ApiResult result = sink.store(items);
+                if (!result.ok) {
+                    throw new IllegalStateException("failed to store generated data: " + result.message);
+                }
+                stored += items.size();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to generate data", e.getCause());
+        } finally {
+            for (Future<List<T>> f : ahead) {
+                f.cancel(true);
+            }
+        }
+        return stored;
+    }
+
+    /* skew of book popularity, see ZipfSampler; 1.0 by default */
+    public void setPopularity(double popularity) {
+        this.popularity = popularity;
+    }
+
+    /* mean time until a loan is returned */
+    public void setMeanLoanMillis(long meanLoanMillis) {
+        this.meanLoanMillis = Math.max(1, meanLoanMillis);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,459 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Streams the book, card and borrow tables into files for the data warehouse.
+ *
+ * Rows are read with a forward-only cursor and a large fetch size, and written
+ * either as gzip-compressed csv (with a header line) or as a compact columnar file.
+ * Only one fetch batch (csv) or one row group (columnar) is held in memory.
+ *
+ * Columnar layout, all integers big-endian:
+ * <pre>
+ *     magic "LCOL", int version, int columnCount,
+ *     per column: utf name, byte type (0 int32, 1 int64, 2 decimal, 3 string), byte scale
+ *     per row group: int rowCount, per column: int length, deflated column block
+ *     int 0 (end of file)
+ * </pre>
+ * int32/int64 blocks hold plain values, decimal blocks hold unscaled longs and
+ * string blocks hold (int length, utf-8 bytes) pairs.
+ */
+public class TableExporter {
+
+    private static final Logger log = Logger.getLogger(TableExporter.class.getName());
+
+    private static final int MAGIC = 0x4C434F4C; // "LCOL"
+    private static final int VERSION = 1;
+    private static final byte INT32 = 0;
+    private static final byte INT64 = 1;
+    private static final byte DECIMAL = 2;
+    private static final byte STRING = 3;
+
+    public enum Format {
+        CSV_GZIP(".csv.gz"),
+        COLUMNAR(".lcol");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    public static final class Report {
+        private final String table;
+        private final long rows;
+        private final long bytes;
+        private final long elapsedMillis;
+        private final long highWatermark;
+
+        Report(String table, long rows, long bytes, long elapsedMillis, long highWatermark) {
+            this.table = table;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+            this.highWatermark = highWatermark;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /* size of the written file */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /* max(borrow_time, return_time) of the exported borrow rows, use it as the next watermark */
+        public long getHighWatermark() {
+            return highWatermark;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedMillis == 0 ? rows : rows * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Report {" + "table='" + table + '\'' +
+                    ", rows=" + rows +
+                    ", bytes=" + bytes +
+                    ", elapsedMillis=" + elapsedMillis +
+                    ", rowsPerSecond=" + String.format("%.1f", getRowsPerSecond()) +
+                    ", highWatermark=" + highWatermark +
+                    '}';
+        }
+    }
+
+    private final DatabaseConnector connector;
+    private int fetchSize;
+    private int rowGroupSize = 65536;
+
+    /* best used with a connector opened with the reporting profile */
+    public TableExporter(DatabaseConnector connector) {
+        this.connector = connector;
+        int profileFetchSize = connector.getConf().getProfile().getFetchSize();
+        this.fetchSize = profileFetchSize > 0 ? profileFetchSize : 10000;
+    }
+
+    /**
+     * export book, card and borrow into dir, named after the table.
+     *
+     * @param borrowWatermark only export borrow rows borrowed or returned after it, 0 for all
+     */
+    public List<Report> exportAll(Path dir, Format format, long borrowWatermark) throws IOException, SQLException {
+        List<Report> reports = new ArrayList<>();
+        reports.add(exportBook(dir.resolve("book" + format.getExtension()), format));
+        reports.add(exportCard(dir.resolve("card" + format.getExtension()), format));
+        reports.add(exportBorrow(dir.resolve("borrow" + format.getExtension()), format, borrowWatermark));
+        return reports;
+    }
+
+    public Report exportBook(Path target, Format format) throws IOException, SQLException {
+        /* striped books keep their stock in book_stock_stripe */
+        return export("book", "SELECT book_id, category, title, press, publish_year, author, price, " +
+                "CASE WHEN stripes = 0 THEN stock ELSE stock + (SELECT COALESCE(SUM(s.stock), 0) " +
+                "FROM book_stock_stripe s WHERE s.book_id = book.book_id) END AS stock " +
+                "FROM book ORDER BY book_id", -1, target, format);
+    }
+
+    public Report exportCard(Path target, Format format) throws IOException, SQLException {
+        return export("card", "SELECT card_id, name, department, type FROM card ORDER BY card_id",
+                -1, target, format);
+    }
+
+    /**
+     * @param watermark only export rows with borrow_time or return_time after it, 0 for all
+     */
+    public Report exportBorrow(Path target, Format format, long watermark) throws IOException, SQLException {
+        /* returned loans archived by BorrowArchiver keep their times, so the watermark covers them too */
+        return export("borrow", "SELECT card_id, book_id, borrow_time, return_time FROM (" +
+                "SELECT card_id, book_id, borrow_time, return_time FROM borrow UNION ALL " +
+                "SELECT card_id, book_id, borrow_time, return_time FROM borrow_archive) b " +
+                "WHERE borrow_time > ? OR return_time > ? " +
+                "ORDER BY card_id, book_id, borrow_time", watermark, target, format);
+    }
+
+    private Report export(String table, String sql, long watermark, Path target, Format format)
+            throws IOException, SQLException {
+        long start = System.nanoTime();
+        Connection conn = connector.getConn();
+        long[] counters = new long[2]; // rows, high watermark
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(sql,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+             FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            stmt.setFetchSize(connector.getConf().getType().streamingFetchSize(fetchSize));
+            if (watermark >= 0) {
+                stmt.setLong(1, watermark);
+                stmt.setLong(2, watermark);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (format == Format.CSV_GZIP) {
+                    writeCsv(rs, channel, counters);
+                } else {
+                    writeColumnar(rs, channel, counters);
+                }
+            }
+            conn.commit();
+            Report report = new Report(table, counters[0], channel.size(),
+                    (System.nanoTime() - start) / 1000000, Math.max(watermark, counters[1]));
+            log.info("Export finished. " + report);
+            return report;
+        } catch (IOException | SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    private static void trackWatermark(ResultSet rs, ResultSetMetaData meta, long[] counters) throws SQLException {
+        for (int i = 1; i <= meta.getColumnCount(); ++i) {
+            String name = meta.getColumnLabel(i);
+            if ("borrow_time".equalsIgnoreCase(name) || "return_time".equalsIgnoreCase(name)) {
+                counters[1] = Math.max(counters[1], rs.getLong(i));
+            }
+        }
+    }
+
+    private static void writeCsv(ResultSet rs, FileChannel channel, long[] counters) throws IOException, SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int n = meta.getColumnCount();
+        byte[] types = columnTypes(meta);
+        /* the channel is closed by the caller, so do not close the writer chain either */
+        GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), 1 << 16);
+        for (int i = 1; i <= n; ++i) {
+            writer.write(i == 1 ? "" : ",");
+            writer.write(meta.getColumnLabel(i).toLowerCase());
+        }
+        writer.write('\n');
+        while (rs.next()) {
+            for (int i = 1; i <= n; ++i) {
+                if (i > 1) {
+                    writer.write(',');
+                }
+                switch (types[i - 1]) {
+                    case INT32:
+                        writer.write(Integer.toString(rs.getInt(i)));
+                        break;
+                    case INT64:
+                        writer.write(Long.toString(rs.getLong(i)));
+                        break;
+                    case DECIMAL:
+                        writer.write(rs.getBigDecimal(i).toPlainString());
+                        break;
+                    default:
+                        writer.write(csvField(rs.getString(i)));
+                }
+            }
+            writer.write('\n');
+            trackWatermark(rs, meta, counters);
+            ++counters[0];
+        }
+        writer.flush();
+        gzip.finish();
+        gzip.flush();
+    }
+
+    private static String csvField(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private void writeColumnar(ResultSet rs, FileChannel channel, long[] counters) throws IOException, SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int n = meta.getColumnCount();
+        byte[] types = columnTypes(meta);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(n);
+        for (int i = 1; i <= n; ++i) {
+            out.writeUTF(meta.getColumnLabel(i).toLowerCase());
+            out.writeByte(types[i - 1]);
+            out.writeByte(types[i - 1] == DECIMAL ? meta.getScale(i) : 0);
+        }
+        writeFully(channel, ByteBuffer.wrap(header.toByteArray()));
+
+        ByteArrayOutputStream[] blocks = new ByteArrayOutputStream[n];
+        DataOutputStream[] columns = new DataOutputStream[n];
+        for (int i = 0; i < n; ++i) {
+            blocks[i] = new ByteArrayOutputStream();
+            columns[i] = new DataOutputStream(blocks[i]);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[1 << 16];
+        int rows = 0;
+        try {
+            while (rs.next()) {
+                for (int i = 0; i < n; ++i) {
+                    switch (types[i]) {
+                        case INT32:
+                            columns[i].writeInt(rs.getInt(i + 1));
+                            break;
+                        case INT64:
+                            columns[i].writeLong(rs.getLong(i + 1));
+                            break;
+                        case DECIMAL:
+                            columns[i].writeLong(rs.getBigDecimal(i + 1)
+                                    .setScale(meta.getScale(i + 1), RoundingMode.HALF_UP).unscaledValue().longValue());
+                            break;
+                        default:
+                            byte[] bytes = rs.getString(i + 1).getBytes(StandardCharsets.UTF_8);
+                            columns[i].writeInt(bytes.length);
+                            columns[i].write(bytes);
+                    }
+                }
+                trackWatermark(rs, meta, counters);
+                ++counters[0];
+                if (++rows == rowGroupSize) {
+                    flushRowGroup(channel, rows, blocks, deflater, buffer);
+                    rows = 0;
+                }
+            }
+            if (rows > 0) {
+                flushRowGroup(channel, rows, blocks, deflater, buffer);
+            }
+        } finally {
+            deflater.end();
+        }
+        writeFully(channel, intBuffer(0));
+    }
+
+    private static void flushRowGroup(FileChannel channel, int rows, ByteArrayOutputStream[] blocks,
+                                      Deflater deflater, byte[] buffer) throws IOException {
+        writeFully(channel, intBuffer(rows));
+        for (ByteArrayOutputStream block : blocks) {
+            deflater.reset();
+            deflater.setInput(block.toByteArray());
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.size() / 2 + 16);
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            writeFully(channel, intBuffer(compressed.size()));
+            writeFully(channel, ByteBuffer.wrap(compressed.toByteArray()));
+            block.reset();
+        }
+    }
+
+    private static ByteBuffer intBuffer(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, value);
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] columnTypes(ResultSetMetaData meta) throws SQLException {
+        byte[] types = new byte[meta.getColumnCount()];
+        for (int i = 1; i <= types.length; ++i) {
+            switch (meta.getColumnType(i)) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                    types[i - 1] = INT32;
+                    break;
+                case Types.BIGINT:
+                    types[i - 1] = INT64;
+                    break;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    types[i - 1] = DECIMAL;
+                    break;
+                default:
+                    types[i - 1] = STRING;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * read a columnar file back row by row, values are Integer, Long,
+     * BigDecimal or String according to the column type.
+     */
+    public static void readColumnar(InputStream file, Consumer<Object[]> rowConsumer) throws IOException {
+        DataInputStream in = new DataInputStream(file);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a columnar export file");
+        }
+        int n = in.readInt();
+        byte[] types = new byte[n];
+        int[] scales = new int[n];
+        for (int i = 0; i < n; ++i) {
+            in.readUTF();
+            types[i] = in.readByte();
+            scales[i] = in.readByte();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            int rows;
+            while ((rows = in.readInt()) > 0) {
+                Object[][] values = new Object[rows][n];
+                for (int i = 0; i < n; ++i) {
+                    byte[] compressed = new byte[in.readInt()];
+                    in.readFully(compressed);
+                    inflater.reset();
+                    inflater.setInput(compressed);
+                    ByteArrayOutputStream block = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[1 << 16];
+                    while (!inflater.finished()) {
+                        int len = inflater.inflate(buffer);
+                        if (len == 0 && inflater.needsInput()) {
+                            throw new IOException("truncated column block");
+                        }
+                        block.write(buffer, 0, len);
+                    }
+                    DataInputStream column = new DataInputStream(
+                            new ByteArrayInputStream(block.toByteArray()));
+                    for (int r = 0; r < rows; ++r) {
+                        switch (types[i]) {
+                            case INT32:
+                                values[r][i] = column.readInt();
+                                break;
+                            case INT64:
+                                values[r][i] = column.readLong();
+                                break;
+                            case DECIMAL:
+                                values[r][i] = BigDecimal.valueOf(column.readLong(), scales[i]);
+                                break;
+                            default:
+                                byte[] bytes = new byte[column.readInt()];
+                                column.readFully(bytes);
+                                values[r][i] = new String(bytes, StandardCharsets.UTF_8);
+                        }
+                    }
+                }
+                for (Object[] row : values) {
+                    rowConsumer.accept(row);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public void setRowGroupSize(int rowGroupSize) {
+        this.rowGroupSize = Math.max(1, rowGroupSize);
+    }
+}
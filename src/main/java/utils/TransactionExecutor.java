@@ -0,0 +1,233 @@
+package utils;
+
+import queries.ApiResult;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * runs one unit of work as a transaction on the connector's connection: commits when the
+ * work returns an ok result, rolls back otherwise. Deadlocks, serialization failures and
+ * lock-wait timeouts are rolled back and retried with jittered exponential backoff until
+ * the attempt or time budget runs out; any other exception becomes ApiResult(false, msg).
+ */
+public class TransactionExecutor {
+
+    /**
+     * the body of a transaction, it must not commit or roll back by itself.
+     */
+    public interface Work {
+        ApiResult run(Connection conn) throws Exception;
+    }
+
+    /* why a failed attempt may be retried */
+    public enum Reason {
+        DEADLOCK,
+        SERIALIZATION_FAILURE,
+        LOCK_TIMEOUT
+    }
+
+    /* pass as isolation to keep the level of the connection profile */
+    public static final int DEFAULT_ISOLATION = -1;
+
+    private final DatabaseConnector connector;
+    private int maxAttempts = 16;
+    private long budgetMillis = 5000;
+    private long baseBackoffMicros = 1000;
+    private long maxBackoffMicros = 100000;
+
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong[] reasons = new AtomicLong[Reason.values().length];
+
+    public TransactionExecutor(DatabaseConnector connector) {
+        this.connector = connector;
+        for (int i = 0; i < reasons.length; ++i) {
+            reasons[i] = new AtomicLong();
+        }
+    }
+
+    public ApiResult execute(Work work) {
+        return execute(DEFAULT_ISOLATION, maxAttempts, work);
+    }
+
+    public ApiResult execute(int isolation, Work work) {
+        return execute(isolation, maxAttempts, work);
+    }
+
+    /**
+     * @param isolation a Connection.TRANSACTION_* level used for this transaction only,
+     *                  or DEFAULT_ISOLATION
+     * @param attempts  upper bound of tries for this call, the time budget applies as well
+     */
+    public ApiResult execute(int isolation, int attempts, Work work) {
+        transactions.incrementAndGet();
+        Connection conn = connector.getConn();
+        int defaultIsolation = connector.getConf().getProfile().isolation(connector.getConf().getType());
+        boolean switched = isolation != DEFAULT_ISOLATION && isolation != defaultIsolation;
+        long deadline = System.nanoTime() + budgetMillis * 1000000L;
+        try {
+            conn.setAutoCommit(false);
+            if (switched) {
+                conn.setTransactionIsolation(isolation);
+            }
+            for (int attempt = 1; ; ++attempt) {
+                try {
+                    ApiResult result = work.run(conn);
+                    if (result.ok) {
+                        conn.commit();
+                    } else {
+                        rollback(conn);
+                    }
+                    return result;
+                } catch (SQLException e) {
+                    rollback(conn);
+                    Reason reason = classify(connector.getConf().getType(), e);
+                    if (reason == null) {
+                        return new ApiResult(false, e.getMessage());
+                    }
+                    reasons[reason.ordinal()].incrementAndGet();
+                    if (attempt >= attempts || System.nanoTime() >= deadline) {
+                        exhausted.incrementAndGet();
+                        return new ApiResult(false, e.getMessage());
+                    }
+                    retries.incrementAndGet();
+                    backoff(attempt);
+                } catch (Exception e) {
+                    rollback(conn);
+                    return new ApiResult(false, e.getMessage());
+                }
+            }
+        } catch (SQLException e) {
+            return new ApiResult(false, e.getMessage());
+        } finally {
+            if (switched) {
+                try {
+                    conn.setTransactionIsolation(defaultIsolation);
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * retryable cause of the exception or of any exception chained to it, null if it is
+     * not worth retrying.
+     */
+    public static Reason classify(DatabaseType type, SQLException e) {
+        for (Throwable t = e; t != null; t = next(t)) {
+            if (!(t instanceof SQLException)) {
+                continue;
+            }
+            SQLException se = (SQLException) t;
+            String state = se.getSQLState() == null ? "" : se.getSQLState();
+            int code = se.getErrorCode();
+            if (state.equals("40P01")) {
+                return Reason.DEADLOCK;
+            }
+            switch (type) {
+                case MYSQL:
+                    if (code == 1213) return Reason.DEADLOCK;
+                    if (code == 1205) return Reason.LOCK_TIMEOUT;
+                    break;
+                case SQLSERVER:
+                    if (code == 1205) return Reason.DEADLOCK;
+                    if (code == 1222) return Reason.LOCK_TIMEOUT;
+                    break;
+                case POSTGRES:
+                    if (state.equals("55P03")) return Reason.LOCK_TIMEOUT;
+                    break;
+                case H2:
+                    /* DEADLOCK_1, LOCK_TIMEOUT_1, CONCURRENT_UPDATE_1 */
+                    if (code == 40001) return Reason.DEADLOCK;
+                    if (code == 50200) return Reason.LOCK_TIMEOUT;
+                    if (code == 90131) return Reason.SERIALIZATION_FAILURE;
+                    break;
+                default:
+                    break;
+            }
+            if (state.equals("40001") || t instanceof SQLTransactionRollbackException) {
+                return Reason.SERIALIZATION_FAILURE;
+            }
+        }
+        return null;
+    }
+
+    private static Throwable next(Throwable t) {
+        if (t instanceof SQLException && ((SQLException) t).getNextException() != null) {
+            return ((SQLException) t).getNextException();
+        }
+        return t.getCause() == t ? null : t.getCause();
+    }
+
+    /* full jitter: uniform in [0, min(max, base * 2^attempt)) */
+    private void backoff(int attempt) {
+        long cap = Math.min(maxBackoffMicros, baseBackoffMicros << Math.min(attempt, 20));
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(cap + 1) * 1000L);
+    }
+
+    private static void rollback(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public void setBudgetMillis(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+    }
+
+    public void setBackoffMicros(long baseBackoffMicros, long maxBackoffMicros) {
+        this.baseBackoffMicros = Math.max(1, baseBackoffMicros);
+        this.maxBackoffMicros = Math.max(this.baseBackoffMicros, maxBackoffMicros);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /* transactions started through this executor */
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    /* attempts that were rolled back and run again */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /* transactions that still failed with a retryable error when the budget ran out */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    public long getFailures(Reason reason) {
+        return reasons[reason.ordinal()].get();
+    }
+
+    public void resetMetrics() {
+        transactions.set(0);
+        retries.set(0);
+        exhausted.set(0);
+        for (AtomicLong r : reasons) {
+            r.set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("transactions=%d, retries=%d, exhausted=%d, deadlocks=%d, serialization=%d, lockTimeouts=%d",
+                getTransactions(), getRetries(), getExhausted(), getFailures(Reason.DEADLOCK),
+                getFailures(Reason.SERIALIZATION_FAILURE), getFailures(Reason.LOCK_TIMEOUT));
+    }
+}
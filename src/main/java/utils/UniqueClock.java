@@ -0,0 +1,84 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lock-free source of strictly increasing, unique unix timestamps in milliseconds, used for
+ * borrow and return times so that (card_id, book_id, borrow_time) never collides.
+ * When several calls land in the same millisecond the clock runs slightly ahead of the wall
+ * clock and falls back in step once the rate drops.
+ *
+ * For multi-node deployments give every process its own node id: with nodeBits = k each
+ * node only issues timestamps whose low k bits equal its id, so values stay unique across
+ * nodes and still read as milliseconds, at the price of 1000 / 2^k distinct values per
+ * second per node before the clock runs ahead.
+ */
+public final class UniqueClock {
+
+    private static volatile UniqueClock instance = new UniqueClock(0, 0);
+
+    private final AtomicLong last = new AtomicLong();
+    private final long step;
+    private final long mask;
+    private final long node;
+
+    /**
+     * @param nodeBits low bits reserved for the node id, 0 to 16
+     * @param nodeId   id of this process, 0 <= nodeId < 2^nodeBits
+     */
+    public UniqueClock(int nodeBits, int nodeId) {
+        if (nodeBits < 0 || nodeBits > 16) {
+            throw new IllegalArgumentException("nodeBits must be between 0 and 16");
+        }
+        if (nodeId < 0 || nodeId >= (1 << nodeBits)) {
+            throw new IllegalArgumentException("nodeId does not fit into " + nodeBits + " bits");
+        }
+        this.step = 1L << nodeBits;
+        this.mask = step - 1;
+        this.node = nodeId;
+    }
+
+    /* the process-wide clock used by Borrow and LibraryManagementSystemImpl */
+    public static UniqueClock get() {
+        return instance;
+    }
+
+    /* replace the process-wide clock, e.g. to set the node id once at start-up */
+    public static void set(UniqueClock clock) {
+        instance = clock;
+    }
+
+    /* a timestamp greater than every one this clock issued before */
+    public long next() {
+        for (;;) {
+            long prev = last.get();
+            long next = Math.max(align(System.currentTimeMillis()), prev + step);
+            if (last.compareAndSet(prev, next)) {
+                return next;
+            }
+        }
+    }
+
+    /*
+        like next(), and also greater than after. meant for return times, which are not part
+        of a key: a caller-supplied after beyond the clock is not stored, so one far-future
+        borrow time does not push every later timestamp of the process ahead.
+     */
+    public long nextAfter(long after) {
+        long next = next();
+        return next > after ? next : align(after + 1);
+    }
+
+    /* smallest value >= t whose low bits are the node id */
+    private long align(long t) {
+        return ((t - node + mask) & ~mask) + node;
+    }
+
+    public int getNodeBits() {
+        return Long.numberOfTrailingZeros(step);
+    }
+
+    public int getNodeId() {
+        return (int) node;
+    }
+}
@@ -0,0 +1,243 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * compact text log of calls to a library, one call per line:
+ * "start_us TAB duration_us TAB method TAB ok TAB result TAB arg ...", where start_us counts
+ * from the start of the recording, ok is 1 or 0 and result holds what a replay needs to
+ * follow the recording, e.g. the ids assigned by storeBook. Tabs, line breaks and
+ * backslashes inside values are escaped with a backslash, \N stands for null.
+ */
+public final class WorkloadLog {
+
+    private static final String HEADER = "# library workload v1";
+
+    private WorkloadLog() {
+    }
+
+    public static final class Entry {
+        private final long startMicros;
+        private final long durationMicros;
+        private final String method;
+        private final boolean ok;
+        private final String result;
+        private final String[] args;
+
+        public Entry(long startMicros, long durationMicros, String method, boolean ok, String result, String... args) {
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.method = method;
+            this.ok = ok;
+            this.result = result;
+            this.args = args;
+        }
+
+        public long getStartMicros() {
+            return startMicros;
+        }
+
+        public long getDurationMicros() {
+            return durationMicros;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        public String[] getArgs() {
+            return args;
+        }
+
+        public String arg(int i) {
+            return args[i];
+        }
+
+        public int intArg(int i) {
+            return Integer.parseInt(args[i]);
+        }
+
+        public long longArg(int i) {
+            return Long.parseLong(args[i]);
+        }
+    }
+
+    /* appends entries from any number of threads */
+    public static final class Writer implements Closeable {
+        private final BufferedWriter out;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long entries = 0;
+
+        public Writer(Path path) throws IOException {
+            out = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            out.write(HEADER);
+            out.write('\n');
+        }
+
+        public void append(Entry e) throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append(e.startMicros).append('\t').append(e.durationMicros).append('\t').append(e.method)
+                    .append('\t').append(e.ok ? '1' : '0').append('\t');
+            escape(sb, e.result);
+            for (String arg : e.args) {
+                sb.append('\t');
+                escape(sb, arg);
+            }
+            sb.append('\n');
+            lock.lock();
+            try {
+                out.append(sb);
+                ++entries;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                out.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /* reads a log line by line, returns null at the end */
+    public static final class Reader implements Closeable {
+        private final BufferedReader in;
+
+        public Reader(Path path) throws IOException {
+            in = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+            String header = in.readLine();
+            if (!HEADER.equals(header)) {
+                in.close();
+                throw new IOException("not a workload log: " + path);
+            }
+        }
+
+        public Entry next() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isEmpty());
+            return parse(line);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static Entry parse(String line) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 5) {
+            throw new IOException("malformed workload entry: " + line);
+        }
+        String[] args = new String[fields.length - 5];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = unescape(fields[i + 5]);
+        }
+        try {
+            return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+                    "1".equals(fields[3]), unescape(fields[4]), args);
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed workload entry: " + line, e);
+        }
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("\\N");
+            return;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String s) {
+        if ("\\N".equals(s)) {
+            return null;
+        }
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+        }
+        return sb.toString();
+    }
+
+    /* "1,2,3" for ids, "" for none */
+    public static String join(List<Integer> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (int id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    public static List<Integer> split(String ids) {
+        List<Integer> list = new ArrayList<>();
+        if (ids == null || ids.isEmpty()) {
+            return list;
+        }
+        for (String id : ids.split(",")) {
+            list.add(Integer.parseInt(id));
+        }
+        return list;
+    }
+}
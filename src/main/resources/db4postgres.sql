@@ -0,0 +1,109 @@
+drop table if exists borrow;
+drop table if exists borrow_archive;
+drop table if exists open_loan;
+drop table if exists book_stock_stripe;
+drop table if exists book_daily_borrows;
+drop table if exists department_loans;
+drop table if exists removed_card;
+drop table if exists card;
+drop table if exists book;
+drop table if exists id_block;
+
+create table book (
+    book_id int generated by default as identity,
+    category varchar(63) not null,
+    title varchar(63) not null,
+    press varchar(63) not null,
+    publish_year int not null,
+    author varchar(63) not null,
+    price decimal(7, 2) not null default 0.00,
+    stock int not null default 0,
+    version int not null default 0,
+    stripes int not null default 0,
+    open_loans int not null default 0,
+    primary key (book_id),
+    unique (category, press, author, title, publish_year)
+);
+
+create table card (
+    card_id int generated by default as identity,
+    name varchar(63) not null,
+    department varchar(63) not null,
+    type char(1) not null,
+    open_loans int not null default 0,
+    primary key (card_id),
+    unique (department, type, name),
+    check ( type in ('T', 'S') )
+);
+
+create table borrow (
+    card_id int not null,
+    book_id int not null,
+    borrow_time bigint not null,
+    return_time bigint not null default 0,
+    primary key (card_id, book_id, borrow_time),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+) partition by range (borrow_time);
+
+create index borrow_book_idx on borrow (book_id);
+
+create table borrow_default partition of borrow default;
+
+create table borrow_archive (
+    card_id int not null,
+    book_id int not null,
+    borrow_time bigint not null,
+    return_time bigint not null,
+    primary key (card_id, book_id, borrow_time),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create index borrow_archive_book_idx on borrow_archive (book_id);
+
+create table open_loan (
+    card_id int not null,
+    book_id int not null,
+    borrow_time bigint not null,
+    primary key (card_id, book_id),
+    foreign key (card_id) references card(card_id) on delete cascade on update cascade,
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create index open_loan_book_idx on open_loan (book_id);
+
+create table book_stock_stripe (
+    book_id int not null,
+    stripe int not null,
+    stock int not null default 0,
+    open_loans int not null default 0,
+    primary key (book_id, stripe),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create table id_block (
+    name varchar(63) not null,
+    next_id int not null,
+    primary key (name)
+);
+
+create table book_daily_borrows (
+    book_id int not null,
+    borrow_day int not null,
+    borrows int not null default 0,
+    primary key (book_id, borrow_day),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create index book_daily_borrows_day_idx on book_daily_borrows (borrow_day, book_id);
+
+create table department_loans (
+    department varchar(63) not null,
+    stripe int not null,
+    loans int not null default 0,
+    primary key (department, stripe)
+);
+
+create table removed_card (
+    card_id int not null,
+    primary key (card_id)
+);
@@ -1,6 +1,13 @@
 IF OBJECT_ID('dbo.borrow', 'U') IS NOT NULL DROP TABLE dbo.borrow;
+IF OBJECT_ID('dbo.borrow_archive', 'U') IS NOT NULL DROP TABLE dbo.borrow_archive;
+IF OBJECT_ID('dbo.open_loan', 'U') IS NOT NULL DROP TABLE dbo.open_loan;
+IF OBJECT_ID('dbo.book_stock_stripe', 'U') IS NOT NULL DROP TABLE dbo.book_stock_stripe;
+IF OBJECT_ID('dbo.book_daily_borrows', 'U') IS NOT NULL DROP TABLE dbo.book_daily_borrows;
+IF OBJECT_ID('dbo.department_loans', 'U') IS NOT NULL DROP TABLE dbo.department_loans;
+IF OBJECT_ID('dbo.removed_card', 'U') IS NOT NULL DROP TABLE dbo.removed_card;
 IF OBJECT_ID('dbo.book', 'U') IS NOT NULL DROP TABLE dbo.book;
 IF OBJECT_ID('dbo.card', 'U') IS NOT NULL DROP TABLE dbo.card;
+IF OBJECT_ID('dbo.id_block', 'U') IS NOT NULL DROP TABLE dbo.id_block;
 
 create table book (
     book_id int not null identity,
@@ -11,6 +18,9 @@ create table book (
     author varchar(63) not null,
     price decimal(7, 2) not null default 0.00,
     stock int not null default 0,
+    version int not null default 0,
+    stripes int not null default 0,
+    open_loans int not null default 0,
     primary key (book_id),
     unique (category, press, author, title, publish_year)
 );
@@ -20,6 +30,7 @@ create table card (
     name varchar(63) not null,
     department varchar(63) not null,
     type char(1) not null,
+    open_loans int not null default 0,
     primary key (card_id),
     unique (department, type, name),
     check ( type in ('T', 'S') )
@@ -31,6 +42,66 @@ create table borrow (
     borrow_time bigint not null,
     return_time bigint not null default 0,
     primary key (card_id, book_id, borrow_time),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create index borrow_book_idx on borrow (book_id);
+
+create table borrow_archive (
+    card_id int not null,
+    book_id int not null,
+    borrow_time bigint not null,
+    return_time bigint not null,
+    primary key (card_id, book_id, borrow_time),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+) with (data_compression = page);
+
+create index borrow_archive_book_idx on borrow_archive (book_id);
+
+create table open_loan (
+    card_id int not null,
+    book_id int not null,
+    borrow_time bigint not null,
+    primary key (card_id, book_id),
     foreign key (card_id) references card(card_id) on delete cascade on update cascade,
     foreign key (book_id) references book(book_id) on delete cascade on update cascade
-);
\ No newline at end of file
+);
+
+create index open_loan_book_idx on open_loan (book_id);
+
+create table book_stock_stripe (
+    book_id int not null,
+    stripe int not null,
+    stock int not null default 0,
+    open_loans int not null default 0,
+    primary key (book_id, stripe),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create table id_block (
+    name varchar(63) not null,
+    next_id int not null,
+    primary key (name)
+);
+
+create table book_daily_borrows (
+    book_id int not null,
+    borrow_day int not null,
+    borrows int not null default 0,
+    primary key (book_id, borrow_day),
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create index book_daily_borrows_day_idx on book_daily_borrows (borrow_day, book_id);
+
+create table department_loans (
+    department varchar(63) not null,
+    stripe int not null,
+    loans int not null default 0,
+    primary key (department, stripe)
+);
+
+create table removed_card (
+    card_id int not null,
+    primary key (card_id)
+);
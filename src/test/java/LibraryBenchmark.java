@@ -0,0 +1,710 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import utils.BorrowArchiver;
+import utils.CatalogImporter;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
+import utils.IdAllocator;
+import utils.LatencyStats;
+import utils.RandomData;
+import utils.ResetMode;
+import utils.StripedLockManager;
+import utils.SyntheticDataGenerator;
+import utils.UniqueClock;
+import utils.VirtualThreads;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/*
+    Throughput benchmarks. The class name does not match surefire's *Test pattern,
+    so these only run on demand, e.g.
+        mvn -Ph2 test -Dtest=LibraryBenchmark#optimisticVsPessimistic
+ */
+public class LibraryBenchmark {
+    private static ConnectConfig connectConfig = null;
+
+    static {
+        try {
+            connectConfig = new ConnectConfig();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private DatabaseConnector connector;
+    private LibraryManagementSystemImpl library;
+
+    @Before
+    public void prepare() {
+        connector = new DatabaseConnector(connectConfig);
+        Assert.assertTrue(connector.connect());
+        library = new LibraryManagementSystemImpl(connector);
+        Assert.assertTrue(library.resetDatabase().ok);
+    }
+
+    @After
+    public void release() {
+        connector.release();
+    }
+
+    /* stores n books with a large stock and returns their ids */
+    private List<Integer> seedBooks(int n) {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            books.add(new Book("Bench", "Book-" + i, "Press", 2000, "Author", 10.0, 1000000));
+        }
+        Assert.assertTrue(library.storeBook(books).ok);
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        return ids;
+    }
+
+    /*
+        runs nThreads workers for the given time, each with its own connection, issuing a mix of
+        queryBook (readPercent) and incBookStock/modifyBookInfo on a random book; returns ops/s
+     */
+    private double mixedLoad(LibraryManagementSystemImpl.ConcurrencyMode mode, List<Integer> ids,
+                             int nThreads, int readPercent, long millis, AtomicLong failures) throws Exception {
+        AtomicLong ops = new AtomicLong();
+        List<DatabaseConnector> connectors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + millis;
+        for (int i = 0; i < nThreads; ++i) {
+            DatabaseConnector c = new DatabaseConnector(connectConfig);
+            Assert.assertTrue(c.connect());
+            connectors.add(c);
+            LibraryManagementSystemImpl lib = new LibraryManagementSystemImpl(c);
+            lib.setConcurrencyMode(mode);
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                BookQueryConditions conditions = new BookQueryConditions();
+                conditions.setCategory("Bench");
+                while (System.currentTimeMillis() < deadline) {
+                    int bookId = ids.get(random.nextInt(ids.size()));
+                    int dice = random.nextInt(100);
+                    ApiResult result;
+                    if (dice < readPercent) {
+                        conditions.setTitle("Book-" + random.nextInt(ids.size()));
+                        result = lib.queryBook(conditions);
+                    } else if (dice % 4 == 0) {
+                        Book book = new Book("Bench", "Book-" + (bookId - ids.get(0)), "Press",
+                                2000, "Author", random.nextInt(100), 0);
+                        book.setBookId(bookId);
+                        result = lib.modifyBookInfo(book);
+                    } else {
+                        result = lib.incBookStock(bookId, random.nextBoolean() ? 1 : -1);
+                    }
+                    if (!result.ok) {
+                        failures.incrementAndGet();
+                    }
+                    ops.incrementAndGet();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (DatabaseConnector c : connectors) c.release();
+        return ops.get() / seconds;
+    }
+
+    @Test
+    public void optimisticVsPessimistic() throws Exception {
+        int nThreads = Integer.getInteger("bench.threads", 8);
+        long millis = Long.getLong("bench.millis", 3000L);
+        int[] hotSets = {4, 1000};
+        for (int hot : hotSets) {
+            List<Integer> ids = seedBooks(hot);
+            for (int readPercent : new int[]{90, 50}) {
+                for (LibraryManagementSystemImpl.ConcurrencyMode mode : LibraryManagementSystemImpl.ConcurrencyMode.values()) {
+                    AtomicLong failures = new AtomicLong();
+                    double tput = mixedLoad(mode, ids, nThreads, readPercent, millis, failures);
+                    System.out.printf("books=%d reads=%d%% mode=%s threads=%d: %.0f ops/s, %d failed%n",
+                            hot, readPercent, mode, nThreads, tput, failures.get());
+                }
+            }
+            Assert.assertTrue(library.resetDatabase().ok);
+        }
+    }
+
+    /*
+        nThreads patrons borrow & return the same book in a loop for the given time, returns ops/s.
+        locks is shared by all patrons, null to go to the database directly
+     */
+    private double hotBorrowLoad(int bookId, int nThreads, long millis, StripedLockManager locks,
+                                 AtomicLong failures) throws Exception {
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < nThreads; ++i) {
+            cards.add(new Card(0, "Patron-" + nThreads + "-" + i, "Bench", Card.CardType.Student));
+        }
+        Assert.assertTrue(library.registerCards(cards).ok);
+        AtomicLong ops = new AtomicLong();
+        List<DatabaseConnector> connectors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + millis;
+        for (int i = 0; i < nThreads; ++i) {
+            DatabaseConnector c = new DatabaseConnector(connectConfig);
+            Assert.assertTrue(c.connect());
+            connectors.add(c);
+            LibraryManagementSystemImpl lib = new LibraryManagementSystemImpl(c);
+            lib.getTransactionExecutor().setMaxAttempts(1000);
+            lib.getTransactionExecutor().setBudgetMillis(millis * 4);
+            lib.setLockManager(locks);
+            int cardId = cards.get(i).getCardId();
+            threads.add(new Thread(() -> {
+                long time = 0;
+                while (System.currentTimeMillis() < deadline) {
+                    Borrow borrow = new Borrow(bookId, cardId);
+                    borrow.setBorrowTime(++time);
+                    borrow.setReturnTime(++time);
+                    if (!lib.borrowBook(borrow).ok || !lib.returnBook(borrow).ok) {
+                        failures.incrementAndGet();
+                    }
+                    ops.addAndGet(2);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (DatabaseConnector c : connectors) c.release();
+        return ops.get() / seconds;
+    }
+
+    @Test
+    public void hotBookStriping() throws Exception {
+        long millis = Long.getLong("bench.millis", 2000L);
+        int stripes = Integer.getInteger("bench.stripes", 16);
+        for (int nThreads : new int[]{16, 32, 64, 128, 256}) {
+            for (int s : new int[]{0, stripes}) {
+                Assert.assertTrue(library.resetDatabase().ok);
+                int bookId = seedBooks(1).get(0);
+                Assert.assertTrue(library.stripeBookStock(bookId, s).ok);
+                AtomicLong failures = new AtomicLong();
+                double tput = hotBorrowLoad(bookId, nThreads, millis, null, failures);
+                System.out.printf("threads=%d stripes=%d: %.0f ops/s, %d failed%n", nThreads, s, tput, failures.get());
+            }
+        }
+    }
+
+    @Test
+    public void inProcessLocks() throws Exception {
+        long millis = Long.getLong("bench.millis", 2000L);
+        for (int nThreads : new int[]{16, 64, 256}) {
+            for (String mode : new String[]{"none", "unfair", "fair"}) {
+                Assert.assertTrue(library.resetDatabase().ok);
+                int bookId = seedBooks(1).get(0);
+                StripedLockManager locks = mode.equals("none") ? null : new StripedLockManager(1024, mode.equals("fair"));
+                AtomicLong failures = new AtomicLong();
+                double tput = hotBorrowLoad(bookId, nThreads, millis, locks, failures);
+                System.out.printf("threads=%d locks=%s: %.0f ops/s, %d failed, %s%n",
+                        nThreads, mode, tput, failures.get(), locks == null ? "" : locks.toString());
+            }
+        }
+    }
+
+    /*
+        every patron borrows a random book, thinks for thinkMillis and returns it, rounds times,
+        with patrons run by the given executor against the async library; returns borrow+return ops/s
+     */
+    private double patronLoad(AsyncLibraryManagementSystemImpl async, ExecutorService patrons, List<Integer> cardIds,
+                              List<Integer> bookIds, int rounds, long thinkMillis, AtomicLong failures) throws Exception {
+        StripedLockManager locks = new StripedLockManager();
+        async.forEachLibrary(lib -> {
+            lib.setLockManager(locks);
+            lib.getTransactionExecutor().setMaxAttempts(1000);
+        });
+        async.setSubmitTimeoutMillis(TimeUnit.MINUTES.toMillis(5));
+        AtomicLong clock = new AtomicLong();
+        AtomicLong ops = new AtomicLong();
+        long start = System.nanoTime();
+        for (int cardId : cardIds) {
+            patrons.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int r = 0; r < rounds; ++r) {
+                    Borrow borrow = new Borrow(bookIds.get(random.nextInt(bookIds.size())), cardId);
+                    borrow.setBorrowTime(clock.incrementAndGet());
+                    if (!async.borrowBook(borrow).join().ok) {
+                        failures.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        Thread.sleep(thinkMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    borrow.setReturnTime(clock.incrementAndGet());
+                    if (!async.returnBook(borrow).join().ok) {
+                        failures.incrementAndGet();
+                    }
+                    ops.addAndGet(2);
+                }
+            });
+        }
+        patrons.shutdown();
+        Assert.assertTrue(patrons.awaitTermination(10, TimeUnit.MINUTES));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        async.close();
+        return ops.get() / seconds;
+    }
+
+    @Test
+    public void virtualThreadPatrons() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            System.out.println("virtual threads need JDK 21+, skipped");
+            return;
+        }
+        int nPatrons = Integer.getInteger("bench.patrons", 10000);
+        int poolThreads = Integer.getInteger("bench.threads", 200);
+        int connections = Integer.getInteger("bench.connections", 16);
+        int rounds = Integer.getInteger("bench.rounds", 2);
+        long thinkMillis = Long.getLong("bench.think", 20L);
+        for (String mode : new String[]{"platform", "virtual"}) {
+            Assert.assertTrue(library.resetDatabase().ok);
+            List<Integer> bookIds = seedBooks(100);
+            List<Card> cards = new ArrayList<>();
+            for (int i = 0; i < nPatrons; ++i) {
+                cards.add(new Card(0, "Patron-" + i, "Bench", Card.CardType.Student));
+            }
+            Assert.assertTrue(library.registerCards(cards).ok);
+            List<Integer> cardIds = new ArrayList<>();
+            for (Card card : cards) {
+                cardIds.add(card.getCardId());
+            }
+            AsyncLibraryManagementSystemImpl async;
+            ExecutorService patrons;
+            if (mode.equals("virtual")) {
+                /* one virtual thread per patron and per call */
+                async = AsyncLibraryManagementSystemImpl.withVirtualThreads(connectConfig, connections, nPatrons);
+                patrons = VirtualThreads.newPerTaskExecutor();
+            } else {
+                async = new AsyncLibraryManagementSystemImpl(connectConfig, connections, poolThreads);
+                patrons = Executors.newFixedThreadPool(poolThreads);
+            }
+            AtomicLong failures = new AtomicLong();
+            double tput = patronLoad(async, patrons, cardIds, bookIds, rounds, thinkMillis, failures);
+            System.out.printf("patrons=%d threads=%s connections=%d think=%dms: %.0f ops/s, %d failed%n", nPatrons,
+                    mode.equals("virtual") ? "virtual" : String.valueOf(poolThreads), connections, thinkMillis,
+                    tput, failures.get());
+        }
+    }
+
+    /*
+        nThreads patrons, each with its own card, borrow & return random books through lib for
+        the given time, recording the latency of every call; returns ops/s
+     */
+    private double borrowReturnLoad(String tag, IntFunction<LibraryManagementSystem> libFor, List<Integer> bookIds,
+                                    int nThreads, long millis, LatencyStats latency, AtomicLong failures) throws Exception {
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < nThreads; ++i) {
+            cards.add(new Card(0, "Patron-" + tag + "-" + i, "Bench", Card.CardType.Student));
+        }
+        Assert.assertTrue(library.registerCards(cards).ok);
+        AtomicLong ops = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + millis;
+        for (int i = 0; i < nThreads; ++i) {
+            LibraryManagementSystem lib = libFor.apply(i);
+            int cardId = cards.get(i).getCardId();
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long time = 0;
+                while (System.currentTimeMillis() < deadline) {
+                    Borrow borrow = new Borrow(bookIds.get(random.nextInt(bookIds.size())), cardId);
+                    borrow.setBorrowTime(++time);
+                    borrow.setReturnTime(++time);
+                    long start = System.nanoTime();
+                    boolean ok = lib.borrowBook(borrow).ok;
+                    long mid = System.nanoTime();
+                    ok &= lib.returnBook(borrow).ok;
+                    latency.record(mid - start);
+                    latency.record(System.nanoTime() - mid);
+                    if (!ok) {
+                        failures.incrementAndGet();
+                    }
+                    ops.addAndGet(2);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        return ops.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        long millis = Long.getLong("bench.millis", 3000L);
+        int nThreads = Integer.getInteger("bench.threads", 64);
+        int workers = Integer.getInteger("bench.workers", 4);
+        /* {maxGroupSize, maxDelayMicros}, {1, 0} commits every call on its own */
+        int[][] windows = {{1, 0}, {16, 0}, {64, 0}, {64, 200}, {64, 1000}, {256, 5000}};
+        Assert.assertTrue(library.resetDatabase().ok);
+        List<Integer> bookIds = seedBooks(1000);
+        {
+            List<DatabaseConnector> connectors = new ArrayList<>();
+            List<LibraryManagementSystem> libs = new ArrayList<>();
+            for (int i = 0; i < nThreads; ++i) {
+                DatabaseConnector c = new DatabaseConnector(connectConfig);
+                Assert.assertTrue(c.connect());
+                connectors.add(c);
+                libs.add(new LibraryManagementSystemImpl(c));
+            }
+            LatencyStats latency = new LatencyStats();
+            AtomicLong failures = new AtomicLong();
+            double tput = borrowReturnLoad("direct", libs::get, bookIds, nThreads, millis, latency, failures);
+            System.out.printf("direct, %d connections: %.0f ops/s, %d failed, %s%n",
+                    nThreads, tput, failures.get(), latency);
+            for (DatabaseConnector c : connectors) c.release();
+        }
+        for (int[] window : windows) {
+            try (GroupCommitLibrary group = new GroupCommitLibrary(library, connectConfig, workers, window[0], window[1])) {
+                LatencyStats latency = new LatencyStats();
+                AtomicLong failures = new AtomicLong();
+                double tput = borrowReturnLoad(window[0] + "-" + window[1], i -> group, bookIds, nThreads, millis, latency, failures);
+                System.out.printf("group %d workers, size<=%d, delay=%dus: %.0f ops/s, avg group %.1f, %d failed, %s%n",
+                        workers, window[0], window[1], tput, group.getAverageGroupSize(), failures.get(), latency);
+            }
+        }
+    }
+
+    @Test
+    public void idBlocks() throws Exception {
+        int n = Integer.getInteger("bench.rows", 10000);
+        int batch = Integer.getInteger("bench.batch", 1000);
+        for (String mode : new String[]{"identity", "allocator"}) {
+            Assert.assertTrue(library.resetDatabase().ok);
+            IdAllocator ids = mode.equals("allocator") ? new IdAllocator(connectConfig, 1000) : null;
+            library.setIdAllocator(ids);
+            long start = System.nanoTime();
+            for (int from = 0; from < n; from += batch) {
+                List<Book> books = new ArrayList<>();
+                List<Card> cards = new ArrayList<>();
+                for (int i = from; i < Math.min(n, from + batch); ++i) {
+                    books.add(new Book("Bench", "Book-" + i, "Press", 2000, "Author", 10.0, 1));
+                    cards.add(new Card(0, "Patron-" + i, "Bench", Card.CardType.Student));
+                }
+                Assert.assertTrue(library.storeBook(books).ok);
+                Assert.assertTrue(library.registerCards(cards).ok);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("ids=%s: %d books + %d cards in batches of %d, %.0f rows/s%n",
+                    mode, n, n, batch, 2 * n / seconds);
+            library.setIdAllocator(null);
+            if (ids != null) {
+                ids.close();
+            }
+        }
+    }
+
+    /* inserts n returned loans of cardId & bookId straight into borrow */
+    private void seedHistory(int cardId, int bookId, int n) throws Exception {
+        Connection conn = connector.getConn();
+        conn.setAutoCommit(false);
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES(?, ?, ?, ?)")) {
+            for (int i = 1; i <= n; ++i) {
+                stmt.setInt(1, cardId);
+                stmt.setInt(2, bookId);
+                stmt.setLong(3, 2L * i);
+                stmt.setLong(4, 2L * i + 1);
+                stmt.addBatch();
+                if (i % 1000 == 0 || i == n) {
+                    stmt.executeBatch();
+                }
+            }
+        }
+        conn.commit();
+    }
+
+    /* mean latency of op over n runs in microseconds */
+    private static double micros(int n, Runnable op) {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / 1e3 / n;
+    }
+
+    @Test
+    public void openLoanChecks() throws Exception {
+        int runs = Integer.getInteger("bench.runs", 200);
+        for (int history : new int[]{1000, 10000, 100000, 1000000}) {
+            Assert.assertTrue(library.resetDatabase().ok);
+            int bookId = seedBooks(1).get(0);
+            Card card = new Card(0, "Patron", "Bench", Card.CardType.Student);
+            Card other = new Card(0, "Other", "Bench", Card.CardType.Student);
+            Assert.assertTrue(library.registerCard(card).ok);
+            Assert.assertTrue(library.registerCard(other).ok);
+            seedHistory(card.getCardId(), bookId, history);
+            double cycle = micros(runs, () -> {
+                Borrow borrow = new Borrow(bookId, card.getCardId());
+                Assert.assertTrue(library.borrowBook(borrow).ok);
+                Assert.assertTrue(library.returnBook(borrow).ok);
+            });
+            Assert.assertTrue(library.borrowBook(new Borrow(bookId, other.getCardId())).ok);
+            double remove = micros(runs, () -> Assert.assertFalse(library.removeBook(bookId).ok));
+            /* the check removeBook did before open_loan existed */
+            double scan = micros(runs, () -> {
+                try (PreparedStatement stmt = connector.getConn().prepareStatement(
+                        "SELECT * FROM borrow WHERE book_id = ? AND return_time = 0")) {
+                    stmt.setInt(1, bookId);
+                    try (ResultSet ret = stmt.executeQuery()) {
+                        Assert.assertTrue(ret.next());
+                    }
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            System.out.printf("history=%d: borrow+return %.0fus, removeBook check %.0fus, old borrow scan %.0fus%n",
+                    history, cycle, remove, scan);
+        }
+    }
+
+    @Test
+    public void removeCardHistory() throws Exception {
+        int cardsPerSize = Integer.getInteger("bench.cards", 5);
+        for (int history : new int[]{1000, 10000, 100000}) {
+            Assert.assertTrue(library.resetDatabase().ok);
+            int bookId = seedBooks(1).get(0);
+            List<Card> cards = new ArrayList<>();
+            for (int i = 0; i < cardsPerSize; ++i) {
+                cards.add(new Card(0, "Patron-" + i, "Bench", Card.CardType.Student));
+            }
+            Assert.assertTrue(library.registerCards(cards).ok);
+            for (Card card : cards) {
+                seedHistory(card.getCardId(), bookId, history);
+            }
+            /* the history load removeCard used to run first and throw away */
+            double load = micros(cardsPerSize, () -> Assert.assertTrue(library.showBorrowHistory(cards.get(0).getCardId()).ok));
+            /* refused removal: only the precondition checks run */
+            Card busy = cards.get(cardsPerSize - 1);
+            Assert.assertTrue(library.borrowBook(new Borrow(bookId, busy.getCardId())).ok);
+            double refuse = micros(100, () -> Assert.assertFalse(library.removeCard(busy.getCardId()).ok));
+            int[] next = {0};
+            double remove = micros(cardsPerSize - 1, () -> Assert.assertTrue(library.removeCard(cards.get(next[0]++).getCardId()).ok));
+            /* the history goes later, in chunked transactions of the archiver */
+            long start = System.nanoTime();
+            long purged;
+            try (BorrowArchiver archiver = new BorrowArchiver(connectConfig, 1000)) {
+                purged = archiver.purge();
+            }
+            double purge = (System.nanoTime() - start) / 1e3;
+            Assert.assertEquals((long) history * (cardsPerSize - 1), purged);
+            System.out.printf("history=%d: refused removeCard %.0fus, removeCard %.0fus, " +
+                    "purge of %d borrow rows %.0fus, dropped history load %.0fus%n",
+                    history, refuse, remove, purged, purge, load);
+        }
+    }
+
+    @Test
+    public void borrowArchive() throws Exception {
+        int runs = Integer.getInteger("bench.runs", 100);
+        for (int history : new int[]{10000, 100000}) {
+            Assert.assertTrue(library.resetDatabase().ok);
+            int bookId = seedBooks(1).get(0);
+            Card card = new Card(0, "Patron", "Bench", Card.CardType.Student);
+            Assert.assertTrue(library.registerCard(card).ok);
+            seedHistory(card.getCardId(), bookId, history);
+            Assert.assertTrue(library.borrowBook(new Borrow(bookId, card.getCardId())).ok);
+            /* every scan of borrow that is not keyed by card pays for the whole history */
+            Runnable scan = () -> {
+                try (PreparedStatement stmt = connector.getConn().prepareStatement(
+                        "SELECT COUNT(*) FROM borrow WHERE return_time = 0")) {
+                    try (ResultSet ret = stmt.executeQuery()) {
+                        Assert.assertTrue(ret.next());
+                    }
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            double scanHot = micros(runs, scan);
+            double showHot = micros(10, () -> Assert.assertTrue(library.showBorrowHistory(card.getCardId()).ok));
+            long start = System.nanoTime();
+            long moved;
+            try (BorrowArchiver archiver = new BorrowArchiver(connectConfig, 1000)) {
+                moved = archiver.archive(UniqueClock.get().next() - 86400000L);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Assert.assertEquals(history, moved);
+            double scanArchived = micros(runs, scan);
+            double showArchived = micros(10, () -> Assert.assertTrue(library.showBorrowHistory(card.getCardId()).ok));
+            System.out.printf("history=%d: archived %.0f rows/s, borrow scan %.0fus -> %.0fus, " +
+                            "showBorrowHistory %.0fus -> %.0fus%n",
+                    history, moved / seconds, scanHot, scanArchived, showHot, showArchived);
+        }
+    }
+
+    @Test
+    public void resetModes() {
+        int runs = Integer.getInteger("bench.runs", 50);
+        LibraryManagementSystemImpl impl = (LibraryManagementSystemImpl) library;
+        for (ResetMode mode : ResetMode.values()) {
+            impl.setResetMode(mode);
+            Assert.assertTrue(library.resetDatabase().ok);
+            double empty = micros(runs, () -> Assert.assertTrue(library.resetDatabase().ok));
+            /* roughly what a @Before finds left behind by a test */
+            long used = 0;
+            for (int i = 0; i < runs; ++i) {
+                seedBooks(50);
+                long start = System.nanoTime();
+                Assert.assertTrue(library.resetDatabase().ok);
+                used += System.nanoTime() - start;
+            }
+            System.out.printf("%s: reset of empty tables %.0fus, after a test %.0fus%n",
+                    mode.getModeName(), empty, used / 1e3 / runs);
+        }
+    }
+
+    @Test
+    public void syntheticData() throws Exception {
+        int nBooks = Integer.getInteger("bench.books", 1000000);
+        for (int threads : new int[]{1, Runtime.getRuntime().availableProcessors()}) {
+            try (SyntheticDataGenerator gen = new SyntheticDataGenerator(1, threads)) {
+                long start = System.nanoTime();
+                long n = gen.books(nBooks, chunk -> new ApiResult(true, null));
+                System.out.printf("generate books, %d threads: %.0f rows/s%n",
+                        threads, n / ((System.nanoTime() - start) / 1e9));
+            }
+        }
+        /* the old generator, one per call to RandomData */
+        long start = System.nanoTime();
+        for (int i = 0; i < nBooks / 10; ++i) {
+            RandomData.randomBook();
+        }
+        System.out.printf("RandomData.randomBook: %.0f rows/s%n", nBooks / 10 / ((System.nanoTime() - start) / 1e9));
+
+        int loadBooks = Integer.getInteger("bench.loadBooks", 20000);
+        int loadCards = loadBooks / 10;
+        long loadLoans = loadBooks * 2L;
+        Assert.assertTrue(library.resetDatabase().ok);
+        try (SyntheticDataGenerator gen = new SyntheticDataGenerator(1, Runtime.getRuntime().availableProcessors())) {
+            List<Integer> bookIds = new ArrayList<>();
+            List<Integer> cardIds = new ArrayList<>();
+            start = System.nanoTime();
+            gen.books(loadBooks, chunk -> {
+                ApiResult result = library.storeBook(chunk);
+                chunk.forEach(b -> bookIds.add(b.getBookId()));
+                return result;
+            });
+            gen.cards(loadCards, chunk -> {
+                ApiResult result = library.registerCards(chunk);
+                chunk.forEach(c -> cardIds.add(c.getCardId()));
+                return result;
+            });
+            double catalog = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            gen.loans(loadLoans, bookIds.stream().mapToInt(Integer::intValue).toArray(),
+                    cardIds.stream().mapToInt(Integer::intValue).toArray(),
+                    1500000000000L, 1700000000000L, SyntheticDataGenerator.historySink(connector));
+            double history = (System.nanoTime() - start) / 1e9;
+            System.out.printf("load %d books + %d cards: %.0f rows/s, %d loans: %.0f rows/s%n",
+                    loadBooks, loadCards, (loadBooks + loadCards) / catalog, loadLoans, loadLoans / history);
+
+            Path csv = Files.createTempFile("synthetic-books", ".csv");
+            try {
+                start = System.nanoTime();
+                gen.writeBooks(csv, loadBooks);
+                double write = (System.nanoTime() - start) / 1e9;
+                /* the file round-trips through the importer, every book is already stored */
+                Assert.assertTrue(library.resetDatabase().ok);
+                CatalogImporter.Report report = new CatalogImporter().importFile(csv, library::storeBook);
+                Assert.assertEquals(loadBooks, report.getImported());
+                System.out.printf("write %d books to csv: %.0f rows/s, import: %s%n", loadBooks, loadBooks / write, report);
+            } finally {
+                Files.deleteIfExists(csv);
+            }
+        }
+    }
+
+    @Test
+    public void workloadReplay() throws Exception {
+        int calls = Integer.getInteger("bench.calls", 5000);
+        Path log = Files.createTempFile("workload", ".tsv");
+        try {
+            /* a mix of borrow, return, query and register; twice unrecorded, the first one warms up */
+            double plain = 0, recorded = 0;
+            for (boolean record : new boolean[]{false, false, true}) {
+                Assert.assertTrue(library.resetDatabase().ok);
+                SplittableRandom random = new SplittableRandom(7);
+                try (RecordingLibrary recorder = new RecordingLibrary(library, log)) {
+                    LibraryManagementSystem lib = record ? recorder : library;
+                    List<Integer> bookIds = new ArrayList<>();
+                    List<Book> books = new ArrayList<>();
+                    for (int i = 0; i < 100; ++i) {
+                        books.add(new Book("Bench", "Book-" + i, "Press", 2000, "Author", 10.0 + i, 1000000));
+                    }
+                    Assert.assertTrue(lib.storeBook(books).ok);
+                    books.forEach(b -> bookIds.add(b.getBookId()));
+                    List<Integer> cardIds = new ArrayList<>();
+                    List<Borrow> open = new ArrayList<>();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < calls; ++i) {
+                        int op = random.nextInt(100);
+                        if (op < 5 || cardIds.isEmpty()) {
+                            Card card = new Card(0, "Patron-" + i, "Bench", Card.CardType.Student);
+                            Assert.assertTrue(lib.registerCard(card).ok);
+                            cardIds.add(card.getCardId());
+                        } else if (op < 45) {
+                            Borrow borrow = new Borrow(bookIds.get(random.nextInt(bookIds.size())),
+                                    cardIds.get(random.nextInt(cardIds.size())));
+                            if (lib.borrowBook(borrow).ok) {
+                                open.add(borrow);
+                            }
+                        } else if (op < 80 && !open.isEmpty()) {
+                            Assert.assertTrue(lib.returnBook(open.remove(random.nextInt(open.size()))).ok);
+                        } else {
+                            BookQueryConditions conditions = new BookQueryConditions();
+                            conditions.setMinPrice(10.0 + random.nextInt(100));
+                            Assert.assertTrue(lib.queryBook(conditions).ok);
+                        }
+                    }
+                    double elapsed = (System.nanoTime() - start) / 1e9;
+                    if (record) {
+                        recorded = elapsed;
+                    } else {
+                        plain = elapsed;
+                    }
+                }
+            }
+            System.out.printf("%d calls: %.0f calls/s, recorded %.0f calls/s, log %d bytes%n",
+                    calls, calls / plain, calls / recorded, Files.size(log));
+            for (double speed : new double[]{1, 4, 0}) {
+                Assert.assertTrue(library.resetDatabase().ok);
+                WorkloadReplayer.Report report = new WorkloadReplayer(Collections.singletonList(library)).replay(log, speed);
+                Assert.assertEquals(0, report.getDivergences());
+                System.out.printf("replay at speed %s: %s", speed == 0 ? "max" : String.valueOf(speed), report);
+            }
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+}
@@ -5,8 +5,10 @@ import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import queries.*;
 import utils.ConnectConfig;
@@ -27,13 +29,24 @@ public class LibraryTest {
     static {
         try {
             // parse connection config from "resources/application.yaml"
-            connectConfig = new ConnectConfig();
+            // and, with -Dtest.isolate=true, give this class a database of its own, see TestDatabases
+            connectConfig = TestDatabases.isolated(new ConnectConfig(), LibraryTest.class);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    @BeforeClass
+    public static void enterDatabase() throws InterruptedException {
+        TestDatabases.enter(connectConfig);
+    }
+
+    @AfterClass
+    public static void leaveDatabase() {
+        TestDatabases.leave(connectConfig);
+    }
+
     public LibraryTest() {
         try {
             // connect to database
@@ -4,17 +4,52 @@ import entities.Card;
 import org.junit.Test;
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import queries.*;
+import utils.BorrowArchiver;
+import utils.CatalogImporter;
 import utils.ConnectConfig;
+import utils.ConnectionProfile;
 import utils.DatabaseConnector;
+import utils.DatabaseType;
+import utils.IdAllocator;
 import utils.RandomData;
+import utils.ResetMode;
+import utils.StripedLockManager;
+import utils.SyntheticDataGenerator;
+import utils.TableExporter;
+import utils.TransactionExecutor;
+import utils.UniqueClock;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPInputStream;
 
 public class MyLibraryTest {
     private DatabaseConnector connector;
@@ -25,12 +60,21 @@ public class MyLibraryTest {
     static {
         try {
             // parse connection config from "resources/application.yaml"
-            connectConfig = new ConnectConfig();
+            // and, with -Dtest.isolate=true, give this class a database of its own, see TestDatabases
+            connectConfig = TestDatabases.isolated(new ConnectConfig(), MyLibraryTest.class);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
+    @BeforeClass
+    public static void enterDatabase() throws InterruptedException {
+        TestDatabases.enter(connectConfig);
+    }
+    @AfterClass
+    public static void leaveDatabase() {
+        TestDatabases.leave(connectConfig);
+    }
     public MyLibraryTest() {
         try {
             // connect to database
@@ -64,6 +108,72 @@ public class MyLibraryTest {
             System.out.println("Failed to release database connection.");
         }
     }
+
+    /* register one Computer Science student per worker thread */
+    private List<Card> registerPatrons(String prefix, int n) {
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            Card card = new Card(0, prefix + i, "Computer Science", Card.CardType.Student);
+            Assert.assertTrue(library.registerCard(card).ok);
+            cards.add(card);
+        }
+        return cards;
+    }
+
+    /* borrow & return the book nOps times with distinct timestamps, returns the number of failed calls */
+    private static int borrowAndReturn(LibraryManagementSystem lib, Book book, Card card, int nOps) {
+        int failures = 0;
+        for (int j = 0; j < nOps; ++j) {
+            Borrow borrow = new Borrow(book.getBookId(), card.getCardId());
+            borrow.setBorrowTime(j * 2L + 1);
+            borrow.setReturnTime(j * 2L + 2);
+            if (!lib.borrowBook(borrow).ok || !lib.returnBook(borrow).ok) {
+                ++failures;
+            }
+        }
+        return failures;
+    }
+
+    /* run body(0 .. nThreads - 1) on nThreads threads, a failure in any of them fails the test */
+    private static void runConcurrently(int nThreads, IntConsumer body) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < nThreads; ++i) {
+            final int id = i;
+            threads.add(new Thread(() -> {
+                try {
+                    body.accept(id);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) {
+            throw new AssertionError("worker thread failed", failure.get());
+        }
+    }
+
+    /* same as above, but every thread works on its own connector; the connectors are always released */
+    private static List<LibraryManagementSystemImpl> runConcurrently(
+            int nThreads, Function<DatabaseConnector, LibraryManagementSystemImpl> makeLib,
+            BiConsumer<Integer, LibraryManagementSystemImpl> body) throws InterruptedException {
+        List<DatabaseConnector> connectors = new ArrayList<>();
+        List<LibraryManagementSystemImpl> libs = new ArrayList<>();
+        try {
+            for (int i = 0; i < nThreads; ++i) {
+                DatabaseConnector c = new DatabaseConnector(connectConfig);
+                connectors.add(c);
+                Assert.assertTrue(c.connect());
+                libs.add(makeLib.apply(c));
+            }
+            runConcurrently(nThreads, id -> body.accept(id, libs.get(id)));
+        } finally {
+            for (DatabaseConnector c : connectors) c.release();
+        }
+        return libs;
+    }
     @Test
     public void myBookRegisterTest() {
         Book b0 = new Book("Computer Science", "Database System Concepts",
@@ -97,6 +207,769 @@ public class MyLibraryTest {
         b0.setStock(RandomData.randomStock());
         library.modifyBookInfo(b0);
     }
+    @Test
+    public void myOptimisticStockTest() throws Exception {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 100);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        int nThreads = 4, nOps = 50;
+        int[] failures = new int[nThreads];
+        runConcurrently(nThreads, c -> {
+            LibraryManagementSystemImpl lib = new LibraryManagementSystemImpl(c);
+            lib.setConcurrencyMode(LibraryManagementSystemImpl.ConcurrencyMode.OPTIMISTIC);
+            lib.setOptimisticAttempts(1000);
+            return lib;
+        }, (id, lib) -> {
+            for (int j = 0; j < nOps; ++j) {
+                if (!lib.incBookStock(b0.getBookId(), j % 2 == 0 ? 1 : -1).ok) {
+                    ++failures[id];
+                }
+                if (j % 10 == 0 && !lib.modifyBookInfo(b0.clone()).ok) {
+                    ++failures[id];
+                }
+            }
+        });
+        for (int f : failures) Assert.assertEquals(0, f);
+        /* nOps is even, so the +1/-1 pairs cancel; every write bumped the version once */
+        Book o1 = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults().get(0);
+        Assert.assertEquals(100, o1.getStock());
+        Assert.assertEquals(nThreads * (nOps + nOps / 10), o1.getVersion());
+    }
+    @Test
+    public void myTransactionRetryTest() throws Exception {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 1000);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        int nThreads = 8, nOps = 50;
+        List<Card> cards = registerPatrons("User", nThreads);
+        int[] failures = new int[nThreads];
+        List<LibraryManagementSystemImpl> libs = runConcurrently(nThreads, c -> {
+            LibraryManagementSystemImpl lib = new LibraryManagementSystemImpl(c);
+            /* embedded databases starve hot SERIALIZABLE rows, give them a generous budget */
+            lib.getTransactionExecutor().setMaxAttempts(100);
+            lib.getTransactionExecutor().setBudgetMillis(30000);
+            return lib;
+        }, (id, lib) -> {
+            /* every patron borrows & returns the same hot book, SERIALIZABLE conflicts must be retried */
+            failures[id] = borrowAndReturn(lib, b0, cards.get(id), nOps);
+        });
+        long retries = 0;
+        for (LibraryManagementSystemImpl lib : libs) {
+            retries += lib.getTransactionExecutor().getRetries();
+            Assert.assertEquals(0, lib.getTransactionExecutor().getExhausted());
+        }
+        System.out.printf("transaction retries: %d\n", retries);
+        for (int f : failures) Assert.assertEquals(0, f);
+        Book o1 = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults().get(0);
+        Assert.assertEquals(1000, o1.getStock());
+    }
+
+    @Test
+    public void myLockManagerTest() throws Exception {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 1000);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Assert.assertEquals(1, new StripedLockManager(1, false).getStripes());
+        Assert.assertEquals(64, new StripedLockManager(33, false).getStripes());
+        StripedLockManager locks = new StripedLockManager(64, false);
+        Assert.assertEquals(64, locks.getStripes());
+        int nThreads = 8, nOps = 50;
+        List<Card> cards = registerPatrons("User", nThreads);
+        int[] failures = new int[nThreads];
+        List<LibraryManagementSystemImpl> libs = runConcurrently(nThreads, c -> {
+            LibraryManagementSystemImpl lib = new LibraryManagementSystemImpl(c);
+            lib.setLockManager(locks);
+            return lib;
+        }, (id, lib) -> failures[id] = borrowAndReturn(lib, b0, cards.get(id), nOps));
+        for (int f : failures) Assert.assertEquals(0, f);
+        /* conflicting calls waited in memory instead of deadlocking in the database */
+        for (LibraryManagementSystemImpl lib : libs) {
+            Assert.assertEquals(0, lib.getTransactionExecutor().getRetries());
+        }
+        Assert.assertEquals(2L * 2 * nThreads * nOps, locks.getAcquisitions());
+        Assert.assertTrue(locks.getContended() > 0);
+        System.out.println(locks);
+    }
+
+    @Test
+    public void myAsyncLibraryTest() throws Exception {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        StripedLockManager locks = new StripedLockManager();
+        /* one connection and one pending slot */
+        try (AsyncLibraryManagementSystemImpl async = new AsyncLibraryManagementSystemImpl(connectConfig, 1, 1)) {
+            async.forEachLibrary(lib -> lib.setLockManager(locks));
+            Assert.assertTrue(async.storeBook(b0).get().ok);
+            CompletableFuture<ApiResult> running, pending, rejected;
+            /* hold the book's stripe so that the first call blocks on the only connection */
+            try (StripedLockManager.Guard ignored = locks.lock(StripedLockManager.NONE, b0.getBookId())) {
+                running = async.incBookStock(b0.getBookId(), 1);
+                pending = async.incBookStock(b0.getBookId(), 100);
+                rejected = async.incBookStock(b0.getBookId(), 1000);
+                Assert.assertTrue(rejected.isDone());
+                Assert.assertFalse(rejected.get().ok);
+                Assert.assertEquals(1, async.getRejected());
+                Assert.assertTrue(pending.cancel(true));
+            }
+            Assert.assertTrue(running.get().ok);
+            Assert.assertTrue(pending.isCancelled());
+            ApiResult queryResult = async.queryBook(new BookQueryConditions()).get();
+            Book o1 = ((BookQueryResults) queryResult.payload).getResults().get(0);
+            Assert.assertEquals(11, o1.getStock());
+        }
+    }
+
+    @Test
+    public void myAsyncCancelTest() throws Exception {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        try (AsyncLibraryManagementSystemImpl async = new AsyncLibraryManagementSystemImpl(connectConfig, 1, 0)) {
+            /* hold the book row in an open transaction, the call then blocks inside the database */
+            Connection conn = connector.getConn();
+            try (PreparedStatement stmt = conn.prepareStatement("UPDATE book SET price = price WHERE book_id = ?")) {
+                stmt.setInt(1, b0.getBookId());
+                Assert.assertEquals(1, stmt.executeUpdate());
+            }
+            CompletableFuture<ApiResult> blocked = async.incBookStock(b0.getBookId(), 5);
+            /* wait until the call owns the connection; it cannot commit while we hold the row */
+            while (async.getRunning() == 0) {
+                Thread.yield();
+            }
+            /* already running: nothing is promised until the transaction is rolled back */
+            Assert.assertFalse(blocked.cancel(true));
+            try {
+                blocked.get(30, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (CancellationException expected) {
+                Assert.assertTrue(blocked.isCancelled());
+            } finally {
+                conn.rollback();
+            }
+            /* the next call on the same connection is not affected */
+            Assert.assertTrue(async.incBookStock(b0.getBookId(), 1).get().ok);
+        }
+        Book o1 = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults().get(0);
+        Assert.assertEquals(11, o1.getStock());
+    }
+
+    @Test
+    public void myGroupCommitTest() throws Exception {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 1);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Card c1 = new Card(0, "User1", "Computer Science", Card.CardType.Student);
+        Card c2 = new Card(0, "User2", "Computer Science", Card.CardType.Student);
+        Assert.assertTrue(library.registerCard(c1).ok);
+        Assert.assertTrue(library.registerCard(c2).ok);
+        Borrow r1 = new Borrow(b0.getBookId(), c1.getCardId());
+        r1.setBorrowTime(1);
+        r1.setReturnTime(2);
+        Borrow r2 = new Borrow(b0.getBookId(), c2.getCardId());
+        r2.setBorrowTime(1);
+        Borrow r3 = new Borrow(b0.getBookId() + 1, c2.getCardId());
+        r3.setBorrowTime(3);
+        /* the failing calls in the middle of the group must not undo the others */
+        List<LibraryManagementSystemImpl.BorrowOp> ops = new ArrayList<>();
+        ops.add(LibraryManagementSystemImpl.BorrowOp.borrow(r1));
+        ops.add(LibraryManagementSystemImpl.BorrowOp.borrow(r2));
+        ops.add(LibraryManagementSystemImpl.BorrowOp.borrow(r3));
+        ops.add(LibraryManagementSystemImpl.BorrowOp.giveBack(r1));
+        List<ApiResult> results = ((LibraryManagementSystemImpl) library).borrowAndReturn(ops);
+        Assert.assertTrue(results.get(0).ok);
+        Assert.assertFalse(results.get(1).ok);
+        Assert.assertFalse(results.get(2).ok);
+        Assert.assertTrue(results.get(3).ok);
+        BorrowHistories histories = (BorrowHistories) library.showBorrowHistory(c1.getCardId()).payload;
+        Assert.assertEquals(1, histories.getItems().size());
+        Assert.assertEquals(2, histories.getItems().get(0).getReturnTime());
+        Assert.assertEquals(0, ((BorrowHistories) library.showBorrowHistory(c2.getCardId()).payload).getItems().size());
+
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), 999).ok);
+        int nThreads = 8, nOps = 20;
+        int[] failures = new int[nThreads];
+        List<Card> cards = registerPatrons("Patron", nThreads);
+        try (GroupCommitLibrary group = new GroupCommitLibrary(library, connectConfig, 2, 16, 500)) {
+            runConcurrently(nThreads, id -> failures[id] = borrowAndReturn(group, b0, cards.get(id), nOps));
+            Assert.assertEquals(2L * nThreads * nOps, group.getCalls());
+            System.out.printf("group commit: %d calls in %d groups%n", group.getCalls(), group.getGroups());
+        }
+        for (int f : failures) Assert.assertEquals(0, f);
+        Book o1 = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults().get(0);
+        Assert.assertEquals(1000, o1.getStock());
+    }
+
+    @Test
+    public void myUniqueClockTest() throws Exception {
+        UniqueClock clock = new UniqueClock(0, 0);
+        int nThreads = 8, n = 20000;
+        long[][] stamps = new long[nThreads][n];
+        runConcurrently(nThreads, id -> {
+            for (int j = 0; j < n; ++j) {
+                stamps[id][j] = clock.next();
+            }
+        });
+        Set<Long> seen = new HashSet<>();
+        for (long[] mine : stamps) {
+            for (int j = 0; j < n; ++j) {
+                Assert.assertTrue(seen.add(mine[j]));
+                if (j > 0) {
+                    Assert.assertTrue(mine[j] > mine[j - 1]);
+                }
+            }
+        }
+        Assert.assertTrue(clock.nextAfter(Long.MAX_VALUE / 2) > Long.MAX_VALUE / 2);
+        /* a far-future argument does not drag the clock along */
+        Assert.assertTrue(clock.next() < Long.MAX_VALUE / 4);
+        /* node 5 of 8 only issues values congruent to 5 */
+        UniqueClock node = new UniqueClock(3, 5);
+        long prev = 0;
+        for (int j = 0; j < 1000; ++j) {
+            long t = node.next();
+            Assert.assertEquals(5, t & 7);
+            Assert.assertTrue(t > prev);
+            prev = t;
+        }
+        Assert.assertTrue(Math.abs(System.currentTimeMillis() - new UniqueClock(3, 5).next()) < 1000);
+        /* the implementation stamps a borrow and its return when no time is given */
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 1);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Card c0 = new Card(0, "User1", "Computer Science", Card.CardType.Student);
+        Assert.assertTrue(library.registerCard(c0).ok);
+        Borrow borrow = new Borrow(b0, c0);
+        Assert.assertTrue(library.borrowBook(borrow).ok);
+        Assert.assertTrue(library.returnBook(borrow).ok);
+        Assert.assertTrue(borrow.getBorrowTime() > 0);
+        Assert.assertTrue(borrow.getReturnTime() > borrow.getBorrowTime());
+    }
+
+    @Test
+    public void myResetModeTest() {
+        LibraryManagementSystemImpl impl = (LibraryManagementSystemImpl) library;
+        for (ResetMode mode : new ResetMode[]{ResetMode.TRUNCATE, ResetMode.RECREATE, ResetMode.TRUNCATE}) {
+            impl.setResetMode(mode);
+            Book b0 = new Book("Computer Science", "Database System Concepts",
+                    "Machine Industry Press", 2023, "Mike", 188.88, 10);
+            Card c0 = new Card(0, "User0", "Computer Science", Card.CardType.Student);
+            Assert.assertTrue(library.storeBook(b0).ok);
+            Assert.assertTrue(library.registerCard(c0).ok);
+            /* identity columns start over after every reset */
+            Assert.assertEquals(1, b0.getBookId());
+            Assert.assertEquals(1, c0.getCardId());
+            Assert.assertTrue(library.stripeBookStock(b0.getBookId(), 2).ok);
+            Borrow borrow = new Borrow(b0, c0);
+            Assert.assertTrue(library.borrowBook(borrow).ok);
+            Assert.assertTrue(library.returnBook(borrow).ok);
+            Assert.assertTrue(library.borrowBook(new Borrow(b0, c0)).ok);
+            Assert.assertTrue(library.resetDatabase().ok);
+            Assert.assertEquals(0, ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getCount());
+            Assert.assertEquals(0, ((CardList) library.showCards().payload).getCount());
+        }
+        impl.setResetMode(connectConfig.getResetMode());
+    }
+
+    @Test
+    public void myDataGeneratorTest() {
+        /* the same seed gives the same data, whatever the number of threads */
+        List<Book> books = new ArrayList<>();
+        List<Card> cards = new ArrayList<>();
+        try (SyntheticDataGenerator gen = new SyntheticDataGenerator(42, 3);
+             SyntheticDataGenerator single = new SyntheticDataGenerator(42, 1)) {
+            Assert.assertEquals(12000, gen.books(12000, chunk -> {
+                books.addAll(chunk);
+                return library.storeBook(chunk);
+            }));
+            Assert.assertEquals(300, gen.cards(300, chunk -> {
+                cards.addAll(chunk);
+                return library.registerCards(chunk);
+            }));
+            for (int i : new int[]{0, 4999, 5000, 11999}) {
+                Book a = books.get(i), b = single.book(i);
+                Assert.assertEquals(a.getTitle(), b.getTitle());
+                Assert.assertEquals(a.getAuthor(), b.getAuthor());
+                Assert.assertEquals(a.getPrice(), b.getPrice(), 0);
+            }
+            Assert.assertEquals(cards.get(299).getName(), single.card(299).getName());
+            int[] bookIds = books.stream().mapToInt(Book::getBookId).toArray();
+            int[] cardIds = cards.stream().mapToInt(Card::getCardId).toArray();
+            long from = 1500000000000L, to = 1600000000000L;
+            List<Borrow> loans = new ArrayList<>();
+            Assert.assertEquals(3001, gen.loans(3001, bookIds, cardIds, from, to, chunk -> {
+                loans.addAll(chunk);
+                return SyntheticDataGenerator.historySink(connector).store(chunk);
+            }));
+            List<Borrow> again = new ArrayList<>();
+            single.loans(3001, bookIds, cardIds, from, to, chunk -> {
+                again.addAll(chunk);
+                return new ApiResult(true, null);
+            });
+            int top = 0;
+            for (int i = 0; i < loans.size(); ++i) {
+                Borrow r = loans.get(i);
+                Assert.assertEquals(r.getBookId(), again.get(i).getBookId());
+                Assert.assertEquals(r.getBorrowTime(), again.get(i).getBorrowTime());
+                Assert.assertTrue(r.getBorrowTime() >= from && r.getBorrowTime() < to);
+                Assert.assertTrue(r.getReturnTime() > r.getBorrowTime());
+                if (r.getBookId() == bookIds[0]) {
+                    ++top;
+                }
+            }
+            /* Zipf(1) over 12000 books: the top book takes about 1 / H(12000) ~ 10% of the loans */
+            Assert.assertTrue(top > 150 && top < 450);
+        }
+        BorrowHistories histories = (BorrowHistories) library.showBorrowHistory(cards.get(0).getCardId()).payload;
+        Assert.assertEquals(11, histories.getCount());
+    }
+
+    @Test
+    public void myWorkloadReplayTest() throws Exception {
+        Path log = Files.createTempFile("workload", ".tsv");
+        try {
+            try (RecordingLibrary recorder = new RecordingLibrary(library, log)) {
+                Book b0 = new Book("Computer Science", "Database\tSystem\nConcepts",
+                        "Machine Industry Press", 2023, "Mike", 188.88, 1);
+                Assert.assertTrue(recorder.storeBook(b0).ok);
+                List<Book> more = new ArrayList<>();
+                for (int i = 0; i < 5; ++i) {
+                    more.add(new Book("Math", "Calculus " + i, "Higher Education Press", 2010 + i, "Lee", 30 + i, 2));
+                }
+                Assert.assertTrue(recorder.storeBook(more).ok);
+                Card c0 = new Card(0, "Alice", "CS", Card.CardType.Student);
+                Card c1 = new Card(0, "Bob", "Math", Card.CardType.Teacher);
+                Assert.assertTrue(recorder.registerCard(c0).ok);
+                Assert.assertTrue(recorder.registerCards(Collections.singletonList(c1)).ok);
+                Borrow r0 = new Borrow(b0.getBookId(), c0.getCardId());
+                Assert.assertTrue(recorder.borrowBook(r0).ok);
+                /* out of stock */
+                Assert.assertFalse(recorder.borrowBook(new Borrow(b0.getBookId(), c1.getCardId())).ok);
+                Assert.assertTrue(recorder.borrowBook(new Borrow(more.get(2).getBookId(), c1.getCardId())).ok);
+                Assert.assertTrue(recorder.returnBook(r0).ok);
+                Assert.assertTrue(recorder.incBookStock(more.get(0).getBookId(), 3).ok);
+                BookQueryConditions conditions = new BookQueryConditions();
+                conditions.setCategory("Math");
+                conditions.setMinPrice(31.0);
+                conditions.setSortBy(Book.SortColumn.PRICE);
+                conditions.setSortOrder(SortOrder.DESC);
+                Assert.assertEquals(4, ((BookQueryResults) recorder.queryBook(conditions).payload).getCount());
+                Assert.assertTrue(recorder.showBorrowHistory(c0.getCardId()).ok);
+                Assert.assertTrue(recorder.removeBook(more.get(4).getBookId()).ok);
+                Assert.assertTrue(recorder.showCards().ok);
+                Assert.assertEquals(13, recorder.getRecorded());
+                Assert.assertEquals(0, recorder.getDropped());
+            }
+            /* shift the ids, the replay has to follow the ones it gets */
+            Assert.assertTrue(library.resetDatabase().ok);
+            Assert.assertTrue(library.storeBook(new Book("X", "X", "X", 2000, "X", 1, 1)).ok);
+            Card x = new Card(0, "X", "X", Card.CardType.Student);
+            Assert.assertTrue(library.registerCard(x).ok);
+            Assert.assertTrue(library.removeCard(x.getCardId()).ok);
+            WorkloadReplayer.Report report = new WorkloadReplayer(Collections.singletonList(library)).replay(log, 0);
+            Assert.assertEquals(report.toString(), 0, report.getDivergences());
+            Assert.assertEquals(13, report.getCalls());
+            Assert.assertEquals(13, report.getService().getCount());
+            BookQueryConditions byTitle = new BookQueryConditions();
+            byTitle.setTitle("Database\tSystem\nConcepts");
+            Assert.assertEquals(1, ((BookQueryResults) library.queryBook(byTitle).payload).getCount());
+            BorrowHistories histories = (BorrowHistories) library.showBorrowHistory(2).payload;
+            Assert.assertEquals(1, histories.getCount());
+            Assert.assertTrue(histories.getItems().get(0).getReturnTime() > 0);
+
+            /* replayed on top of itself the query sees the books of both runs */
+            report = new WorkloadReplayer(Collections.singletonList(library)).replay(log, 0);
+            Assert.assertTrue(report.getDivergences() > 0);
+            Assert.assertFalse(report.getExamples().isEmpty());
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    @Test
+    public void myWorkloadReplayOrderTest() throws Exception {
+        Path log = Files.createTempFile("workload", ".tsv");
+        List<DatabaseConnector> connectors = new ArrayList<>();
+        try {
+            int nCards = 6;
+            try (RecordingLibrary recorder = new RecordingLibrary(library, log)) {
+                /* one copy passed from card to card: every call's outcome depends on the order on the book */
+                Book b0 = new Book("Computer Science", "Database System Concepts",
+                        "Machine Industry Press", 2023, "Mike", 188.88, 1);
+                Assert.assertTrue(recorder.storeBook(b0).ok);
+                List<Card> cards = new ArrayList<>();
+                for (int i = 0; i < nCards; ++i) {
+                    cards.add(new Card(0, "User" + i, "Computer Science", Card.CardType.Student));
+                }
+                Assert.assertTrue(recorder.registerCards(cards).ok);
+                for (int i = 0; i < nCards; ++i) {
+                    Borrow borrow = new Borrow(b0.getBookId(), cards.get(i).getCardId());
+                    Assert.assertTrue(recorder.borrowBook(borrow).ok);
+                    Assert.assertFalse(recorder.borrowBook(new Borrow(b0.getBookId(),
+                            cards.get((i + 1) % nCards).getCardId())).ok);
+                    Assert.assertFalse(recorder.removeCard(cards.get(i).getCardId()).ok);
+                    Assert.assertTrue(recorder.returnBook(borrow).ok);
+                    Assert.assertEquals(1, ((BorrowHistories) recorder.showBorrowHistory(
+                            cards.get(i).getCardId()).payload).getCount());
+                }
+                Assert.assertTrue(recorder.incBookStock(b0.getBookId(), -1).ok);
+                Assert.assertFalse(recorder.borrowBook(new Borrow(b0.getBookId(), cards.get(0).getCardId())).ok);
+                Assert.assertTrue(recorder.removeCard(cards.get(0).getCardId()).ok);
+            }
+            /* two targets with a connection each, the calls on the book land on both */
+            List<LibraryManagementSystemImpl> targets = new ArrayList<>();
+            for (int i = 0; i < 2; ++i) {
+                DatabaseConnector c = new DatabaseConnector(connectConfig);
+                connectors.add(c);
+                Assert.assertTrue(c.connect());
+                targets.add(new LibraryManagementSystemImpl(c));
+            }
+            for (int run = 0; run < 3; ++run) {
+                Assert.assertTrue(library.resetDatabase().ok);
+                WorkloadReplayer.Report report = new WorkloadReplayer(targets).replay(log, 0);
+                Assert.assertEquals(report.toString(), 0, report.getDivergences());
+                Assert.assertEquals(5 + 5L * nCards, report.getCalls());
+            }
+        } finally {
+            for (DatabaseConnector c : connectors) c.release();
+            Files.deleteIfExists(log);
+        }
+    }
+
+    @Test
+    public void myLoadGeneratorTest() throws Exception {
+        LoadGenerator.Options options = LoadGenerator.Options.parse(new String[]{
+                "--mix=borrow=50,return=40,query=10", "--patrons=4", "--connections=2", "--think=5",
+                "--duration=2", "--ramp-up=1", "--books=20"});
+        Assert.assertEquals(0, (int) options.getMix().get(LoadGenerator.Op.REGISTER));
+        for (String bad : new String[]{"--mix=borrow=0", "--mix=lend=1", "--patrons=0", "--think=-1", "--speed=2", "reset"}) {
+            try {
+                LoadGenerator.Options.parse(new String[]{bad});
+                Assert.fail(bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        Path csv = Files.createTempFile("load", ".csv");
+        try {
+            options.setCsv(csv);
+            LoadGenerator load = new LoadGenerator(connectConfig, options);
+            load.run();
+            Assert.assertTrue(load.getCalls() > 4);
+            /* every patron registers its card, the mix registers none */
+            Assert.assertEquals(4, load.getTotal(LoadGenerator.Op.REGISTER).getCount());
+            Assert.assertTrue(load.getTotal(LoadGenerator.Op.BORROW).getCount() > 0);
+            Assert.assertEquals(0, load.getFailures(LoadGenerator.Op.BORROW));
+            Assert.assertEquals(0, load.getFailures(LoadGenerator.Op.RETURN));
+            List<String> lines = Files.readAllLines(csv);
+            Assert.assertEquals("elapsed_s,patrons,ops,ops_per_s,p50_ms,p99_ms,max_ms,failed", lines.get(0));
+            Assert.assertTrue(lines.size() >= 3);
+            long ops = 0;
+            for (String line : lines.subList(1, lines.size())) {
+                ops += Long.parseLong(line.split(",")[2]);
+            }
+            /* a call racing with the end of an interval may miss the CSV, never the totals */
+            Assert.assertTrue(ops > 0 && ops <= load.getCalls());
+        } finally {
+            Files.deleteIfExists(csv);
+        }
+        CardList cards = (CardList) library.showCards().payload;
+        Assert.assertEquals(4, cards.getCount());
+        /* a second run on the same database reuses the seeded books and adds the missing ones */
+        LoadGenerator again = new LoadGenerator(connectConfig, LoadGenerator.Options.parse(new String[]{
+                "--patrons=2", "--connections=1", "--think=5", "--duration=1", "--books=25", "--csv="}));
+        again.run();
+        Assert.assertEquals(0, again.getFailures(LoadGenerator.Op.BORROW));
+        Assert.assertEquals(25, ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getCount());
+        Assert.assertEquals(0, again.getFailures(LoadGenerator.Op.REGISTER));
+        Assert.assertEquals(4 + again.getTotal(LoadGenerator.Op.REGISTER).getCount(),
+                ((CardList) library.showCards().payload).getCount());
+    }
+
+    @Test
+    public void myCirculationStatsTest() {
+        Book a = new Book("Computer Science", "Database System Concepts", "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Book b = new Book("Computer Science", "Computer Networks", "Machine Industry Press", 2020, "John", 99.5, 10);
+        Book c = new Book("Math", "Calculus", "Higher Education Press", 2010, "Lee", 30, 10);
+        Assert.assertTrue(library.storeBook(Arrays.asList(a, b, c)).ok);
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            cards.add(new Card(0, "User" + i, i < 3 ? "CS" : "Math", Card.CardType.Student));
+        }
+        Assert.assertTrue(library.registerCards(cards).ok);
+        long day = 24L * 60 * 60 * 1000, d = 20000 * day;
+        /* a: 3 borrows on day d and one 10 days earlier, b: 1 on day d, c: 2 on day d + 1 */
+        Borrow old = new Borrow(a.getBookId(), cards.get(3).getCardId());
+        old.setBorrowTime(d - 10 * day);
+        Assert.assertTrue(library.borrowBook(old).ok);
+        Assert.assertTrue(library.returnBook(old).ok);
+        for (int i = 0; i < 3; ++i) {
+            Borrow r = new Borrow(a.getBookId(), cards.get(i).getCardId());
+            r.setBorrowTime(d + 1000 * i);
+            Assert.assertTrue(library.borrowBook(r).ok);
+        }
+        Borrow again = new Borrow(a.getBookId(), cards.get(0).getCardId());
+        again.setBorrowTime(d + 5000);
+        Assert.assertFalse(library.borrowBook(again).ok);
+        Borrow rb = new Borrow(b.getBookId(), cards.get(3).getCardId());
+        rb.setBorrowTime(d + day - 1);
+        Assert.assertTrue(library.borrowBook(rb).ok);
+        /* the batched path keeps the counters as well */
+        List<LibraryManagementSystemImpl.BorrowOp> ops = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            Borrow r = new Borrow(c.getBookId(), cards.get(i + 2).getCardId());
+            r.setBorrowTime(d + day + i);
+            ops.add(LibraryManagementSystemImpl.BorrowOp.borrow(r));
+        }
+        for (ApiResult result : ((LibraryManagementSystemImpl) library).borrowAndReturn(ops)) {
+            Assert.assertTrue(result.ok);
+        }
+
+        PopularBooks top = (PopularBooks) library.topBorrowedBooks("Computer Science", d, d + day, 10).payload;
+        Assert.assertEquals(2, top.getCount());
+        Assert.assertEquals(a.getBookId(), top.getItems().get(0).getBook().getBookId());
+        Assert.assertEquals(3, top.getItems().get(0).getBorrows());
+        Assert.assertEquals(a.getTitle(), top.getItems().get(0).getBook().getTitle());
+        Assert.assertEquals(1, top.getItems().get(1).getBorrows());
+        top = (PopularBooks) library.topBorrowedBooks(null, d, d + 2 * day, 2).payload;
+        Assert.assertEquals(2, top.getCount());
+        Assert.assertEquals(c.getBookId(), top.getItems().get(1).getBook().getBookId());
+        Assert.assertEquals(2, top.getItems().get(1).getBorrows());
+        /* whole days: a period inside day d still counts all of day d */
+        top = (PopularBooks) library.topBorrowedBooks("Computer Science", d + 10, d + 20, 1).payload;
+        Assert.assertEquals(3, top.getItems().get(0).getBorrows());
+        top = (PopularBooks) library.topBorrowedBooks(null, 0, Long.MAX_VALUE, 1).payload;
+        Assert.assertEquals(4, top.getItems().get(0).getBorrows());
+        Assert.assertEquals(0, ((PopularBooks) library.topBorrowedBooks("History", 0, Long.MAX_VALUE, 5).payload).getCount());
+        Assert.assertFalse(library.topBorrowedBooks(null, 0, Long.MAX_VALUE, 0).ok);
+
+        DepartmentLoans loans = (DepartmentLoans) library.showDepartmentLoans(0).payload;
+        Assert.assertEquals(2, loans.getCount());
+        Assert.assertEquals("CS", loans.getItems().get(0).getDepartment());
+        Assert.assertEquals(4, loans.getItems().get(0).getLoans());
+        Assert.assertEquals("Math", loans.getItems().get(1).getDepartment());
+        Assert.assertEquals(2, loans.getItems().get(1).getLoans());
+        Assert.assertEquals(1, ((DepartmentLoans) library.showDepartmentLoans(1).payload).getCount());
+        /* give back everything of Math, it drops out */
+        Assert.assertTrue(library.returnBook(rb).ok);
+        Borrow rc = new Borrow(c.getBookId(), cards.get(3).getCardId());
+        rc.setBorrowTime(d + day + 1);
+        Assert.assertTrue(library.returnBook(rc).ok);
+        loans = (DepartmentLoans) library.showDepartmentLoans(0).payload;
+        Assert.assertEquals(1, loans.getCount());
+        Assert.assertEquals(4, loans.getItems().get(0).getLoans());
+    }
+
+    @Test
+    public void myIdAllocatorTest() {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        LibraryManagementSystemImpl impl = (LibraryManagementSystemImpl) library;
+        try (IdAllocator ids = new IdAllocator(connectConfig, 8);
+             IdAllocator other = new IdAllocator(connectConfig, 8)) {
+            impl.setIdAllocator(ids);
+            List<Book> books = new ArrayList<>();
+            for (int i = 0; i < 20; ++i) {
+                books.add(new Book("Computer Science", "Book-" + i, "Press", 2000, "Author", 10.0, 1));
+            }
+            Assert.assertTrue(library.storeBook(books).ok);
+            Book b1 = new Book("Computer Science", "Database System Concepts",
+                    "Machine Industry Press", 2024, "Mike", 188.88, 10);
+            Assert.assertTrue(library.storeBook(b1).ok);
+            Assert.assertFalse(library.storeBook(b0).ok);
+            /* the first block starts after the identity-generated id */
+            Set<Integer> bookIds = new HashSet<>();
+            bookIds.add(b0.getBookId());
+            for (Book book : books) {
+                Assert.assertTrue(book.getBookId() > b0.getBookId());
+                Assert.assertTrue(bookIds.add(book.getBookId()));
+            }
+            Assert.assertTrue(bookIds.add(b1.getBookId()));
+            BookQueryResults results = (BookQueryResults) library.queryBook(new BookQueryConditions()).payload;
+            Assert.assertEquals(22, results.getCount());
+            for (Book book : results.getResults()) {
+                Assert.assertTrue(bookIds.contains(book.getBookId()));
+            }
+            /* a second allocator (another node) never hands out the same ids */
+            impl.setIdAllocator(other);
+            Card c0 = new Card(0, "User0", "Computer Science", Card.CardType.Student);
+            Assert.assertTrue(library.registerCard(c0).ok);
+            impl.setIdAllocator(ids);
+            List<Card> cards = new ArrayList<>();
+            for (int i = 1; i < 10; ++i) {
+                cards.add(new Card(0, "User" + i, "Computer Science", Card.CardType.Student));
+            }
+            Assert.assertTrue(library.registerCards(cards).ok);
+            Set<Integer> cardIds = new HashSet<>();
+            cardIds.add(c0.getCardId());
+            for (Card card : cards) {
+                Assert.assertTrue(cardIds.add(card.getCardId()));
+            }
+            CardList cardList = (CardList) library.showCards().payload;
+            Assert.assertEquals(10, cardList.getCount());
+            for (Card card : cardList.getCards()) {
+                Assert.assertTrue(cardIds.contains(card.getCardId()));
+            }
+            Borrow borrow = new Borrow(b1, c0);
+            Assert.assertTrue(library.borrowBook(borrow).ok);
+            Assert.assertTrue(ids.getReserved() >= 30);
+        } finally {
+            impl.setIdAllocator(null);
+        }
+    }
+
+    @Test
+    public void myOpenLoanTest() {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Book b1 = new Book("Computer Science", "Computer Networks",
+                "Machine Industry Press", 2023, "Mike", 99.99, 10);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Assert.assertTrue(library.storeBook(b1).ok);
+        Assert.assertTrue(library.stripeBookStock(b1.getBookId(), 4).ok);
+        Card c0 = new Card(0, "User0", "Computer Science", Card.CardType.Student);
+        Card c1 = new Card(0, "User1", "Computer Science", Card.CardType.Student);
+        Assert.assertTrue(library.registerCard(c0).ok);
+        Assert.assertTrue(library.registerCard(c1).ok);
+        Borrow r0 = new Borrow(b0, c0);
+        Borrow r1 = new Borrow(b1, c0);
+        Borrow r2 = new Borrow(b1, c1);
+        Assert.assertTrue(library.borrowBook(r0).ok);
+        Assert.assertTrue(library.borrowBook(r1).ok);
+        Assert.assertTrue(library.borrowBook(r2).ok);
+        Assert.assertFalse(library.borrowBook(new Borrow(b1, c1)).ok);
+        Assert.assertFalse(library.removeBook(b0.getBookId()).ok);
+        Assert.assertFalse(library.removeBook(b1.getBookId()).ok);
+        Assert.assertFalse(library.removeCard(c0.getCardId()).ok);
+        Assert.assertFalse(library.removeCards(Arrays.asList(c0.getCardId(), c1.getCardId())).ok);
+        /* a loan can only be returned once */
+        Assert.assertTrue(library.returnBook(r0).ok);
+        r0.setReturnTime(0);
+        Assert.assertFalse(library.returnBook(r0).ok);
+        Assert.assertTrue(library.removeBook(b0.getBookId()).ok);
+        /* the loans counted on the stripes move back to the book when it is unstriped */
+        Assert.assertTrue(library.returnBook(r1).ok);
+        Assert.assertTrue(library.stripeBookStock(b1.getBookId(), 0).ok);
+        Assert.assertFalse(library.removeBook(b1.getBookId()).ok);
+        Assert.assertTrue(library.removeCard(c0.getCardId()).ok);
+        Assert.assertTrue(library.stripeBookStock(b1.getBookId(), 2).ok);
+        Assert.assertTrue(library.returnBook(r2).ok);
+        Assert.assertTrue(library.removeCards(Collections.singletonList(c1.getCardId())).ok);
+        Assert.assertTrue(library.removeBook(b1.getBookId()).ok);
+    }
+
+    @Test
+    public void myBorrowArchiveTest() throws SQLException {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Book b1 = new Book("Computer Science", "Computer Networks",
+                "Machine Industry Press", 2023, "Mike", 99.99, 10);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Assert.assertTrue(library.storeBook(b1).ok);
+        Card c0 = new Card(0, "User0", "Computer Science", Card.CardType.Student);
+        Assert.assertTrue(library.registerCard(c0).ok);
+        for (int i = 0; i < 5; ++i) {
+            Borrow borrow = new Borrow(b0, c0);
+            Assert.assertTrue(library.borrowBook(borrow).ok);
+            Assert.assertTrue(library.returnBook(borrow).ok);
+        }
+        Borrow open = new Borrow(b1, c0);
+        Assert.assertTrue(library.borrowBook(open).ok);
+        BorrowHistories before = (BorrowHistories) library.showBorrowHistory(c0.getCardId()).payload;
+        Assert.assertEquals(6, before.getCount());
+        try (BorrowArchiver archiver = new BorrowArchiver(connectConfig, 2)) {
+            /* H2 keeps borrow unpartitioned */
+            Assert.assertEquals(0, archiver.ensurePartitions(System.currentTimeMillis(), 86400000L, 2));
+            /* the open loan stays in borrow, the returned ones move in chunks of 2 */
+            Assert.assertEquals(5, archiver.archive(UniqueClock.get().next()));
+            Assert.assertEquals(0, archiver.archive(UniqueClock.get().next()));
+            Assert.assertEquals(5, archiver.getArchived());
+        }
+        BorrowHistories after = (BorrowHistories) library.showBorrowHistory(c0.getCardId()).payload;
+        Assert.assertEquals(before.getCount(), after.getCount());
+        for (int i = 0; i < before.getCount(); ++i) {
+            BorrowHistories.Item x = before.getItems().get(i);
+            BorrowHistories.Item y = after.getItems().get(i);
+            Assert.assertEquals(x.getBookId(), y.getBookId());
+            Assert.assertEquals(x.getBorrowTime(), y.getBorrowTime());
+            Assert.assertEquals(x.getReturnTime(), y.getReturnTime());
+        }
+        Assert.assertTrue(library.returnBook(open).ok);
+        Assert.assertTrue(library.removeCard(c0.getCardId()).ok);
+        /* removing the card drops its archived history as well, at once for readers and by the purge on disk */
+        Assert.assertEquals(0, ((BorrowHistories) library.showBorrowHistory(c0.getCardId()).payload).getCount());
+        try (BorrowArchiver archiver = new BorrowArchiver(connectConfig, 2)) {
+            Assert.assertEquals(1, archiver.archive(UniqueClock.get().next()));
+            Assert.assertEquals(6, archiver.purge());
+            Assert.assertEquals(0, archiver.purge());
+            Assert.assertEquals(6, archiver.getPurged());
+        }
+        try (PreparedStatement stmt = connector.getConn().prepareStatement(
+                "SELECT (SELECT COUNT(*) FROM borrow) + (SELECT COUNT(*) FROM borrow_archive) + " +
+                        "(SELECT COUNT(*) FROM removed_card)")) {
+            ResultSet ret = stmt.executeQuery();
+            Assert.assertTrue(ret.next());
+            Assert.assertEquals(0, ret.getInt(1));
+        }
+    }
+
+    @Test
+    public void myRetryClassifyTest() {
+        Assert.assertEquals(TransactionExecutor.Reason.DEADLOCK,
+                TransactionExecutor.classify(DatabaseType.MYSQL, new SQLException("deadlock", "40001", 1213)));
+        Assert.assertEquals(TransactionExecutor.Reason.LOCK_TIMEOUT,
+                TransactionExecutor.classify(DatabaseType.MYSQL, new SQLException("lock wait", "HY000", 1205)));
+        Assert.assertEquals(TransactionExecutor.Reason.DEADLOCK,
+                TransactionExecutor.classify(DatabaseType.SQLSERVER, new SQLException("victim", "40001", 1205)));
+        Assert.assertEquals(TransactionExecutor.Reason.DEADLOCK,
+                TransactionExecutor.classify(DatabaseType.POSTGRES, new SQLException("deadlock", "40P01")));
+        Assert.assertEquals(TransactionExecutor.Reason.SERIALIZATION_FAILURE,
+                TransactionExecutor.classify(DatabaseType.POSTGRES, new SQLException("serialize", "40001")));
+        SQLException batch = new SQLException("batch failed", "HY000");
+        batch.setNextException(new SQLException("deadlock", "40P01"));
+        Assert.assertEquals(TransactionExecutor.Reason.DEADLOCK, TransactionExecutor.classify(DatabaseType.POSTGRES, batch));
+        Assert.assertNull(TransactionExecutor.classify(DatabaseType.MYSQL, new SQLException("duplicate", "23000", 1062)));
+    }
+
+    @Test
+    public void myStripedStockTest() {
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Assert.assertTrue(library.stripeBookStock(b0.getBookId(), 4).ok);
+        Assert.assertFalse(library.stripeBookStock(b0.getBookId() + 1, 4).ok);
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setSortBy(Book.SortColumn.STOCK);
+        Book o1 = ((BookQueryResults) library.queryBook(conditions).payload).getResults().get(0);
+        Assert.assertEquals(10, o1.getStock());
+        /* borrow every copy, the stripes run dry one after another */
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < 11; ++i) {
+            cards.add(new Card(0, "User" + i, "Computer Science", Card.CardType.Student));
+        }
+        Assert.assertTrue(library.registerCards(cards).ok);
+        for (int i = 0; i < 10; ++i) {
+            Borrow borrow = new Borrow(b0.getBookId(), cards.get(i).getCardId());
+            borrow.setBorrowTime(i + 1);
+            Assert.assertTrue(library.borrowBook(borrow).ok);
+        }
+        Borrow last = new Borrow(b0.getBookId(), cards.get(10).getCardId());
+        last.setBorrowTime(100);
+        Assert.assertFalse(library.borrowBook(last).ok);
+        o1 = ((BookQueryResults) library.queryBook(conditions).payload).getResults().get(0);
+        Assert.assertEquals(0, o1.getStock());
+        /* a restock lands on one stripe, a larger take is gathered from several */
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), 3).ok);
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), 2).ok);
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), 1).ok);
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), -5).ok);
+        Assert.assertFalse(library.incBookStock(b0.getBookId(), -2).ok);
+        o1 = ((BookQueryResults) library.queryBook(conditions).payload).getResults().get(0);
+        Assert.assertEquals(1, o1.getStock());
+        Assert.assertTrue(library.stripeBookStock(b0.getBookId(), 0).ok);
+        Assert.assertTrue(library.incBookStock(b0.getBookId(), -1).ok);
+        Assert.assertFalse(library.incBookStock(b0.getBookId(), -1).ok);
+    }
+
     @Test
     public void myBulkRegisterTest() throws IOException {
         List<Book> books = new ArrayList<>();
@@ -118,6 +991,119 @@ public class MyLibraryTest {
         library.storeBook(books);
     }
     @Test
+    public void myCatalogImportTest() throws Exception {
+        Path csv = Files.createTempFile("catalog", ".csv");
+        Path rejects = Files.createTempFile("catalog", ".rejects");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv)) {
+            for (int i = 0; i < 5000; i++) {
+                writer.write(String.format("Novel, \"Title, Vol. %d\", Press-A, 2020, Author%d, 12.5, %d%n",
+                        i, i % 97, i % 10));
+            }
+            writer.write("Novel, \"Title, Vol. 42\", Press-A, 2020, Author42, 99.0, 1\n");
+            writer.write("Novel, Broken, Press-A, not-a-year, Nobody, 1.0, 1\n");
+            writer.write("Novel, Too few fields\n");
+        }
+        Book exists = CatalogImporter.parseBook("Novel, \"Title, Vol. 7\", Press-A, 2020, Author7, 12.5, 7");
+        Assert.assertTrue(library.storeBook(exists).ok);
+
+        CatalogImporter importer = new CatalogImporter();
+        importer.setChunkBytes(4096);
+        importer.setBatchSize(300);
+        importer.setRejectFile(rejects);
+        CatalogImporter.Report report = importer.importFile(csv, library::storeBook);
+        Assert.assertEquals(5003, report.getLines());
+        Assert.assertEquals(4999, report.getImported());
+        Assert.assertEquals(1, report.getDuplicates());
+        Assert.assertEquals(3, report.getRejected());
+        Assert.assertEquals(3, Files.readAllLines(rejects).size());
+        ApiResult result = library.queryBook(new BookQueryConditions());
+        Assert.assertEquals(5000, ((BookQueryResults) result.payload).getCount());
+        Files.delete(csv);
+        Files.delete(rejects);
+    }
+    @Test
+    public void myBulkCatalogImportTest() throws Exception {
+        Path csv = Files.createTempFile("catalog", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv)) {
+            for (int i = 0; i < 3000; i++) {
+                writer.write(String.format("History, \"Chronicle \"\"%d\"\"\", Press-B, 1999, Author%d, 45.5, %d%n",
+                        i, i % 13, i % 5));
+            }
+            writer.write("History, \"Chronicle \"\"1\"\"\", Press-B, 1999, Author1, 1.0, 1\n");
+            writer.write("History, Broken\n");
+        }
+        Book exists = CatalogImporter.parseBook("History, \"Chronicle \"\"9\"\"\", Press-B, 1999, Author9, 45.5, 4");
+        Assert.assertTrue(library.storeBook(exists).ok);
+        /* a dedicated connector tuned for bulk loads */
+        DatabaseConnector bulk = new DatabaseConnector(connectConfig.withProfile(ConnectionProfile.BULK_IMPORT));
+        Assert.assertTrue(bulk.connect());
+        try {
+            CatalogImporter.Report report = new CatalogImporter().bulkImportFile(csv, bulk);
+            Assert.assertEquals(3002, report.getLines());
+            Assert.assertEquals(2999, report.getImported());
+            Assert.assertEquals(2, report.getDuplicates());
+            Assert.assertEquals(1, report.getRejected());
+        } finally {
+            Assert.assertTrue(bulk.release());
+        }
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setTitle("\"9\"");
+        List<Book> found = ((BookQueryResults) library.queryBook(conditions).payload).getResults();
+        Assert.assertEquals(1, found.size());
+        Assert.assertEquals("Chronicle \"9\"", found.get(0).getTitle());
+        Assert.assertEquals(3000, ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getCount());
+        Files.delete(csv);
+    }
+    @Test
+    public void myExportTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 50, 20, 100);
+        Path dir = Files.createTempDirectory("export");
+        try {
+            exportAndCheck(my, dir);
+        } finally {
+            for (String name : Arrays.asList("book.csv.gz", "card.csv.gz", "borrow.csv.gz", "book.lcol")) {
+                Files.deleteIfExists(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+    }
+    private void exportAndCheck(MyLibrary my, Path dir) throws Exception {
+        TableExporter exporter = new TableExporter(connector);
+        exporter.setRowGroupSize(16);
+        /* gzip csv, one header line per table */
+        List<TableExporter.Report> reports = exporter.exportAll(dir, TableExporter.Format.CSV_GZIP, 0);
+        Assert.assertEquals(my.nBooks(), reports.get(0).getRows());
+        Assert.assertEquals(my.nCards(), reports.get(1).getRows());
+        Assert.assertEquals(my.nBorrows(), reports.get(2).getRows());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(dir.resolve("borrow.csv.gz")))))) {
+            Assert.assertEquals("card_id,book_id,borrow_time,return_time", reader.readLine());
+            Assert.assertEquals(my.nBorrows(), reader.lines().count());
+        }
+        /* columnar round trip */
+        TableExporter.Report books = exporter.exportBook(dir.resolve("book.lcol"), TableExporter.Format.COLUMNAR);
+        Assert.assertEquals(my.nBooks(), books.getRows());
+        List<Object[]> rows = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(dir.resolve("book.lcol"))) {
+            TableExporter.readColumnar(in, rows::add);
+        }
+        Assert.assertEquals(my.nBooks(), rows.size());
+        for (Object[] row : rows) {
+            Book book = my.books.stream().filter(b -> b.getBookId() == (Integer) row[0]).findFirst().get();
+            Assert.assertEquals(book.getTitle(), row[2]);
+            Assert.assertEquals(book.getPrice(), ((BigDecimal) row[6]).doubleValue(), 1e-9);
+        }
+        /* incremental export from the last watermark */
+        long watermark = reports.get(2).getHighWatermark();
+        Assert.assertEquals(0, exporter.exportBorrow(dir.resolve("borrow.csv.gz"),
+                TableExporter.Format.CSV_GZIP, watermark).getRows());
+        Borrow borrow = new Borrow(my.books.get(0), my.cards.get(0));
+        borrow.resetBorrowTime();
+        Assert.assertTrue(library.borrowBook(borrow).ok);
+        Assert.assertEquals(1, exporter.exportBorrow(dir.resolve("borrow.csv.gz"),
+                TableExporter.Format.CSV_GZIP, watermark).getRows());
+    }
+    @Test
     public void myRegisterCardTest() {
         Card card = new Card();
         card.setType(Card.CardType.Student);
@@ -126,6 +1112,46 @@ public class MyLibraryTest {
         library.registerCard(card);
     }
     @Test
+    public void myBulkRegisterCardTest() {
+        List<Card> cards = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            cards.add(new Card(0, String.format("Freshman%05d", i), RandomData.randomDepartment(),
+                    Card.CardType.Student));
+        }
+        Assert.assertTrue(library.registerCards(cards).ok);
+        CardList all = (CardList) library.showCards().payload;
+        Assert.assertEquals(cards.size(), all.getCount());
+        for (int i = 0; i < cards.size(); i++) {
+            Assert.assertEquals(cards.get(i).toString(), all.getCards().get(i).toString());
+        }
+        /* one duplicate card fails the whole batch */
+        List<Card> again = new ArrayList<>();
+        again.add(new Card(0, "Newcomer", "CS", Card.CardType.Teacher));
+        again.add(cards.get(600).clone());
+        Assert.assertFalse(library.registerCards(again).ok);
+        Assert.assertEquals(cards.size(), ((CardList) library.showCards().payload).getCount());
+        /* a card with un-returned books fails the whole removal */
+        Book b0 = new Book("Computer Science", "Database System Concepts",
+                "Machine Industry Press", 2023, "Mike", 188.88, 10);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Borrow borrow = new Borrow(b0, cards.get(7));
+        borrow.resetBorrowTime();
+        Assert.assertTrue(library.borrowBook(borrow).ok);
+        List<Integer> ids = new ArrayList<>();
+        for (Card card : cards) {
+            ids.add(card.getCardId());
+        }
+        ApiResult failed = library.removeCards(ids);
+        Assert.assertFalse(failed.ok);
+        Assert.assertEquals("book been borrowed", failed.message);
+        Assert.assertEquals(cards.size(), ((CardList) library.showCards().payload).getCount());
+        borrow.resetReturnTime();
+        Assert.assertTrue(library.returnBook(borrow).ok);
+        Assert.assertTrue(library.removeCards(ids).ok);
+        Assert.assertEquals(0, ((CardList) library.showCards().payload).getCount());
+        Assert.assertEquals("card not exists", library.removeCards(ids.subList(0, 1)).message);
+    }
+    @Test
     public void myShowCardsTest() {
         Card card1 = new Card();
         card1.setType(Card.CardType.Student);
@@ -0,0 +1,80 @@
+import utils.ConnectConfig;
+import utils.DBInitializer;
+import utils.DatabaseConnector;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/*
+    opt-in database per test class (-Dtest.isolate=true, on by default under -Ph2), so that
+    surefire can run the classes in parallel (parallel=classes) without one class resetting
+    the tables under another. The database is named after the configured one and the class
+    and is dropped and created again, empty, when the class is loaded; its tables are created
+    by the first resetDatabase of the class.
+
+    Without the option, or if the server refuses CREATE DATABASE, the class uses the configured
+    database. Classes on that shared database take turns between enter() and leave(), so they
+    never overlap even if surefire runs them in parallel.
+ */
+public final class TestDatabases {
+
+    public static final String ISOLATE = "test.isolate";
+
+    private static final Set<String> ownDatabases = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static final Semaphore shared = new Semaphore(1);
+
+    private TestDatabases() {
+    }
+
+    public static ConnectConfig isolated(ConnectConfig base, Class<?> testClass) {
+        if (!Boolean.getBoolean(ISOLATE)) {
+            return base;
+        }
+        String db = base.getDB() + "_" + testClass.getSimpleName().toLowerCase();
+        DBInitializer initializer = base.getType().getDbInitializer();
+        String create = initializer.sqlCreateDatabase(db);
+        if (create != null) {
+            DatabaseConnector connector = new DatabaseConnector(base);
+            if (!connector.connect()) {
+                System.out.printf("Cannot connect to %s, %s uses it as well.\n", base.getDB(), testClass.getSimpleName());
+                return base;
+            }
+            try {
+                Connection conn = connector.getConn();
+                /* CREATE / DROP DATABASE refuse to run inside a transaction */
+                conn.setAutoCommit(true);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate(initializer.sqlDropDatabase(db));
+                    stmt.executeUpdate(create);
+                }
+            } catch (SQLException e) {
+                System.out.printf("Cannot create database %s (%s), %s uses %s instead.\n",
+                        db, e.getMessage(), testClass.getSimpleName(), base.getDB());
+                return base;
+            } finally {
+                connector.release();
+            }
+        }
+        ownDatabases.add(db);
+        return base.withDatabase(db);
+    }
+
+    /* call from @BeforeClass: waits for the other classes on the shared database */
+    public static void enter(ConnectConfig conf) throws InterruptedException {
+        if (!ownDatabases.contains(conf.getDB())) {
+            shared.acquire();
+        }
+    }
+
+    /* call from @AfterClass */
+    public static void leave(ConnectConfig conf) {
+        if (!ownDatabases.contains(conf.getDB())) {
+            shared.release();
+        }
+    }
+}